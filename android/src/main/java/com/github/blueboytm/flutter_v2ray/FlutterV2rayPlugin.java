@@ -10,6 +10,8 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.net.VpnService;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
@@ -18,10 +20,29 @@ import androidx.core.app.ActivityCompat;
 
 import com.github.blueboytm.flutter_v2ray.v2ray.V2rayController;
 import com.github.blueboytm.flutter_v2ray.v2ray.V2rayReceiver;
+import com.github.blueboytm.flutter_v2ray.v2ray.V2rayStatusHub;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ConnectionHealthMonitor;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.DelayConfigCache;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.DelayTestRegistry;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.LatencyHistoryStore;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Metrics;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ServerDelayTester;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ServerHealthTracker;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StartupTrace;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksLogPump;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksSupervisor;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
@@ -37,33 +58,49 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
 
     private static final int REQUEST_CODE_VPN_PERMISSION = 24;
     private static final int REQUEST_CODE_POST_NOTIFICATIONS = 1;
+    private static final int DELAY_CALL_THREADS = 4;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Concurrent getServerDelay calls for one config have to run at the same time to share
+    // a measurement, the core spaces the native calls out itself
+    private final ExecutorService delayExecutor = Executors.newFixedThreadPool(DELAY_CALL_THREADS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private MethodChannel vpnControlMethod;
     private EventChannel vpnStatusEvent;
     private EventChannel.EventSink vpnStatusSink;
+    private EventChannel delayResultEvent;
+    private EventChannel.EventSink delayResultSink;
     private Activity activity;
     private BroadcastReceiver v2rayBroadCastReceiver;
     private MethodChannel.Result pendingResult;
     private volatile long lastDelayCallAtMs = 0L;
+    private Context applicationContext;
+    private long defaultStatsInterval = AppConfigs.STATS_INTERVAL;
+    // Status samples go straight to the sink, the broadcast receiver only gets health events
+    private final V2rayStatusHub.Listener statusListener = status -> mainHandler.post(() -> {
+        if (vpnStatusSink != null) vpnStatusSink.success(status);
+    });
     private static final String DEFAULT_DELAY_URL = "http://clients3.google.com/generate_204";
 
     @SuppressLint("DiscouragedApi")
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding binding) {
+        applicationContext = binding.getApplicationContext();
         vpnControlMethod = new MethodChannel(binding.getBinaryMessenger(), "flutter_v2ray");
         vpnStatusEvent = new EventChannel(binding.getBinaryMessenger(), "flutter_v2ray/status");
+        delayResultEvent = new EventChannel(binding.getBinaryMessenger(), "flutter_v2ray/delays");
 
         vpnStatusEvent.setStreamHandler(new EventChannel.StreamHandler() {
             @Override
             public void onListen(Object arguments, EventChannel.EventSink events) {
                 vpnStatusSink = events;
                 V2rayReceiver.vpnStatusSink = vpnStatusSink;
+                V2rayStatusHub.addListener(applicationContext, statusListener);
 
                 // Register the BroadcastReceiver now that vpnStatusSink is available
                 if (v2rayBroadCastReceiver == null) {
                     v2rayBroadCastReceiver = new V2rayReceiver();
                 }
-                IntentFilter filter = new IntentFilter("V2RAY_CONNECTION_INFO");
+                IntentFilter filter = new IntentFilter(ConnectionHealthMonitor.ACTION_HEALTH_EVENT);
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
                     activity.registerReceiver(v2rayBroadCastReceiver, filter, Context.RECEIVER_EXPORTED);
                 } else {
@@ -73,6 +110,7 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
 
             @Override
             public void onCancel(Object arguments) {
+                V2rayStatusHub.removeListener(applicationContext, statusListener);
                 if (vpnStatusSink != null) vpnStatusSink.endOfStream();
 
                 // Unregister the BroadcastReceiver when the stream is canceled
@@ -83,16 +121,43 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
             }
         });
 
+        delayResultEvent.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                delayResultSink = events;
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                delayResultSink = null;
+            }
+        });
+
         vpnControlMethod.setMethodCallHandler((call, result) -> {
             switch (call.method) {
                 case "startV2Ray":
                     AppConfigs.NOTIFICATION_DISCONNECT_BUTTON_NAME = call.argument("notificationDisconnectButtonName");
+                    Number healthCheckInterval = call.argument("healthCheckInterval");
+                    Number degradedDelay = call.argument("degradedDelay");
+                    AppConfigs.HEALTH_CHECK_INTERVAL = healthCheckInterval == null ? 0 : healthCheckInterval.longValue();
+                    AppConfigs.HEALTH_CHECK_URL = coerceHttpUrl(call.argument("healthCheckUrl"));
+                    AppConfigs.HEALTH_DEGRADED_DELAY = degradedDelay == null ? 0 : degradedDelay.longValue();
+                    AppConfigs.FAILOVER_CONFIGS = call.argument("failoverConfigs");
+                    AppConfigs.BROADCAST_STATUS = Boolean.TRUE.equals(call.argument("broadcastStatus"));
+                    Number startStatsInterval = call.argument("statsInterval");
+                    AppConfigs.STATS_INTERVAL = startStatsInterval == null ? defaultStatsInterval : startStatsInterval.longValue();
+                    AppConfigs.CAPTURE_TUN2SOCKS_LOG = Boolean.TRUE.equals(call.argument("captureTun2socksLog"));
                     if (Boolean.TRUE.equals(call.argument("proxy_only"))) {
                         V2rayController.changeConnectionMode(AppConfigs.V2RAY_CONNECTION_MODES.PROXY_ONLY);
                     }
                     V2rayController.StartV2ray(binding.getApplicationContext(), call.argument("remark"), call.argument("config"), call.argument("blocked_apps"), call.argument("bypass_subnets"));
                     result.success(null);
                     break;
+                case "switchServer":
+                    V2rayController.switchServer(binding.getApplicationContext(), call.argument("remark"), call.argument("config"),
+                            call.argument("blocked_apps"), call.argument("bypass_subnets"),
+                            switched -> mainHandler.post(() -> result.success(switched)));
+                    break;
                 case "stopV2Ray":
                     V2rayController.StopV2ray(binding.getApplicationContext());
                     result.success(null);
@@ -101,30 +166,294 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
                     String iconResourceName = call.argument("notificationIconResourceName");
                     String iconResourceType = call.argument("notificationIconResourceType");
                     V2rayController.init(binding.getApplicationContext(), binding.getApplicationContext().getResources().getIdentifier(iconResourceName, iconResourceType, binding.getApplicationContext().getPackageName()), "Flutter V2ray");
+                    Number delayResultTtl = call.argument("delayResultTtl");
+                    if (delayResultTtl != null) {
+                        V2rayController.setDelayResultTtl(delayResultTtl.longValue());
+                    }
+                    Number statsInterval = call.argument("statsInterval");
+                    if (statsInterval != null) {
+                        defaultStatsInterval = statsInterval.longValue();
+                    }
                     result.success(null);
                     break;
                 case "getServerDelay":
-                    executor.submit(() -> {
+                    final DelayTestRegistry.Token delayToken = DelayTestRegistry.register(call.argument("requestId"), deadlineOf(call.argument("deadline")));
+                    // Decided on the main thread, the first of the result and the cancel replies
+                    final AtomicBoolean replied = new AtomicBoolean(false);
+                    final Future<?> delayTask = delayExecutor.submit(() -> {
+                        long delay;
                         try {
+                            if (delayToken.isCancelled()) return;
                             String safeUrl = coerceHttpUrl(call.argument("url"));
-                            throttleDelayCalls();
-                            result.success(V2rayController.getV2rayServerDelay(call.argument("config"), safeUrl));
+                            delay = V2rayController.getV2rayServerDelay(call.argument("config"), safeUrl);
                         } catch (Exception e) {
-                            result.success(-1);
+                            delay = -1;
+                        } finally {
+                            delayToken.release();
+                        }
+                        final long reply = delay;
+                        mainHandler.post(() -> {
+                            if (replied.compareAndSet(false, true)) result.success(reply);
+                        });
+                    });
+                    // Drops the task if it is still queued; a running native call is left to
+                    // finish and its result is ignored
+                    delayToken.onCancel(() -> {
+                        delayTask.cancel(false);
+                        mainHandler.post(() -> {
+                            if (replied.compareAndSet(false, true)) result.success(DelayTestRegistry.CANCELLED);
+                        });
+                    });
+                    break;
+                case "getServerDelays":
+                    List<String> configs = call.argument("configs");
+                    Number concurrency = call.argument("concurrency");
+                    Number timeoutMs = call.argument("timeout");
+                    final String batchRequestId = call.argument("requestId");
+                    V2rayController.getV2rayServerDelays(configs, coerceHttpUrl(call.argument("url")),
+                            concurrency == null ? ServerDelayTester.DEFAULT_CONCURRENCY : concurrency.intValue(),
+                            timeoutMs == null ? ServerDelayTester.DEFAULT_TIMEOUT_MS : timeoutMs.longValue(),
+                            batchRequestId, deadlineOf(call.argument("deadline")),
+                            new ServerDelayTester.Listener() {
+                                @Override
+                                public void onResult(int index, long delay) {
+                                    final Map<String, Object> event = new HashMap<>();
+                                    event.put("requestId", batchRequestId);
+                                    event.put("index", index);
+                                    event.put("delay", delay);
+                                    mainHandler.post(() -> {
+                                        if (delayResultSink != null) delayResultSink.success(event);
+                                    });
+                                }
+
+                                @Override
+                                public void onComplete(long[] delays) {
+                                    final List<Long> list = new ArrayList<>(delays.length);
+                                    for (long delay : delays) list.add(delay);
+                                    mainHandler.post(() -> result.success(list));
+                                }
+                            });
+                    break;
+                case "rankServers":
+                    Number samples = call.argument("samples");
+                    Number rankConcurrency = call.argument("concurrency");
+                    Number rankTimeoutMs = call.argument("timeout");
+                    V2rayController.rankV2rayServers(call.argument("configs"), coerceHttpUrl(call.argument("url")),
+                            samples == null ? ServerDelayTester.DEFAULT_SAMPLES : samples.intValue(),
+                            rankConcurrency == null ? ServerDelayTester.DEFAULT_CONCURRENCY : rankConcurrency.intValue(),
+                            rankTimeoutMs == null ? ServerDelayTester.DEFAULT_TIMEOUT_MS : rankTimeoutMs.longValue(),
+                            call.argument("requestId"), deadlineOf(call.argument("deadline")),
+                            (servers, ranking) -> {
+                                final List<Map<String, Object>> items = new ArrayList<>(servers.size());
+                                for (ServerDelayTester.ServerRank rank : servers) {
+                                    Map<String, Object> item = new HashMap<>();
+                                    item.put("index", rank.index);
+                                    item.put("median", rank.median);
+                                    item.put("p90", rank.p90);
+                                    item.put("jitter", rank.jitter);
+                                    item.put("lossRate", rank.lossRate);
+                                    item.put("samples", rank.samples);
+                                    item.put("aborted", rank.aborted);
+                                    item.put("cancelled", rank.cancelled);
+                                    items.add(item);
+                                }
+                                final Map<String, Object> ranked = new HashMap<>();
+                                ranked.put("servers", items);
+                                ranked.put("ranking", ranking);
+                                mainHandler.post(() -> result.success(ranked));
+                            });
+                    break;
+                case "getLatencyHistory":
+                    final List<String> historyConfigs = call.argument("configs");
+                    // Parsing the configs is not for the main thread
+                    executor.submit(() -> {
+                        List<LatencyHistoryStore.ServerHistory> histories = V2rayController.getLatencyHistory(binding.getApplicationContext(), historyConfigs);
+                        final List<Map<String, Object>> items = new ArrayList<>(histories.size());
+                        for (LatencyHistoryStore.ServerHistory history : histories) {
+                            Map<String, Object> item = new HashMap<>();
+                            item.put("samples", history.samples);
+                            item.put("successRate", history.successRate);
+                            item.put("lastDelay", history.lastDelay);
+                            item.put("medianDelay", history.medianDelay);
+                            item.put("lastMeasuredAt", history.lastMeasuredAt);
+                            items.add(item);
                         }
+                        final Map<String, Object> ranked = new HashMap<>();
+                        ranked.put("servers", items);
+                        ranked.put("ranking", LatencyHistoryStore.rank(histories));
+                        mainHandler.post(() -> result.success(ranked));
                     });
                     break;
+                case "clearLatencyHistory":
+                    V2rayController.clearLatencyHistory(binding.getApplicationContext());
+                    result.success(null);
+                    break;
+                case "cancelDelayTests":
+                    result.success(V2rayController.cancelDelayTests(call.argument("requestId")));
+                    break;
+                case "getDelayConfigCacheStats":
+                    DelayConfigCache delayConfigCache = V2rayController.getDelayConfigCache();
+                    Map<String, Object> cacheStats = new HashMap<>();
+                    cacheStats.put("hits", delayConfigCache.getHits());
+                    cacheStats.put("misses", delayConfigCache.getMisses());
+                    cacheStats.put("size", delayConfigCache.size());
+                    result.success(cacheStats);
+                    break;
+                case "getServerStats":
+                    List<Map<String, Object>> serverStats = new ArrayList<>();
+                    for (ServerHealthTracker.ServerStats stats : V2rayController.getServerStats()) {
+                        Map<String, Object> item = new HashMap<>();
+                        item.put("endpoint", stats.endpoint);
+                        item.put("samples", stats.samples);
+                        item.put("failures", stats.failures);
+                        item.put("consecutiveFailures", stats.consecutiveFailures);
+                        item.put("lastDelay", stats.lastDelay);
+                        item.put("averageDelay", stats.averageDelay);
+                        item.put("jitter", stats.jitter);
+                        item.put("blockedFor", stats.blockedForMs);
+                        serverStats.add(item);
+                    }
+                    result.success(serverStats);
+                    break;
                 case "getConnectedServerDelay":
                     executor.submit(() -> {
                         try {
                             AppConfigs.DELAY_URL = coerceHttpUrl(call.argument("url"));
                             throttleDelayCalls();
-                            result.success(V2rayController.getConnectedV2rayServerDelay(binding.getApplicationContext()));
+                            V2rayController.getConnectedV2rayServerDelay(binding.getApplicationContext(),
+                                    delay -> mainHandler.post(() -> result.success(delay)));
                         } catch (Exception e) {
                             result.success(-1);
                         }
                     });
                     break;
+                case "getOutboundTraffic":
+                    V2rayController.getOutboundTraffic(binding.getApplicationContext(), (tags, uplink, downlink) -> {
+                        final Map<String, Object> traffic = new LinkedHashMap<>();
+                        for (int i = 0; i < tags.length; i++) {
+                            Map<String, Object> item = new HashMap<>();
+                            item.put("uplink", uplink[i]);
+                            item.put("downlink", downlink[i]);
+                            traffic.put(tags[i], item);
+                        }
+                        mainHandler.post(() -> result.success(traffic));
+                    });
+                    break;
+                case "getTrafficHistory":
+                    Number window = call.argument("window");
+                    Number resolution = call.argument("resolution");
+                    V2rayController.getTrafficHistory(binding.getApplicationContext(),
+                            window == null ? 60000L : window.longValue(), resolution == null ? 1000L : resolution.longValue(),
+                            (endTime, actualResolution, uplink, downlink) -> {
+                                final Map<String, Object> history = new HashMap<>();
+                                history.put("endTime", endTime);
+                                history.put("resolution", actualResolution);
+                                history.put("uplink", uplink);
+                                history.put("downlink", downlink);
+                                mainHandler.post(() -> result.success(history));
+                            });
+                    break;
+                case "getMetrics":
+                    V2rayController.getMetrics(binding.getApplicationContext(), snapshot -> {
+                        final Map<String, Object> metrics = new LinkedHashMap<>();
+                        for (int i = 0; i < snapshot.names.length; i++) {
+                            final Map<String, Object> metric = new HashMap<>();
+                            metric.put("count", snapshot.get(i, Metrics.FIELD_COUNT));
+                            metric.put("errors", snapshot.get(i, Metrics.FIELD_ERRORS));
+                            metric.put("totalMicros", snapshot.get(i, Metrics.FIELD_TOTAL_NANOS) / 1000);
+                            metric.put("maxMicros", snapshot.get(i, Metrics.FIELD_MAX_NANOS) / 1000);
+                            metric.put("p50Micros", snapshot.percentile(i, 0.5) / 1000);
+                            metric.put("p90Micros", snapshot.percentile(i, 0.9) / 1000);
+                            metric.put("p99Micros", snapshot.percentile(i, 0.99) / 1000);
+                            metrics.put(snapshot.names[i], metric);
+                        }
+                        mainHandler.post(() -> result.success(metrics));
+                    });
+                    break;
+                case "getStartupTraces":
+                    V2rayController.getStartupTraces(binding.getApplicationContext(), packed -> {
+                        final ArrayList<Map<String, Object>> traces = new ArrayList<>();
+                        for (int offset = 0; offset + StartupTrace.STRIDE <= packed.length; offset += StartupTrace.STRIDE) {
+                            // Phases are relative to the earliest one, the request unless the service restarted itself
+                            long origin = Long.MAX_VALUE;
+                            for (int phase = 0; phase < StartupTrace.FIELD_RESULT; phase++) {
+                                if (packed[offset + phase] > 0) origin = Math.min(origin, packed[offset + phase]);
+                            }
+                            final Map<String, Object> phases = new LinkedHashMap<>();
+                            for (int phase = 0; phase < StartupTrace.FIELD_RESULT; phase++) {
+                                if (packed[offset + phase] > 0) {
+                                    phases.put(StartupTrace.PHASE_NAMES[phase], packed[offset + phase] - origin);
+                                }
+                            }
+                            final Map<String, Object> trace = new HashMap<>();
+                            trace.put("connected", packed[offset + StartupTrace.FIELD_RESULT] == StartupTrace.RESULT_CONNECTED);
+                            trace.put("phases", phases);
+                            traces.add(trace);
+                        }
+                        mainHandler.post(() -> result.success(traces));
+                    });
+                    break;
+                case "getTun2socksStats":
+                    V2rayController.getTun2socksStats(binding.getApplicationContext(), packed -> {
+                        final Map<String, Object> stats = new HashMap<>();
+                        stats.put("starts", packed[Tun2socksSupervisor.STATS_STARTS]);
+                        stats.put("restarts", packed[Tun2socksSupervisor.STATS_RESTARTS]);
+                        stats.put("giveUps", packed[Tun2socksSupervisor.STATS_GIVE_UPS]);
+                        stats.put("downtime", packed[Tun2socksSupervisor.STATS_DOWNTIME_MS]);
+                        stats.put("uptime", packed[Tun2socksSupervisor.STATS_UPTIME_MS]);
+                        final ArrayList<Map<String, Object>> exits = new ArrayList<>();
+                        for (int offset = Tun2socksSupervisor.STATS_EXITS; offset + Tun2socksSupervisor.EXIT_STRIDE <= packed.length;
+                             offset += Tun2socksSupervisor.EXIT_STRIDE) {
+                            final Map<String, Object> exit = new HashMap<>();
+                            exit.put("exitCode", packed[offset]);
+                            exit.put("uptime", packed[offset + 1]);
+                            exit.put("time", packed[offset + 2]);
+                            exits.add(exit);
+                        }
+                        stats.put("exits", exits);
+                        mainHandler.post(() -> result.success(stats));
+                    });
+                    break;
+                case "getTun2socksLog":
+                    V2rayController.getTun2socksLog(binding.getApplicationContext(), (lines, counters) -> {
+                        final Map<String, Object> log = new HashMap<>();
+                        log.put("lines", new ArrayList<>(Arrays.asList(lines)));
+                        log.put("lineCount", counters[Tun2socksLogPump.COUNTER_LINES]);
+                        log.put("errors", counters[Tun2socksLogPump.COUNTER_ERRORS]);
+                        log.put("warnings", counters[Tun2socksLogPump.COUNTER_WARNINGS]);
+                        log.put("dropped", counters[Tun2socksLogPump.COUNTER_DROPPED]);
+                        mainHandler.post(() -> result.success(log));
+                    });
+                    break;
+                case "getDailyUsage":
+                    Number fromDay = call.argument("fromDay");
+                    Number toDay = call.argument("toDay");
+                    // A missing bound leaves that side of the range open
+                    V2rayController.getDailyUsage(binding.getApplicationContext(),
+                            fromDay == null ? Integer.MIN_VALUE : fromDay.intValue(),
+                            toDay == null ? Integer.MAX_VALUE : toDay.intValue(),
+                            usage -> mainHandler.post(() -> result.success(usage == null ? new long[0] : usage)));
+                    break;
+                case "getServerUsage":
+                    final List<String> usageConfigs = call.argument("configs");
+                    if (usageConfigs == null || usageConfigs.isEmpty()) {
+                        result.success(new long[0]);
+                        break;
+                    }
+                    // Parsing the configs is not for the main thread
+                    executor.submit(() -> {
+                        try {
+                            V2rayController.getServerUsage(binding.getApplicationContext(), usageConfigs,
+                                    usage -> mainHandler.post(() -> result.success(usage == null ? new long[usageConfigs.size() * 2] : usage)));
+                        } catch (Exception e) {
+                            mainHandler.post(() -> result.success(new long[usageConfigs.size() * 2]));
+                        }
+                    });
+                    break;
+                case "clearDataUsage":
+                    V2rayController.clearUsage(binding.getApplicationContext());
+                    result.success(null);
+                    break;
                 case "getCoreVersion":
                     result.success(V2rayController.getCoreVersion());
                     break;
@@ -158,6 +487,10 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
         lastDelayCallAtMs = SystemClock.elapsedRealtime();
     }
 
+    private static long deadlineOf(Object deadlineArg) {
+        return deadlineArg instanceof Number ? ((Number) deadlineArg).longValue() : 0L;
+    }
+
     private static String coerceHttpUrl(Object urlArg) {
         try {
             String url = urlArg == null ? null : String.valueOf(urlArg);
@@ -177,13 +510,16 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
+        V2rayStatusHub.removeListener(applicationContext, statusListener);
         if (v2rayBroadCastReceiver != null) {
             activity.unregisterReceiver(v2rayBroadCastReceiver);
             v2rayBroadCastReceiver = null;
         }
         vpnControlMethod.setMethodCallHandler(null);
         vpnStatusEvent.setStreamHandler(null);
+        delayResultEvent.setStreamHandler(null);
         executor.shutdown();
+        delayExecutor.shutdown();
     }
 
     @Override
@@ -196,7 +532,7 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
             if (v2rayBroadCastReceiver == null) {
                 v2rayBroadCastReceiver = new V2rayReceiver();
             }
-            IntentFilter filter = new IntentFilter("V2RAY_CONNECTION_INFO");
+            IntentFilter filter = new IntentFilter(ConnectionHealthMonitor.ACTION_HEALTH_EVENT);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
                 activity.registerReceiver(v2rayBroadCastReceiver, filter, Context.RECEIVER_EXPORTED);
             } else {
@@ -221,7 +557,7 @@ public class FlutterV2rayPlugin implements FlutterPlugin, ActivityAware, PluginR
             if (v2rayBroadCastReceiver == null) {
                 v2rayBroadCastReceiver = new V2rayReceiver();
             }
-            IntentFilter filter = new IntentFilter("V2RAY_CONNECTION_INFO");
+            IntentFilter filter = new IntentFilter(ConnectionHealthMonitor.ACTION_HEALTH_EVENT);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
                 activity.registerReceiver(v2rayBroadCastReceiver, filter, Context.RECEIVER_EXPORTED);
             } else {
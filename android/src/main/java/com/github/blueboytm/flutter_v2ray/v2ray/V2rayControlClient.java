@@ -0,0 +1,498 @@
+package com.github.blueboytm.flutter_v2ray.v2ray;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Metrics;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StatusPublisher;
+import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayControlService;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App-process side of {@link V2rayControlService}. The binding is created on first use
+ * and kept until {@link #unbind()}, so repeated requests only cost two binder calls.
+ * While {@link V2rayStatusHub} has listeners a second binding without auto-create carries
+ * the status samples of the core; it attaches whenever a connection runs but does not
+ * start the core process itself.
+ */
+public final class V2rayControlClient {
+    private static final String TAG = V2rayControlClient.class.getSimpleName();
+    private volatile static V2rayControlClient INSTANCE;
+
+    public interface DelayCallback {
+        void onDelay(long delay);
+    }
+
+    public interface SwitchCallback {
+        void onSwitched(boolean switched);
+    }
+
+    public interface OutboundTrafficCallback {
+        /**
+         * The arrays share the tag indices and are empty if no connection is running.
+         */
+        void onOutboundTraffic(String[] tags, long[] uplink, long[] downlink);
+    }
+
+    public interface TrafficHistoryCallback {
+        /**
+         * Bytes per point, oldest first, the newest point ends at {@code endTime} (wall
+         * clock). The arrays are empty if the core process could not be reached.
+         */
+        void onTrafficHistory(long endTime, long resolution, long[] uplink, long[] downlink);
+    }
+
+    public interface MetricsCallback {
+        /**
+         * The metrics of the core process, null if it could not be reached.
+         */
+        void onMetrics(Metrics.Snapshot snapshot);
+    }
+
+    public interface StartupTracesCallback {
+        /**
+         * Packed traces, see {@link com.github.blueboytm.flutter_v2ray.v2ray.core.StartupTrace}.
+         * Null if the core process could not be reached.
+         */
+        void onStartupTraces(long[] traces);
+    }
+
+    public interface Tun2socksStatsCallback {
+        /**
+         * Packed stats, see {@link com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksSupervisor}.
+         * Null if the core process could not be reached.
+         */
+        void onTun2socksStats(long[] stats);
+    }
+
+    public interface Tun2socksLogCallback {
+        /**
+         * The captured lines, oldest first, and the counters, see
+         * {@link com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksLogPump}. Both null if
+         * the core process could not be reached.
+         */
+        void onTun2socksLog(String[] lines, long[] counters);
+    }
+
+    public interface UsageCallback {
+        /**
+         * Packed usage, see {@link com.github.blueboytm.flutter_v2ray.v2ray.core.UsageLog}.
+         * Null if the core process could not be reached.
+         */
+        void onUsage(long[] usage);
+    }
+
+    // Receives the reply data, or null on timeout or when the core process is gone
+    private interface ReplyCallback {
+        void onReply(Bundle data);
+    }
+
+    private final Context context;
+    private final Handler replyHandler;
+    private final Messenger replyMessenger;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    // Requests issued before the service is connected, guarded by the client
+    private final List<Message> queuedMessages = new ArrayList<>();
+    private volatile Messenger service;
+    private boolean bound = false;
+    private volatile boolean statusSubscribed = false;
+    private volatile Messenger statusService;
+    private boolean statusBound = false;
+    // Whether the last status handed to the hub was a disconnected one, touched by the main
+    // and reply threads
+    private volatile boolean statusDisconnected = true;
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            final List<Message> queued;
+            synchronized (V2rayControlClient.this) {
+                service = new Messenger(binder);
+                queued = new ArrayList<>(queuedMessages);
+                queuedMessages.clear();
+            }
+            for (Message message : queued) {
+                send(message);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+            failAllPending();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            unbind();
+        }
+    };
+
+    private final ServiceConnection statusConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            final Messenger target = new Messenger(binder);
+            statusService = target;
+            // Every new control service starts without subscribers
+            if (statusSubscribed) {
+                sendStatus(target, statusMessage(V2rayControlService.MSG_SUBSCRIBE_STATUS));
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            statusService = null;
+            // The connection ended or the core died with its process, the sampler cannot
+            // report it anymore
+            if (statusSubscribed && !statusDisconnected) {
+                statusDisconnected = true;
+                V2rayStatusHub.dispatch(StatusPublisher.disconnected());
+            }
+            // A binding without auto-create is not carried over to the next control service
+            rebindStatus();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            rebindStatus();
+        }
+    };
+
+    private V2rayControlClient(Context context) {
+        this.context = context.getApplicationContext();
+        HandlerThread replyThread = new HandlerThread("V2RAY_CONTROL_CLIENT");
+        replyThread.start();
+        replyHandler = new Handler(replyThread.getLooper(), this::handleReply);
+        replyMessenger = new Messenger(replyHandler);
+    }
+
+    public static V2rayControlClient getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (V2rayControlClient.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new V2rayControlClient(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Asks the core process to measure the connected server. The callback runs exactly once
+     * on the client's reply thread, with -1 on timeout. Returns false without calling the
+     * callback if the control service cannot be bound.
+     */
+    public boolean measureConnectedDelay(final String url, final long timeoutMs, final DelayCallback callback) {
+        Bundle data = new Bundle();
+        data.putString("DELAY_URL", url);
+        return request(V2rayControlService.MSG_MEASURE_CONNECTED_DELAY, data, timeoutMs,
+                reply -> callback.onDelay(reply == null ? -1L : reply.getLong("DELAY", -1L)));
+    }
+
+    /**
+     * Asks the core process to restart only the core with {@code v2rayConfig}. The callback
+     * gets false if the running tunnel cannot be kept for it or the restart failed, in which
+     * case the previous config is still running. Returns false without calling the callback
+     * if the control service cannot be bound.
+     */
+    public boolean switchServer(final V2rayConfig v2rayConfig, final long timeoutMs, final SwitchCallback callback) {
+        Bundle data = new Bundle();
+        data.putSerializable("V2RAY_CONFIG", v2rayConfig);
+        return request(V2rayControlService.MSG_SWITCH_SERVER, data, timeoutMs,
+                reply -> callback.onSwitched(reply != null && reply.getBoolean("SWITCHED", false)));
+    }
+
+    /**
+     * Asks the core process for the traffic per outbound tag of the running connection.
+     * Returns false without calling the callback if the control service cannot be bound.
+     */
+    public boolean getOutboundTraffic(final long timeoutMs, final OutboundTrafficCallback callback) {
+        return request(V2rayControlService.MSG_GET_OUTBOUND_TRAFFIC, new Bundle(), timeoutMs, reply -> {
+            final String[] tags = reply == null ? null : reply.getStringArray("TAGS");
+            if (tags == null) {
+                callback.onOutboundTraffic(new String[0], new long[0], new long[0]);
+            } else {
+                callback.onOutboundTraffic(tags, reply.getLongArray("UPLINK"), reply.getLongArray("DOWNLINK"));
+            }
+        });
+    }
+
+    /**
+     * Asks the core process for the traffic of the last {@code windowMs} in points of
+     * {@code resolutionMs}. Returns false without calling the callback if the control
+     * service cannot be bound.
+     */
+    public boolean getTrafficHistory(final long windowMs, final long resolutionMs, final long timeoutMs, final TrafficHistoryCallback callback) {
+        Bundle data = new Bundle();
+        data.putLong("WINDOW", windowMs);
+        data.putLong("RESOLUTION", resolutionMs);
+        return request(V2rayControlService.MSG_GET_TRAFFIC_HISTORY, data, timeoutMs, reply -> {
+            final long[] uplink = reply == null ? null : reply.getLongArray("UPLINK");
+            if (uplink == null) {
+                callback.onTrafficHistory(System.currentTimeMillis(), resolutionMs, new long[0], new long[0]);
+            } else {
+                callback.onTrafficHistory(reply.getLong("END_TIME"), reply.getLong("RESOLUTION"), uplink, reply.getLongArray("DOWNLINK"));
+            }
+        });
+    }
+
+    /**
+     * Asks the core process for {@code [day, uplink, downlink]} triples of the epoch days
+     * from {@code fromDay} to {@code toDay}. Returns false without calling the callback if
+     * the control service cannot be bound.
+     */
+    public boolean getDailyUsage(final int fromDay, final int toDay, final long timeoutMs, final UsageCallback callback) {
+        Bundle data = new Bundle();
+        data.putInt("FROM_DAY", fromDay);
+        data.putInt("TO_DAY", toDay);
+        return request(V2rayControlService.MSG_GET_DAILY_USAGE, data, timeoutMs,
+                reply -> callback.onUsage(reply == null ? null : reply.getLongArray("USAGE")));
+    }
+
+    /**
+     * Asks the core process for {@code [uplink, downlink]} pairs of the servers with the
+     * given fingerprints. Returns false without calling the callback if the control
+     * service cannot be bound.
+     */
+    public boolean getServerUsage(final long[] fingerprints, final long timeoutMs, final UsageCallback callback) {
+        Bundle data = new Bundle();
+        data.putLongArray("SERVERS", fingerprints);
+        return request(V2rayControlService.MSG_GET_SERVER_USAGE, data, timeoutMs,
+                reply -> callback.onUsage(reply == null ? null : reply.getLongArray("USAGE")));
+    }
+
+    public boolean getMetrics(final long timeoutMs, final MetricsCallback callback) {
+        return request(V2rayControlService.MSG_GET_METRICS, new Bundle(), timeoutMs,
+                reply -> callback.onMetrics(reply == null ? null
+                        : new Metrics.Snapshot(reply.getStringArray("NAMES"), reply.getLongArray("VALUES"))));
+    }
+
+    public boolean getStartupTraces(final long timeoutMs, final StartupTracesCallback callback) {
+        return request(V2rayControlService.MSG_GET_STARTUP_TRACES, new Bundle(), timeoutMs,
+                reply -> callback.onStartupTraces(reply == null ? null : reply.getLongArray("TRACES")));
+    }
+
+    public boolean getTun2socksStats(final long timeoutMs, final Tun2socksStatsCallback callback) {
+        return request(V2rayControlService.MSG_GET_TUN2SOCKS_STATS, new Bundle(), timeoutMs,
+                reply -> callback.onTun2socksStats(reply == null ? null : reply.getLongArray("STATS")));
+    }
+
+    public boolean getTun2socksLog(final long timeoutMs, final Tun2socksLogCallback callback) {
+        return request(V2rayControlService.MSG_GET_TUN2SOCKS_LOG, new Bundle(), timeoutMs, reply -> {
+            if (reply == null) {
+                callback.onTun2socksLog(null, null);
+            } else {
+                callback.onTun2socksLog(reply.getStringArray("LINES"), reply.getLongArray("COUNTERS"));
+            }
+        });
+    }
+
+    public boolean clearUsage() {
+        return dispatch(Message.obtain(null, V2rayControlService.MSG_CLEAR_USAGE));
+    }
+
+    private boolean request(final int what, final Bundle data, final long timeoutMs, final ReplyCallback callback) {
+        final int requestId = nextRequestId.incrementAndGet();
+        final PendingRequest request = new PendingRequest(callback);
+        pendingRequests.put(requestId, request);
+
+        Message message = Message.obtain(null, what, requestId, 0);
+        message.setData(data);
+        message.replyTo = replyMessenger;
+        if (!dispatch(message)) {
+            pendingRequests.remove(requestId);
+            return false;
+        }
+        replyHandler.postDelayed(() -> complete(requestId, null), timeoutMs);
+        return true;
+    }
+
+    /**
+     * Starts delivering the status samples of the core to {@link V2rayStatusHub} while a
+     * connection runs. The latest sample is delivered as soon as it is attached.
+     */
+    synchronized void subscribeStatus() {
+        statusSubscribed = true;
+        final Messenger target = statusService;
+        if (target != null) {
+            sendStatus(target, statusMessage(V2rayControlService.MSG_SUBSCRIBE_STATUS));
+        } else if (!statusBound) {
+            bindStatus();
+        }
+    }
+
+    synchronized void unsubscribeStatus() {
+        statusSubscribed = false;
+        final Messenger target = statusService;
+        if (target != null) {
+            sendStatus(target, statusMessage(V2rayControlService.MSG_UNSUBSCRIBE_STATUS));
+        }
+        unbindStatus();
+    }
+
+    private synchronized void rebindStatus() {
+        unbindStatus();
+        if (statusSubscribed) {
+            bindStatus();
+        }
+    }
+
+    // Without BIND_AUTO_CREATE, so only a running connection keeps the core process alive
+    private void bindStatus() {
+        try {
+            statusBound = context.bindService(new Intent(context, V2rayControlService.class), statusConnection, 0);
+        } catch (Exception e) {
+            Log.e(TAG, "bindService failed => ", e);
+            statusBound = false;
+        }
+        if (!statusBound) {
+            Log.w(TAG, "status subscription failed => control service cannot be bound");
+        }
+    }
+
+    private void unbindStatus() {
+        if (statusBound) {
+            try {
+                context.unbindService(statusConnection);
+            } catch (Exception e) {
+                Log.w(TAG, "unbind failed => " + e.getMessage());
+            }
+        }
+        statusBound = false;
+        statusService = null;
+    }
+
+    /**
+     * Releases the binding so the core process can exit. Pending requests complete as
+     * failed. The status binding is not affected.
+     */
+    public synchronized void unbind() {
+        if (bound) {
+            try {
+                context.unbindService(connection);
+            } catch (Exception e) {
+                Log.w(TAG, "unbind failed => " + e.getMessage());
+            }
+        }
+        bound = false;
+        service = null;
+        queuedMessages.clear();
+        failAllPending();
+    }
+
+    private synchronized boolean dispatch(Message message) {
+        if (service != null) {
+            return send(message);
+        }
+        if (!bound) {
+            try {
+                bound = context.bindService(new Intent(context, V2rayControlService.class), connection, Context.BIND_AUTO_CREATE);
+            } catch (Exception e) {
+                Log.e(TAG, "bindService failed => ", e);
+                bound = false;
+            }
+            if (!bound) {
+                return false;
+            }
+        }
+        queuedMessages.add(message);
+        return true;
+    }
+
+    private boolean send(Message message) {
+        final Messenger target = service;
+        if (target == null) {
+            complete(message.arg1, null);
+            return true;
+        }
+        try {
+            target.send(message);
+        } catch (RemoteException e) {
+            Log.w(TAG, "send failed => core process is gone");
+            complete(message.arg1, null);
+        }
+        return true;
+    }
+
+    private boolean handleReply(Message msg) {
+        if (msg.what == V2rayControlService.MSG_CONNECTED_DELAY_RESULT || msg.what == V2rayControlService.MSG_SWITCH_SERVER_RESULT
+                || msg.what == V2rayControlService.MSG_OUTBOUND_TRAFFIC_RESULT || msg.what == V2rayControlService.MSG_TRAFFIC_HISTORY_RESULT
+                || msg.what == V2rayControlService.MSG_USAGE_RESULT || msg.what == V2rayControlService.MSG_METRICS_RESULT
+                || msg.what == V2rayControlService.MSG_STARTUP_TRACES_RESULT || msg.what == V2rayControlService.MSG_TUN2SOCKS_STATS_RESULT
+                || msg.what == V2rayControlService.MSG_TUN2SOCKS_LOG_RESULT) {
+            PendingRequest request = pendingRequests.get(msg.arg1);
+            if (request != null) {
+                Metrics.CONTROL_OVERHEAD.record(request.startedAtNanos + msg.getData().getLong("HANDLING_NANOS", 0L), true);
+            }
+            complete(msg.arg1, msg.getData());
+            return true;
+        }
+        if (msg.what == V2rayControlService.MSG_STATUS) {
+            final long[] status = msg.getData().getLongArray("STATUS");
+            if (statusSubscribed && status != null) {
+                statusDisconnected = status[StatusPublisher.STATUS_STATE] == AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED.ordinal();
+                V2rayStatusHub.dispatch(status);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void complete(int requestId, Bundle data) {
+        PendingRequest request = pendingRequests.remove(requestId);
+        if (request != null) {
+            Metrics.CONTROL_REQUEST.record(request.startedAtNanos, data != null);
+            try {
+                request.callback.onReply(data);
+            } catch (Exception e) {
+                Log.w(TAG, "reply callback failed => " + e.getMessage());
+            }
+        }
+    }
+
+    private static void sendStatus(final Messenger target, final Message message) {
+        try {
+            target.send(message);
+        } catch (RemoteException e) {
+            Log.w(TAG, "status send failed => core process is gone");
+        }
+    }
+
+    private Message statusMessage(final int what) {
+        Message message = Message.obtain(null, what);
+        message.replyTo = replyMessenger;
+        return message;
+    }
+
+    private void failAllPending() {
+        for (Integer requestId : new ArrayList<>(pendingRequests.keySet())) {
+            complete(requestId, null);
+        }
+    }
+
+    private static final class PendingRequest {
+        final ReplyCallback callback;
+        final long startedAtNanos = Metrics.now();
+
+        PendingRequest(ReplyCallback callback) {
+            this.callback = callback;
+        }
+    }
+}
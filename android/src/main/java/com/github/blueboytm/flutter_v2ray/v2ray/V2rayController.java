@@ -5,36 +5,84 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
+import android.util.Log;
 
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ConnectionHealthMonitor;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.DelayConfigCache;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.DelayTestRegistry;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.LatencyHistoryStore;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ServerDelayTester;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Metrics;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ServerHealthTracker;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StartupTrace;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksLogPump;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksSupervisor;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.UsageLog;
 import com.github.blueboytm.flutter_v2ray.v2ray.core.V2rayCoreManager;
 import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayProxyOnlyService;
 import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayVPNService;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.Utilities;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import libv2ray.Libv2ray;
 
 public class V2rayController {
+    private static final long CONNECTED_DELAY_TIMEOUT_MS = 3000L;
+    private static final long SWITCH_SERVER_TIMEOUT_MS = 10000L;
+    private static final long OUTBOUND_TRAFFIC_TIMEOUT_MS = 3000L;
+    private static final long TRAFFIC_HISTORY_TIMEOUT_MS = 3000L;
+    private static final long USAGE_TIMEOUT_MS = 5000L;
+    private static final long METRICS_TIMEOUT_MS = 3000L;
+    private static final long STARTUP_TRACES_TIMEOUT_MS = 3000L;
+    private static final long TUN2SOCKS_STATS_TIMEOUT_MS = 3000L;
+    private static final long TUN2SOCKS_LOG_TIMEOUT_MS = 3000L;
+    // Candidate 0 of the failover in the core process, its SERVER_INDEX counts from this one
+    private static volatile V2rayConfig failoverPrimary = null;
 
     public static void init(final Context context, final int app_icon, final String app_name) {
-        Utilities.copyAssets(context);
+        final Context appContext = context.getApplicationContext();
+        // Checks the manifest only unless the app was updated, the core process waits for it if needed
+        new Thread(() -> Utilities.copyAssets(appContext), "V2RAY_ASSET_INSTALL").start();
+        LatencyHistoryStore.init(context);
         AppConfigs.APPLICATION_ICON = app_icon;
         AppConfigs.APPLICATION_NAME = app_name;
 
         BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context arg0, Intent arg1) {
+                if (ConnectionHealthMonitor.ACTION_HEALTH_EVENT.equals(arg1.getAction())) {
+                    onHealthEvent(arg1);
+                    return;
+                }
                 AppConfigs.V2RAY_STATE = (AppConfigs.V2RAY_STATES) arg1.getExtras().getSerializable("STATE");
             }
         };
+        IntentFilter filter = new IntentFilter("V2RAY_CONNECTION_INFO");
+        filter.addAction(ConnectionHealthMonitor.ACTION_HEALTH_EVENT);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            context.registerReceiver(receiver, new IntentFilter("V2RAY_CONNECTION_INFO"), Context.RECEIVER_EXPORTED);
+            context.registerReceiver(receiver, filter, Context.RECEIVER_EXPORTED);
         } else {
-            context.registerReceiver(receiver, new IntentFilter("V2RAY_CONNECTION_INFO"));
+            context.registerReceiver(receiver, filter);
+        }
+    }
+
+    /**
+     * Follows a failover of the core process, so switches and delay checks of this process
+     * work with the server that is actually connected.
+     */
+    private static void onHealthEvent(final Intent intent) {
+        if (intent.getSerializableExtra("EVENT") != ConnectionHealthMonitor.HealthEvent.FAILOVER) return;
+        final V2rayConfig primary = failoverPrimary;
+        if (primary == null) return;
+        final V2rayConfig active = primary.getFailoverCandidate(intent.getIntExtra("SERVER_INDEX", -1));
+        if (active != null) {
+            AppConfigs.V2RAY_CONFIG = active;
         }
     }
 
@@ -45,10 +93,13 @@ public class V2rayController {
     }
 
     public static void StartV2ray(final Context context, final String remark, final String config, final ArrayList<String> blocked_apps, final ArrayList<String> bypass_subnets) {
+        final long[] startupTrace = StartupTrace.create();
         AppConfigs.V2RAY_CONFIG = Utilities.parseV2rayJsonFile(remark, config, blocked_apps, bypass_subnets);
+        failoverPrimary = AppConfigs.V2RAY_CONFIG;
         if (AppConfigs.V2RAY_CONFIG == null) {
             return;
         }
+        StartupTrace.stamp(startupTrace, StartupTrace.PHASE_CONFIG_PARSED);
         Intent start_intent;
         if (AppConfigs.V2RAY_CONNECTION_MODE == AppConfigs.V2RAY_CONNECTION_MODES.PROXY_ONLY) {
             start_intent = new Intent(context, V2rayProxyOnlyService.class);
@@ -59,6 +110,8 @@ public class V2rayController {
         }
         start_intent.putExtra("COMMAND", AppConfigs.V2RAY_SERVICE_COMMANDS.START_SERVICE);
         start_intent.putExtra("V2RAY_CONFIG", AppConfigs.V2RAY_CONFIG);
+        StartupTrace.stamp(startupTrace, StartupTrace.PHASE_SERVICE_REQUESTED);
+        start_intent.putExtra("STARTUP_TRACE", startupTrace);
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.N_MR1) {
             context.startForegroundService(start_intent);
         } else {
@@ -66,6 +119,42 @@ public class V2rayController {
         }
     }
 
+    /**
+     * Switches the running connection to {@code config}. If routes, DNS servers, blocked apps
+     * and the socks port are unchanged, only the core is restarted and the VPN session is
+     * kept; otherwise, or if that fails, the connection is restarted like
+     * {@link #StartV2ray}. The callback gets true for a core-only switch.
+     */
+    public static void switchServer(final Context context, final String remark, final String config, final ArrayList<String> blocked_apps,
+                                    final ArrayList<String> bypass_subnets, final V2rayControlClient.SwitchCallback callback) {
+        final V2rayConfig running = AppConfigs.V2RAY_CONFIG;
+        if (running == null || getConnectionState() != AppConfigs.V2RAY_STATES.V2RAY_CONNECTED) {
+            StartV2ray(context, remark, config, blocked_apps, bypass_subnets);
+            callback.onSwitched(false);
+            return;
+        }
+        final ArrayList<String> blockedApps = blocked_apps == null ? running.BLOCKED_APPS : blocked_apps;
+        final ArrayList<String> bypassSubnets = bypass_subnets == null ? running.BYPASS_SUBNETS : bypass_subnets;
+        final V2rayConfig v2rayConfig = Utilities.parseV2rayJsonFile(remark, config, blockedApps, bypassSubnets);
+        if (v2rayConfig == null) {
+            callback.onSwitched(false);
+            return;
+        }
+        final V2rayControlClient.SwitchCallback fallback = switched -> {
+            if (switched) {
+                AppConfigs.V2RAY_CONFIG = v2rayConfig;
+                failoverPrimary = v2rayConfig;
+            } else {
+                StartV2ray(context, remark, config, blockedApps, bypassSubnets);
+            }
+            callback.onSwitched(switched);
+        };
+        if (!v2rayConfig.isTunCompatibleWith(running)
+                || !V2rayControlClient.getInstance(context).switchServer(v2rayConfig, SWITCH_SERVER_TIMEOUT_MS, fallback)) {
+            fallback.onSwitched(false);
+        }
+    }
+
     public static void StopV2ray(final Context context) {
         Intent stop_intent;
         if (AppConfigs.V2RAY_CONNECTION_MODE == AppConfigs.V2RAY_CONNECTION_MODES.PROXY_ONLY) {
@@ -77,13 +166,64 @@ public class V2rayController {
         }
         stop_intent.putExtra("COMMAND", AppConfigs.V2RAY_SERVICE_COMMANDS.STOP_SERVICE);
         context.startService(stop_intent);
+        V2rayControlClient.getInstance(context).unbind();
         AppConfigs.V2RAY_CONFIG = null;
+        failoverPrimary = null;
     }
 
     public static long getConnectedV2rayServerDelay(Context context) {
+        final long[] delay = {-1};
+        final CountDownLatch latch = new CountDownLatch(1);
+        getConnectedV2rayServerDelay(context, result -> {
+            delay[0] = result;
+            latch.countDown();
+        });
+        try {
+            latch.await(CONNECTED_DELAY_TIMEOUT_MS + 500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return delay[0];
+    }
+
+    /**
+     * Measures the connected server through {@link V2rayControlClient} and reports the result
+     * to {@code callback}, falling back to the broadcast round trip when the control service
+     * cannot be bound. The fallback blocks the calling thread.
+     */
+    public static void getConnectedV2rayServerDelay(final Context context, final V2rayControlClient.DelayCallback callback) {
         if (V2rayController.getConnectionState() != AppConfigs.V2RAY_STATES.V2RAY_CONNECTED) {
-            return -1;
+            callback.onDelay(-1);
+            return;
         }
+        final V2rayConfig v2rayConfig = AppConfigs.V2RAY_CONFIG;
+        final String endpoint = v2rayConfig == null ? null : v2rayConfig.CONNECTED_V2RAY_SERVER_ADDRESS + ":" + v2rayConfig.CONNECTED_V2RAY_SERVER_PORT;
+        final ServerHealthTracker serverHealthTracker = V2rayCoreManager.getInstance().getServerHealthTracker();
+        if (!serverHealthTracker.allowRequest(endpoint)) {
+            callback.onDelay(-1);
+            return;
+        }
+        final V2rayControlClient.DelayCallback trackedCallback = delay -> {
+            if (delay >= 0) {
+                serverHealthTracker.recordSuccess(endpoint, delay);
+            } else {
+                serverHealthTracker.recordFailure(endpoint);
+            }
+            callback.onDelay(delay);
+        };
+        final long startedAt = Metrics.now();
+        if (!V2rayControlClient.getInstance(context).measureConnectedDelay(AppConfigs.DELAY_URL, CONNECTED_DELAY_TIMEOUT_MS, delay -> {
+            Metrics.CONNECTED_DELAY_BINDER.record(startedAt, delay >= 0);
+            trackedCallback.onDelay(delay);
+        })) {
+            final long fallbackAt = Metrics.now();
+            final long delay = requestConnectedV2rayServerDelay(context);
+            Metrics.CONNECTED_DELAY_BROADCAST.record(fallbackAt, delay >= 0);
+            trackedCallback.onDelay(delay);
+        }
+    }
+
+    private static long requestConnectedV2rayServerDelay(Context context) {
         Intent check_delay;
         if (AppConfigs.V2RAY_CONNECTION_MODE == AppConfigs.V2RAY_CONNECTION_MODES.PROXY_ONLY) {
             check_delay = new Intent(context, V2rayProxyOnlyService.class);
@@ -134,10 +274,11 @@ public class V2rayController {
 
         // Now trigger the measurement
         check_delay.putExtra("COMMAND", AppConfigs.V2RAY_SERVICE_COMMANDS.MEASURE_DELAY);
+        check_delay.putExtra("DELAY_URL", AppConfigs.DELAY_URL);
         context.startService(check_delay);
 
         try {
-            boolean received = latch.await(3000, TimeUnit.MILLISECONDS);
+            boolean received = latch.await(CONNECTED_DELAY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             if (!received) {
                 return -1;
             }
@@ -155,10 +296,155 @@ public class V2rayController {
         return delay[0];
     }
 
+    /**
+     * Reports the traffic per outbound tag of the running connection, with empty arrays if
+     * there is none or the core process cannot be reached.
+     */
+    public static void getOutboundTraffic(final Context context, final V2rayControlClient.OutboundTrafficCallback callback) {
+        if (!V2rayControlClient.getInstance(context).getOutboundTraffic(OUTBOUND_TRAFFIC_TIMEOUT_MS, callback)) {
+            callback.onOutboundTraffic(new String[0], new long[0], new long[0]);
+        }
+    }
+
+    /**
+     * Reports the traffic of the last {@code windowMs} in points of {@code resolutionMs},
+     * with empty arrays if the core process cannot be reached.
+     */
+    public static void getTrafficHistory(final Context context, final long windowMs, final long resolutionMs,
+                                         final V2rayControlClient.TrafficHistoryCallback callback) {
+        if (!V2rayControlClient.getInstance(context).getTrafficHistory(windowMs, resolutionMs, TRAFFIC_HISTORY_TIMEOUT_MS, callback)) {
+            callback.onTrafficHistory(System.currentTimeMillis(), resolutionMs, new long[0], new long[0]);
+        }
+    }
+
+    /**
+     * Reports the metrics of the app process added up with those of the core process, or
+     * only the app process ones if the core process cannot be reached.
+     */
+    public static void getMetrics(final Context context, final V2rayControlClient.MetricsCallback callback) {
+        if (!V2rayControlClient.getInstance(context).getMetrics(METRICS_TIMEOUT_MS,
+                core -> callback.onMetrics(Metrics.Snapshot.merge(Metrics.snapshot(), core)))) {
+            callback.onMetrics(Metrics.snapshot());
+        }
+    }
+
+    /**
+     * Reports the traces of the last connection starts, oldest first, or an empty array if
+     * the core process cannot be reached.
+     */
+    public static void getStartupTraces(final Context context, final V2rayControlClient.StartupTracesCallback callback) {
+        if (!V2rayControlClient.getInstance(context).getStartupTraces(STARTUP_TRACES_TIMEOUT_MS,
+                traces -> callback.onStartupTraces(traces == null ? new long[0] : traces))) {
+            callback.onStartupTraces(new long[0]);
+        }
+    }
+
+    /**
+     * Reports the restarts, downtime and recent exits of tun2socks, all zero if the core
+     * process cannot be reached.
+     */
+    public static void getTun2socksStats(final Context context, final V2rayControlClient.Tun2socksStatsCallback callback) {
+        final long[] empty = new long[Tun2socksSupervisor.STATS_EXITS];
+        if (!V2rayControlClient.getInstance(context).getTun2socksStats(TUN2SOCKS_STATS_TIMEOUT_MS,
+                stats -> callback.onTun2socksStats(stats == null || stats.length < empty.length ? empty : stats))) {
+            callback.onTun2socksStats(empty);
+        }
+    }
+
+    /**
+     * Reports the captured tun2socks output and its counters, empty if the core process
+     * cannot be reached.
+     */
+    public static void getTun2socksLog(final Context context, final V2rayControlClient.Tun2socksLogCallback callback) {
+        if (!V2rayControlClient.getInstance(context).getTun2socksLog(TUN2SOCKS_LOG_TIMEOUT_MS, (lines, counters) -> callback.onTun2socksLog(
+                lines == null ? new String[0] : lines,
+                counters == null || counters.length < Tun2socksLogPump.COUNTERS ? new long[Tun2socksLogPump.COUNTERS] : counters))) {
+            callback.onTun2socksLog(new String[0], new long[Tun2socksLogPump.COUNTERS]);
+        }
+    }
+
+    /**
+     * Reports the traffic of the local days from {@code fromDay} to {@code toDay} as
+     * {@code [day, uplink, downlink]} triples, null if the core process cannot be reached.
+     */
+    public static void getDailyUsage(final Context context, final int fromDay, final int toDay, final V2rayControlClient.UsageCallback callback) {
+        if (!V2rayControlClient.getInstance(context).getDailyUsage(fromDay, toDay, USAGE_TIMEOUT_MS, callback)) {
+            callback.onUsage(null);
+        }
+    }
+
+    /**
+     * Reports the traffic of the server of every config as {@code [uplink, downlink]} pairs
+     * in the same order, null if the core process cannot be reached.
+     */
+    public static void getServerUsage(final Context context, final List<String> configs, final V2rayControlClient.UsageCallback callback) {
+        final long[] fingerprints = new long[configs.size()];
+        for (int i = 0; i < fingerprints.length; i++) {
+            final V2rayConfig v2rayConfig = Utilities.parseV2rayJsonFile("", configs.get(i), null, null);
+            // Matches no server, so the config gets zeros
+            fingerprints[i] = v2rayConfig == null ? 0L : LatencyHistoryStore.fingerprint(UsageLog.serverKey(v2rayConfig));
+        }
+        if (!V2rayControlClient.getInstance(context).getServerUsage(fingerprints, USAGE_TIMEOUT_MS, callback)) {
+            callback.onUsage(null);
+        }
+    }
+
+    public static void clearUsage(final Context context) {
+        if (!V2rayControlClient.getInstance(context).clearUsage()) {
+            Log.w(V2rayController.class.getSimpleName(), "clearUsage failed => control service cannot be bound");
+        }
+    }
+
     public static long getV2rayServerDelay(final String config, final String url) {
         return V2rayCoreManager.getInstance().getV2rayServerDelay(config, url);
     }
 
+    public static void getV2rayServerDelays(final List<String> configs, final String url, final int concurrency, final long timeoutMs,
+                                            final String requestId, final long deadlineMs, final ServerDelayTester.Listener listener) {
+        ServerDelayTester.runBatch(configs, url, concurrency, timeoutMs, DelayTestRegistry.register(requestId, deadlineMs), listener);
+    }
+
+    public static void rankV2rayServers(final List<String> configs, final String url, final int samples, final int concurrency, final long timeoutMs,
+                                        final String requestId, final long deadlineMs, final ServerDelayTester.RankingListener listener) {
+        ServerDelayTester.rankServers(configs, url, samples, concurrency, timeoutMs, DelayTestRegistry.register(requestId, deadlineMs), listener);
+    }
+
+    /**
+     * Cancels the delay tests started with {@code requestId}, or all of them when it is null.
+     * Returns the number of cancelled requests.
+     */
+    public static int cancelDelayTests(final String requestId) {
+        return DelayTestRegistry.cancel(requestId);
+    }
+
+    /**
+     * Returns the stored latency history of every config, in the same order. Configs that
+     * were never measured have no samples.
+     */
+    public static List<LatencyHistoryStore.ServerHistory> getLatencyHistory(final Context context, final List<String> configs) {
+        final List<String> keys = new ArrayList<>(configs.size());
+        for (String config : configs) {
+            keys.add(V2rayCoreManager.getHistoryKey(config));
+        }
+        return LatencyHistoryStore.init(context).getHistory(keys);
+    }
+
+    public static void clearLatencyHistory(final Context context) {
+        LatencyHistoryStore.init(context).clear();
+    }
+
+    public static void setDelayResultTtl(final long ttlMs) {
+        V2rayCoreManager.getInstance().setDelayResultTtl(ttlMs);
+    }
+
+    public static List<ServerHealthTracker.ServerStats> getServerStats() {
+        return V2rayCoreManager.getInstance().getServerHealthTracker().getStats();
+    }
+
+    public static DelayConfigCache getDelayConfigCache() {
+        return V2rayCoreManager.getInstance().getDelayConfigCache();
+    }
+
     public static AppConfigs.V2RAY_CONNECTION_MODES getConnectionMode() {
         return AppConfigs.V2RAY_CONNECTION_MODE;
     }
@@ -5,7 +5,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
-import java.util.ArrayList;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.ConnectionHealthMonitor;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 import io.flutter.plugin.common.EventChannel;
 
@@ -15,14 +19,21 @@ public class V2rayReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         try {
-            ArrayList<String> list = new ArrayList<>();
-            list.add(intent.getExtras().getString("DURATION"));
-            list.add(String.valueOf(intent.getLongExtra("UPLOAD_SPEED", 0)));
-            list.add(String.valueOf(intent.getLongExtra("DOWNLOAD_SPEED", 0)));
-            list.add(String.valueOf(intent.getLongExtra("UPLOAD_TRAFFIC", 0)));
-            list.add(String.valueOf(intent.getLongExtra("DOWNLOAD_TRAFFIC", 0)));
-            list.add(intent.getExtras().getSerializable("STATE").toString().substring(6));
-            vpnStatusSink.success(list);
+            if (ConnectionHealthMonitor.ACTION_HEALTH_EVENT.equals(intent.getAction())) {
+                Map<String, Object> event = new HashMap<>();
+                event.put("type", "health");
+                event.put("event", intent.getSerializableExtra("EVENT").toString().toLowerCase(Locale.ROOT));
+                event.put("delay", intent.getLongExtra("DELAY", -1L));
+                event.put("consecutiveFailures", intent.getIntExtra("CONSECUTIVE_FAILURES", 0));
+                if (intent.hasExtra("DOWN_FOR")) {
+                    event.put("downFor", intent.getLongExtra("DOWN_FOR", 0L));
+                }
+                if (intent.hasExtra("SERVER_INDEX")) {
+                    event.put("serverIndex", intent.getIntExtra("SERVER_INDEX", -1));
+                    event.put("failoverTime", intent.getLongExtra("FAILOVER_TIME", 0L));
+                }
+                vpnStatusSink.success(event);
+            }
         } catch (Exception e) {
             Log.e("V2rayReceiver", "onReceive failed", e);
         }
@@ -0,0 +1,51 @@
+package com.github.blueboytm.flutter_v2ray.v2ray;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands the status samples of the core to listeners in the app process. The hub is
+ * subscribed to the core process while it has at least one listener, but only receives
+ * samples while a connection runs and never starts the core process for them; samples
+ * arrive as packed arrays, see {@link com.github.blueboytm.flutter_v2ray.v2ray.core.StatusPublisher}.
+ */
+public final class V2rayStatusHub {
+    private static final String TAG = V2rayStatusHub.class.getSimpleName();
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface Listener {
+        /**
+         * Called on the control client's reply thread. The array is not reused by the hub,
+         * but it is shared by all listeners and must not be modified.
+         */
+        void onStatus(long[] status);
+    }
+
+    private V2rayStatusHub() {
+    }
+
+    public static synchronized void addListener(final Context context, final Listener listener) {
+        if (listeners.addIfAbsent(listener) && listeners.size() == 1) {
+            V2rayControlClient.getInstance(context).subscribeStatus();
+        }
+    }
+
+    public static synchronized void removeListener(final Context context, final Listener listener) {
+        if (listeners.remove(listener) && listeners.isEmpty()) {
+            V2rayControlClient.getInstance(context).unsubscribeStatus();
+        }
+    }
+
+    static void dispatch(final long[] status) {
+        if (status == null) return;
+        for (Listener listener : listeners) {
+            try {
+                listener.onStatus(status);
+            } catch (Exception e) {
+                Log.w(TAG, "status listener failed => " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes the connected server from the core process on its own schedule and broadcasts
+ * an event whenever the connection becomes degraded, goes down or recovers, so the app
+ * does not need to keep a timer running to notice.
+ */
+public final class ConnectionHealthMonitor {
+    public static final String ACTION_HEALTH_EVENT = "V2RAY_HEALTH_EVENT";
+    private static final String TAG = ConnectionHealthMonitor.class.getSimpleName();
+    private static final long MIN_INTERVAL_MS = 1000L;
+    private static final int FAILURES_UNTIL_DOWN = 3;
+    // Intervals after failures grow up to 2^MAX_BACKOFF_SHIFT times the base interval
+    private static final int MAX_BACKOFF_SHIFT = 3;
+    private static final double JITTER = 0.2;
+    // A failed failover is retried after FAILURES_UNTIL_DOWN more lost probes and a cooldown
+    // that doubles with every failed attempt
+    private static final long MIN_FAILOVER_COOLDOWN_MS = 15000L;
+    private static final long MAX_FAILOVER_COOLDOWN_MS = 5 * 60000L;
+
+    public enum HealthEvent {
+        DEGRADED,
+        DOWN,
+        RECOVERED,
+        FAILOVER,
+        FAILOVER_FAILED
+    }
+
+    public interface Listener {
+        /**
+         * Called on the monitor thread when the connection goes down. Returns the index of
+         * the config that restored the connection, or -1 if none did.
+         */
+        int onDown();
+    }
+
+    private enum State {
+        HEALTHY,
+        DEGRADED,
+        DOWN
+    }
+
+    private final Context context;
+    private final String url;
+    private final long intervalMs;
+    private final long degradedDelayMs;
+    private final Listener listener;
+    private final Random random = new Random();
+    private ScheduledExecutorService scheduler;
+    // Touched by the scheduler thread only
+    private State state = State.HEALTHY;
+    private int consecutiveFailures = 0;
+    private long downSince = 0L;
+    private long firstFailureAt = 0L;
+    private int failuresSinceFailover = 0;
+    private long nextFailoverAt = 0L;
+    private long failoverCooldownMs = MIN_FAILOVER_COOLDOWN_MS;
+
+    public ConnectionHealthMonitor(Context context, String url, long intervalMs, long degradedDelayMs, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.url = url;
+        this.intervalMs = Math.max(MIN_INTERVAL_MS, intervalMs);
+        this.degradedDelayMs = degradedDelayMs;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "V2RAY_HEALTH_MONITOR");
+            t.setDaemon(true);
+            return t;
+        });
+        schedule(intervalMs);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (scheduler == null) return;
+        final long jitter = (long) (delayMs * JITTER * (2 * random.nextDouble() - 1));
+        scheduler.schedule(this::probe, delayMs + jitter, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        long delay;
+        try {
+            delay = V2rayCoreManager.getInstance().getConnectedV2rayServerDelay(url);
+        } catch (Exception e) {
+            Log.w(TAG, "health probe failed => " + e.getMessage());
+            delay = -1L;
+        }
+        if (delay < 0) {
+            if (consecutiveFailures++ == 0) firstFailureAt = SystemClock.elapsedRealtime();
+            failuresSinceFailover++;
+            moveTo(consecutiveFailures >= FAILURES_UNTIL_DOWN ? State.DOWN : State.DEGRADED, delay);
+            if (state == State.DOWN && listener != null && failover()) {
+                schedule(intervalMs);
+                return;
+            }
+            schedule(intervalMs << Math.min(consecutiveFailures - 1, MAX_BACKOFF_SHIFT));
+        } else {
+            consecutiveFailures = 0;
+            failuresSinceFailover = 0;
+            nextFailoverAt = 0L;
+            failoverCooldownMs = MIN_FAILOVER_COOLDOWN_MS;
+            moveTo(degradedDelayMs > 0 && delay > degradedDelayMs ? State.DEGRADED : State.HEALTHY, delay);
+            schedule(intervalMs);
+        }
+    }
+
+    /**
+     * Lets the listener move to another server right after the connection went down. While
+     * it stays down, failover is tried again after every FAILURES_UNTIL_DOWN lost probes
+     * once the cooldown after the previous failed attempt has passed.
+     */
+    private boolean failover() {
+        final long startedAt = SystemClock.elapsedRealtime();
+        if (failuresSinceFailover < FAILURES_UNTIL_DOWN || startedAt < nextFailoverAt) return false;
+        failuresSinceFailover = 0;
+        int index;
+        try {
+            index = listener.onDown();
+        } catch (Exception e) {
+            Log.e(TAG, "failover failed => ", e);
+            index = -1;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        Intent intent = newEvent(index >= 0 ? HealthEvent.FAILOVER : HealthEvent.FAILOVER_FAILED, -1L);
+        intent.putExtra("SERVER_INDEX", index);
+        intent.putExtra("FAILOVER_TIME", now - startedAt);
+        // From the first lost probe to the connection working again
+        intent.putExtra("DOWN_FOR", now - firstFailureAt);
+        send(intent);
+        if (index < 0) {
+            nextFailoverAt = now + failoverCooldownMs;
+            failoverCooldownMs = Math.min(MAX_FAILOVER_COOLDOWN_MS, failoverCooldownMs * 2);
+            return false;
+        }
+        state = State.HEALTHY;
+        consecutiveFailures = 0;
+        nextFailoverAt = 0L;
+        failoverCooldownMs = MIN_FAILOVER_COOLDOWN_MS;
+        return true;
+    }
+
+    private void moveTo(final State next, final long delay) {
+        if (next == state) return;
+        final State previous = state;
+        state = next;
+        final HealthEvent event;
+        switch (next) {
+            case DEGRADED:
+                event = HealthEvent.DEGRADED;
+                break;
+            case DOWN:
+                downSince = SystemClock.elapsedRealtime();
+                event = HealthEvent.DOWN;
+                break;
+            default:
+                event = HealthEvent.RECOVERED;
+                break;
+        }
+        Log.d(TAG, "connection " + previous + " -> " + next + ", delay " + delay);
+        Intent intent = newEvent(event, delay);
+        if (previous == State.DOWN) {
+            intent.putExtra("DOWN_FOR", SystemClock.elapsedRealtime() - downSince);
+        }
+        send(intent);
+    }
+
+    private Intent newEvent(final HealthEvent event, final long delay) {
+        Intent intent = new Intent(ACTION_HEALTH_EVENT);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra("EVENT", event);
+        intent.putExtra("DELAY", delay);
+        intent.putExtra("CONSECUTIVE_FAILURES", consecutiveFailures);
+        return intent;
+    }
+
+    private void send(final Intent intent) {
+        try {
+            final long broadcastAt = Metrics.now();
+            context.sendBroadcast(intent);
+            Metrics.SEND_BROADCAST.record(broadcastAt, true);
+        } catch (Exception e) {
+            Log.w(TAG, "failed to send health event => " + e.getMessage());
+        }
+    }
+}
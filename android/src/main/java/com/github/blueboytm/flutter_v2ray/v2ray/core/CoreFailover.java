@@ -0,0 +1,52 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.util.Log;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
+
+/**
+ * Moves the running core to the next candidate config when the health monitor reports the
+ * connection as down. Candidate 0 is the config the connection was started with, the
+ * failover configs follow in their given order.
+ */
+final class CoreFailover implements ConnectionHealthMonitor.Listener {
+    private static final String TAG = CoreFailover.class.getSimpleName();
+
+    private final V2rayConfig primary;
+    private final int candidates;
+    private final String url;
+    private int activeIndex = 0;
+
+    CoreFailover(V2rayConfig primary, String url) {
+        this.primary = primary;
+        this.url = url;
+        candidates = 1 + primary.FAILOVER_CONFIGS.size();
+    }
+
+    @Override
+    public int onDown() {
+        final V2rayCoreManager manager = V2rayCoreManager.getInstance();
+        for (int step = 1; step < candidates; step++) {
+            final int index = (activeIndex + step) % candidates;
+            final V2rayConfig next = primary.getFailoverCandidate(index);
+            if (next == null) {
+                Log.w(TAG, "failover candidate " + index + " is not a valid config");
+                continue;
+            }
+            if (!manager.restartCore(next)) {
+                continue;
+            }
+            if (manager.getConnectedV2rayServerDelay(url) >= 0) {
+                Log.d(TAG, "failed over to candidate " + index);
+                activeIndex = index;
+                return index;
+            }
+        }
+        // Nothing answered, go back to the server that was active so it is the one that is probed
+        if (candidates > 1) {
+            final V2rayConfig active = primary.getFailoverCandidate(activeIndex);
+            if (active != null) manager.restartCore(active);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.Utilities;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache from the hash of a full config to the config that is actually
+ * handed to {@code Libv2ray.measureOutboundDelay} and to its server endpoint, so
+ * pinging the same server list again skips parsing and re-serializing the JSON.
+ */
+public final class DelayConfigCache {
+    private static final int MAX_ENTRIES = 1024;
+    // Upper bound on cached characters (about 8 MB) for configs with large sections
+    private static final long MAX_CHARS = 4L * 1024 * 1024;
+
+    private final LinkedHashMap<String, ProbeConfig> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedChars = 0L;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static final class ProbeConfig {
+        public final String config;
+        // "address:port" of the first outbound, null when the config has none
+        public final String endpoint;
+
+        ProbeConfig(String config, String endpoint) {
+            this.config = config;
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * Returns {@code config} without routing rules, from the cache when possible.
+     */
+    public ProbeConfig getProbeConfig(final String config) {
+        return getProbeConfig(Utilities.getConfigHash(config), config);
+    }
+
+    public ProbeConfig getProbeConfig(final String key, final String config) {
+        synchronized (entries) {
+            ProbeConfig cached = entries.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        final ProbeConfig prepared = prepare(config);
+        synchronized (entries) {
+            ProbeConfig previous = entries.put(key, prepared);
+            if (previous != null) cachedChars -= previous.config.length();
+            cachedChars += prepared.config.length();
+            trim();
+        }
+        return prepared;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            cachedChars = 0L;
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, ProbeConfig>> it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_ENTRIES || cachedChars > MAX_CHARS) && it.hasNext()) {
+            cachedChars -= it.next().getValue().config.length();
+            it.remove();
+        }
+    }
+
+    private static ProbeConfig prepare(final String config) {
+        try {
+            // Routing rules are irrelevant for a single outbound probe and only slow the core down
+            JSONObject cfg = new JSONObject(config);
+            if (cfg.has("routing")) {
+                JSONObject r = cfg.optJSONObject("routing");
+                if (r != null) {
+                    JSONObject nr = new JSONObject();
+                    Iterator<String> it = r.keys();
+                    while (it.hasNext()) {
+                        String k = it.next();
+                        if (!"rules".equals(k)) nr.put(k, r.get(k));
+                    }
+                    cfg.put("routing", nr);
+                }
+            }
+            return new ProbeConfig(cfg.toString(), Utilities.getServerEndpoint(cfg));
+        } catch (Exception ex) {
+            return new ProbeConfig(config, null);
+        }
+    }
+}
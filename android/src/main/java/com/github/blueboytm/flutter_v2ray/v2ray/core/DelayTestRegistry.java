@@ -0,0 +1,134 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of running delay tests by request id, so queued and in-flight work can be
+ * dropped when the caller is no longer interested or its deadline has passed.
+ */
+public final class DelayTestRegistry {
+    // Reported instead of a delay for work that was cancelled or ran past its deadline
+    public static final long CANCELLED = -2L;
+
+    private static final ConcurrentHashMap<String, List<Token>> TOKENS = new ConcurrentHashMap<>();
+    // Work registered without a request id, only reachable by cancelling everything
+    private static final Set<Token> UNNAMED = Collections.newSetFromMap(new ConcurrentHashMap<Token, Boolean>());
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DELAY_TEST_DEADLINE");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private DelayTestRegistry() {
+    }
+
+    public static final class Token {
+        private final String requestId;
+        private final List<Runnable> cancelListeners = new CopyOnWriteArrayList<>();
+        private volatile boolean cancelled = false;
+        private volatile ScheduledFuture<?> deadline;
+
+        private Token(String requestId) {
+            this.requestId = requestId;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Runs {@code listener} once when the token is cancelled, right away if it already is.
+         */
+        public void onCancel(Runnable listener) {
+            cancelListeners.add(listener);
+            if (cancelled && cancelListeners.remove(listener)) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Unregisters the token once its work has finished.
+         */
+        public void release() {
+            ScheduledFuture<?> pending = deadline;
+            if (pending != null) pending.cancel(false);
+            if (requestId == null) {
+                UNNAMED.remove(this);
+            } else {
+                List<Token> tokens = TOKENS.get(requestId);
+                if (tokens != null) {
+                    tokens.remove(this);
+                    if (tokens.isEmpty()) TOKENS.remove(requestId, tokens);
+                }
+            }
+        }
+
+        private void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            for (Runnable listener : cancelListeners) {
+                if (cancelListeners.remove(listener)) {
+                    try {
+                        listener.run();
+                    } catch (Exception e) {
+                        Log.w(DelayTestRegistry.class.getSimpleName(), "cancel listener failed: " + e.getMessage());
+                    }
+                }
+            }
+            release();
+        }
+    }
+
+    /**
+     * Registers new work under {@code requestId} (may be null for work that is only bound by
+     * its deadline and cancelling everything). A positive {@code deadlineMs} cancels the token after that many ms.
+     */
+    public static Token register(final String requestId, final long deadlineMs) {
+        final Token token = new Token(requestId);
+        if (requestId == null) {
+            UNNAMED.add(token);
+        } else {
+            List<Token> tokens = TOKENS.get(requestId);
+            if (tokens == null) {
+                List<Token> created = new CopyOnWriteArrayList<>();
+                tokens = TOKENS.putIfAbsent(requestId, created);
+                if (tokens == null) tokens = created;
+            }
+            tokens.add(token);
+        }
+        if (deadlineMs > 0) {
+            token.deadline = DEADLINES.schedule(token::cancel, deadlineMs, TimeUnit.MILLISECONDS);
+        }
+        return token;
+    }
+
+    /**
+     * Cancels all work registered under {@code requestId}, or all registered work when it is
+     * null. Returns the number of cancelled tokens.
+     */
+    public static int cancel(final String requestId) {
+        final List<Token> cancelled = new ArrayList<>();
+        if (requestId == null) {
+            for (List<Token> tokens : TOKENS.values()) cancelled.addAll(tokens);
+            cancelled.addAll(UNNAMED);
+        } else {
+            List<Token> tokens = TOKENS.get(requestId);
+            if (tokens != null) cancelled.addAll(tokens);
+        }
+        for (Token token : cancelled) {
+            token.cancel();
+        }
+        return cancelled.size();
+    }
+}
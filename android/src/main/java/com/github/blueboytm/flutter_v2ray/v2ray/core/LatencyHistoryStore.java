@@ -0,0 +1,356 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only file of delay measurements keyed by a 64-bit server fingerprint, so the
+ * server list can be ordered from the last known results right after a cold start.
+ * The file is memory-mapped and read in one pass when the store is initialized and is
+ * rewritten with only the retained samples once it has grown well past them.
+ * <p>
+ * Only the app process writes the file, delay tests of the core process are not recorded.
+ */
+public final class LatencyHistoryStore {
+    private static final String TAG = LatencyHistoryStore.class.getSimpleName();
+    private static final String FILE_NAME = "latency_history.bin";
+    private static final int MAGIC = 0x4c484953;
+    // 2: delays are measured round trips, version 1 stored a quarter of them
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    // fingerprint (long) + wall clock time in ms (long) + delay in ms, -1 when lost (int)
+    private static final int RECORD_SIZE = 20;
+    public static final int MAX_SAMPLES = 16;
+    private static final int MAX_SERVERS = 4096;
+    private static final int MIN_COMPACT_RECORDS = 16384;
+    private static final int PENDING_RECORDS = 256;
+    private static final long FLUSH_DELAY_MS = 1000L;
+    private static final long LOAD_WAIT_MS = 2000L;
+    // Added to the median per lost sample share when ranking, like a timed out probe
+    private static final long LOSS_PENALTY_MS = 5000L;
+
+    private volatile static LatencyHistoryStore INSTANCE;
+
+    private final File file;
+    private final HashMap<Long, History> histories = new HashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "LATENCY_HISTORY_WRITER");
+        t.setDaemon(true);
+        return t;
+    });
+    // Touched by the writer thread only
+    private final ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * PENDING_RECORDS);
+    private int recordsOnDisk = 0;
+    private boolean flushScheduled = false;
+
+    public static final class ServerHistory {
+        public final int samples;
+        public final double successRate;
+        public final long lastDelay;
+        public final long medianDelay;
+        // Wall clock time of the newest sample in ms, 0 if the server was never measured
+        public final long lastMeasuredAt;
+        final double score;
+
+        ServerHistory(int samples, double successRate, long lastDelay, long medianDelay, long lastMeasuredAt, double score) {
+            this.samples = samples;
+            this.successRate = successRate;
+            this.lastDelay = lastDelay;
+            this.medianDelay = medianDelay;
+            this.lastMeasuredAt = lastMeasuredAt;
+            this.score = score;
+        }
+    }
+
+    private LatencyHistoryStore(Context context) {
+        file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+        writer.execute(this::load);
+    }
+
+    /**
+     * Creates the store and starts loading the file in the background.
+     */
+    public static LatencyHistoryStore init(Context context) {
+        if (INSTANCE == null) {
+            synchronized (LatencyHistoryStore.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new LatencyHistoryStore(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the store, or null if {@link #init(Context)} has not run in this process.
+     */
+    public static LatencyHistoryStore getInstance() {
+        return INSTANCE;
+    }
+
+    public static long fingerprint(final String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (Exception e) {
+            return ((long) key.length() << 32) ^ key.hashCode();
+        }
+    }
+
+    /**
+     * Records a measurement of the server identified by {@code key}; negative delays count as lost.
+     */
+    public void record(final String key, final long delay) {
+        final long fingerprint = fingerprint(key);
+        final long time = System.currentTimeMillis();
+        final int value = delay < 0 ? -1 : (int) Math.min(delay, Integer.MAX_VALUE);
+        writer.execute(() -> {
+            synchronized (histories) {
+                add(fingerprint, time, value);
+            }
+            pending.putLong(fingerprint).putLong(time).putInt(value);
+            if (!pending.hasRemaining()) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                writer.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Returns the history of every key, in the same order, waiting briefly for the file to load.
+     */
+    public List<ServerHistory> getHistory(final List<String> keys) {
+        awaitLoaded();
+        final List<ServerHistory> result = new ArrayList<>(keys.size());
+        synchronized (histories) {
+            for (String key : keys) {
+                History history = key == null ? null : histories.get(fingerprint(key));
+                result.add(history == null ? new ServerHistory(0, 0.0, -1L, -1L, 0L, Double.MAX_VALUE) : history.summarize());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the indexes of {@code servers} ordered from the best to the worst known history.
+     */
+    public static List<Integer> rank(final List<ServerHistory> servers) {
+        final List<Integer> ranking = new ArrayList<>(servers.size());
+        for (int i = 0; i < servers.size(); i++) ranking.add(i);
+        Collections.sort(ranking, (a, b) -> Double.compare(servers.get(a).score, servers.get(b).score));
+        return ranking;
+    }
+
+    public void clear() {
+        writer.execute(() -> {
+            synchronized (histories) {
+                histories.clear();
+            }
+            pending.clear();
+            rewrite();
+        });
+    }
+
+    private void awaitLoaded() {
+        try {
+            if (!loaded.await(LOAD_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "history is still loading, answering with what is known");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void load() {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            boolean valid = false;
+            int records = 0;
+            if (size >= HEADER_SIZE) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (map.getInt() == MAGIC && map.getInt() == VERSION) {
+                    valid = true;
+                    records = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+                    synchronized (histories) {
+                        for (int i = 0; i < records; i++) {
+                            add(map.getLong(), map.getLong(), map.getInt());
+                        }
+                    }
+                }
+            }
+            if (!valid) {
+                channel.truncate(0);
+                channel.write(header(), 0);
+                records = 0;
+            } else if (size != HEADER_SIZE + (long) records * RECORD_SIZE) {
+                // Drop a record that was torn by a crash in the middle of a write
+                channel.truncate(HEADER_SIZE + (long) records * RECORD_SIZE);
+            }
+            recordsOnDisk = records;
+        } catch (Exception e) {
+            Log.e(TAG, "failed to load latency history => ", e);
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        if (pending.position() == 0) return;
+        pending.flip();
+        final int records = pending.remaining() / RECORD_SIZE;
+        try (FileOutputStream out = new FileOutputStream(file, true); FileChannel channel = out.getChannel()) {
+            while (pending.hasRemaining()) channel.write(pending);
+            recordsOnDisk += records;
+        } catch (IOException e) {
+            Log.e(TAG, "failed to append latency history => ", e);
+        } finally {
+            pending.clear();
+        }
+        final int retained;
+        synchronized (histories) {
+            retained = retainedSamples();
+        }
+        if (recordsOnDisk > Math.max(MIN_COMPACT_RECORDS, retained * 2)) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Replaces the file with the retained samples, through a temporary file so a crash
+     * leaves either the old or the new history behind.
+     */
+    private void rewrite() {
+        final File temp = new File(file.getPath() + ".tmp");
+        int records = 0;
+        try (FileOutputStream out = new FileOutputStream(temp); FileChannel channel = out.getChannel()) {
+            channel.write(header());
+            final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * PENDING_RECORDS);
+            synchronized (histories) {
+                for (Map.Entry<Long, History> it : histories.entrySet()) {
+                    final History history = it.getValue();
+                    for (int i = 0; i < history.count; i++) {
+                        final int slot = (history.next - history.count + i + MAX_SAMPLES) % MAX_SAMPLES;
+                        buffer.putLong(it.getKey()).putLong(history.times[slot]).putInt(history.delays[slot]);
+                        records++;
+                        if (!buffer.hasRemaining()) {
+                            buffer.flip();
+                            while (buffer.hasRemaining()) channel.write(buffer);
+                            buffer.clear();
+                        }
+                    }
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to compact latency history => ", e);
+            temp.delete();
+            return;
+        }
+        if (temp.renameTo(file)) {
+            recordsOnDisk = records;
+        } else {
+            Log.w(TAG, "failed to replace latency history");
+            temp.delete();
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    // Callers hold the histories lock
+    private void add(long fingerprint, long time, int delay) {
+        History history = histories.get(fingerprint);
+        if (history == null) {
+            if (histories.size() >= MAX_SERVERS) evictOldest();
+            history = new History();
+            histories.put(fingerprint, history);
+        }
+        history.add(time, delay);
+    }
+
+    private int retainedSamples() {
+        int count = 0;
+        for (History history : histories.values()) count += history.count;
+        return count;
+    }
+
+    private void evictOldest() {
+        Long oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        Iterator<Map.Entry<Long, History>> it = histories.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, History> next = it.next();
+            if (next.getValue().lastTime < oldest) {
+                oldest = next.getValue().lastTime;
+                oldestKey = next.getKey();
+            }
+        }
+        if (oldestKey != null) histories.remove(oldestKey);
+    }
+
+    private static final class History {
+        final int[] delays = new int[MAX_SAMPLES];
+        final long[] times = new long[MAX_SAMPLES];
+        int next;
+        int count;
+        long lastTime;
+
+        void add(long time, int delay) {
+            delays[next] = delay;
+            times[next] = time;
+            next = (next + 1) % MAX_SAMPLES;
+            if (count < MAX_SAMPLES) count++;
+            lastTime = Math.max(lastTime, time);
+        }
+
+        ServerHistory summarize() {
+            final int[] ok = new int[count];
+            int successes = 0;
+            for (int i = 0; i < count; i++) {
+                final int delay = delays[(next - count + i + MAX_SAMPLES) % MAX_SAMPLES];
+                if (delay >= 0) ok[successes++] = delay;
+            }
+            final double successRate = (double) successes / count;
+            final long last = delays[(next - 1 + MAX_SAMPLES) % MAX_SAMPLES];
+            if (successes == 0) {
+                return new ServerHistory(count, 0.0, last, -1L, lastTime, Double.MAX_VALUE / 2);
+            }
+            final int[] sorted = Arrays.copyOf(ok, successes);
+            Arrays.sort(sorted);
+            final int mid = successes / 2;
+            final long median = successes % 2 == 1 ? sorted[mid] : ((long) sorted[mid - 1] + sorted[mid]) / 2;
+            return new ServerHistory(count, successRate, last, median, lastTime,
+                    median + (1.0 - successRate) * LOSS_PENALTY_MS);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the delay of the running core by sending a single HTTP request through its
+ * local SOCKS5 (or HTTP) inbound, so no second core instance has to be built.
+ */
+public final class LocalProxyDelayProbe {
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private LocalProxyDelayProbe() {
+    }
+
+    /**
+     * Returns the round trip of a request to {@code url} through the local inbounds,
+     * trying the SOCKS5 inbound first and the HTTP inbound second, or -1 on failure.
+     */
+    public static long measure(final int socksPort, final int httpPort, final String url, final long timeoutMs) {
+        final URI uri;
+        try {
+            uri = URI.create(url);
+            if (uri.getHost() == null) return -1L;
+        } catch (Exception e) {
+            return -1L;
+        }
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        if (socksPort > 0) {
+            try {
+                return measureViaSocks(socksPort, uri, deadline);
+            } catch (Exception e) {
+                Log.w(LocalProxyDelayProbe.class.getSimpleName(), "socks probe failed => " + e.getMessage());
+            }
+        }
+        if (httpPort > 0 && SystemClock.elapsedRealtime() < deadline) {
+            try {
+                return measureViaHttpProxy(httpPort, uri, deadline);
+            } catch (Exception e) {
+                Log.w(LocalProxyDelayProbe.class.getSimpleName(), "http probe failed => " + e.getMessage());
+            }
+        }
+        return -1L;
+    }
+
+    private static long measureViaSocks(final int socksPort, final URI uri, final long deadline) throws IOException {
+        final String host = uri.getHost();
+        final int port = uri.getPort() > 0 ? uri.getPort() : 80;
+        final byte[] hostBytes = host.getBytes(StandardCharsets.US_ASCII);
+        if (hostBytes.length > 255) throw new IOException("host too long");
+
+        try (Selector selector = Selector.open(); SocketChannel channel = connect(selector, socksPort, deadline)) {
+            final SelectionKey key = channel.keyFor(selector);
+            final long start = SystemClock.elapsedRealtime();
+            final ByteBuffer in = ByteBuffer.allocate(512);
+
+            // Greeting without authentication
+            writeFully(channel, key, ByteBuffer.wrap(new byte[]{5, 1, 0}), deadline);
+            readAtLeast(channel, key, in, 2, deadline);
+            if (in.get(0) != 5 || in.get(1) != 0) throw new IOException("socks auth rejected");
+            consume(in, 2);
+
+            // CONNECT by domain name so the core resolves the host remotely
+            final ByteBuffer connect = ByteBuffer.allocate(7 + hostBytes.length);
+            connect.put((byte) 5).put((byte) 1).put((byte) 0).put((byte) 3)
+                    .put((byte) hostBytes.length).put(hostBytes)
+                    .put((byte) (port >> 8)).put((byte) port).flip();
+            writeFully(channel, key, connect, deadline);
+            readAtLeast(channel, key, in, 5, deadline);
+            if (in.get(1) != 0) throw new IOException("socks connect failed: " + in.get(1));
+            final int replyLength;
+            switch (in.get(3)) {
+                case 1:
+                    replyLength = 4 + 4 + 2;
+                    break;
+                case 3:
+                    replyLength = 4 + 1 + (in.get(4) & 0xff) + 2;
+                    break;
+                case 4:
+                    replyLength = 4 + 16 + 2;
+                    break;
+                default:
+                    throw new IOException("socks reply has unknown address type");
+            }
+            readAtLeast(channel, key, in, replyLength, deadline);
+            consume(in, replyLength);
+
+            exchange(channel, key, in, requestPath(uri), host, deadline);
+            return SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private static long measureViaHttpProxy(final int httpPort, final URI uri, final long deadline) throws IOException {
+        try (Selector selector = Selector.open(); SocketChannel channel = connect(selector, httpPort, deadline)) {
+            final SelectionKey key = channel.keyFor(selector);
+            final long start = SystemClock.elapsedRealtime();
+            exchange(channel, key, ByteBuffer.allocate(512), uri.toString(), uri.getHost(), deadline);
+            return SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private static void exchange(final SocketChannel channel, final SelectionKey key, final ByteBuffer in,
+                                 final String target, final String host, final long deadline) throws IOException {
+        final byte[] request = ("GET " + target + " HTTP/1.1\r\n" +
+                "Host: " + host + "\r\n" +
+                "User-Agent: flutter_v2ray\r\n" +
+                "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        writeFully(channel, key, ByteBuffer.wrap(request), deadline);
+
+        // Only the status line matters, the body is never read
+        int lineEnd;
+        while ((lineEnd = indexOfLineEnd(in)) < 0) {
+            if (!in.hasRemaining()) throw new IOException("status line too long");
+            readAtLeast(channel, key, in, in.position() + 1, deadline);
+        }
+        final String statusLine = new String(in.array(), 0, lineEnd, StandardCharsets.US_ASCII);
+        final String[] parts = statusLine.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) throw new IOException("bad status line");
+        final int status = Integer.parseInt(parts[1]);
+        if (status < 200 || status >= 400) throw new IOException("unexpected status " + status);
+    }
+
+    private static SocketChannel connect(final Selector selector, final int port, final long deadline) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final SelectionKey key = channel.register(selector, 0);
+            if (!channel.connect(new InetSocketAddress(LOOPBACK, port))) {
+                await(selector, key, SelectionKey.OP_CONNECT, deadline);
+                channel.finishConnect();
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void writeFully(final SocketChannel channel, final SelectionKey key, final ByteBuffer src, final long deadline) throws IOException {
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                await(key.selector(), key, SelectionKey.OP_WRITE, deadline);
+            }
+        }
+    }
+
+    /**
+     * Reads until {@code in} holds at least {@code minBytes} bytes. Received data always
+     * starts at index 0 and ends at the buffer position.
+     */
+    private static void readAtLeast(final SocketChannel channel, final SelectionKey key, final ByteBuffer in,
+                                    final int minBytes, final long deadline) throws IOException {
+        while (in.position() < minBytes) {
+            final int n = channel.read(in);
+            if (n < 0) throw new IOException("connection closed");
+            if (n == 0) {
+                await(key.selector(), key, SelectionKey.OP_READ, deadline);
+            }
+        }
+    }
+
+    private static void consume(final ByteBuffer in, final int length) {
+        in.flip();
+        in.position(length);
+        in.compact();
+    }
+
+    private static void await(final Selector selector, final SelectionKey key, final int ops, final long deadline) throws IOException {
+        key.interestOps(ops);
+        while (true) {
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) throw new SocketTimeoutException("probe timed out");
+            if (selector.select(remaining) > 0) {
+                selector.selectedKeys().clear();
+                key.interestOps(0);
+                return;
+            }
+        }
+    }
+
+    private static int indexOfLineEnd(final ByteBuffer in) {
+        for (int i = 0; i + 1 < in.position(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static String requestPath(final URI uri) {
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) path = "/";
+        if (uri.getRawQuery() != null) path = path + "?" + uri.getRawQuery();
+        return path;
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counts of native calls, broadcasts and lifecycle steps of the process it is
+ * loaded in. Recording is lock-free and allocates nothing: a metric is a few atomic longs
+ * and a histogram with one bucket per power of two nanoseconds.
+ * <p>
+ * All metrics are declared here, so every process reports the same names and the
+ * snapshots of the app and the core process can be merged with {@link Snapshot#merge}.
+ */
+public final class Metrics {
+    public static final int FIELD_COUNT = 0;
+    public static final int FIELD_ERRORS = 1;
+    public static final int FIELD_TOTAL_NANOS = 2;
+    public static final int FIELD_MAX_NANOS = 3;
+    static final int FIELD_BUCKETS = 4;
+    // Bucket i counts durations of at most 2^i nanoseconds and more than half of that
+    private static final int BUCKETS = 64;
+    public static final int STRIDE = FIELD_BUCKETS + BUCKETS;
+
+    private static final ArrayList<Metric> METRICS = new ArrayList<>();
+
+    public static final Metric RUN_LOOP = register("core.runLoop");
+    public static final Metric STOP_LOOP = register("core.stopLoop");
+    public static final Metric QUERY_STATS = register("core.queryStats");
+    public static final Metric MEASURE_OUTBOUND_DELAY = register("core.measureOutboundDelay");
+    public static final Metric MEASURE_CONNECTED_DELAY = register("core.measureConnectedDelay");
+    public static final Metric SEND_BROADCAST = register("core.sendBroadcast");
+    public static final Metric ESTABLISH = register("vpn.establish");
+    public static final Metric TUN2SOCKS_SPAWN = register("vpn.tun2socksSpawn");
+    public static final Metric FD_HANDOFF = register("vpn.fdHandoff");
+    public static final Metric CONTROL_REQUEST = register("app.controlRequest");
+    // Control round trip minus the handling in the core process, the cost of the binder path
+    public static final Metric CONTROL_OVERHEAD = register("app.controlOverhead");
+    // Connected delay requests through the control service and through the broadcast
+    // fallback, they run the same probe so their difference is the cost of the path
+    public static final Metric CONNECTED_DELAY_BINDER = register("app.connectedDelayBinder");
+    public static final Metric CONNECTED_DELAY_BROADCAST = register("app.connectedDelayBroadcast");
+
+    private Metrics() {
+    }
+
+    private static Metric register(final String name) {
+        final Metric metric = new Metric(name);
+        METRICS.add(metric);
+        return metric;
+    }
+
+    /**
+     * Start time for {@link Metric#record(long, boolean)}.
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public static Snapshot snapshot() {
+        final String[] names = new String[METRICS.size()];
+        final long[] values = new long[names.length * STRIDE];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = METRICS.get(i).name;
+            METRICS.get(i).copyTo(values, i * STRIDE);
+        }
+        return new Snapshot(names, values);
+    }
+
+    public static final class Metric {
+        public final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private Metric(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a call that started at {@code startedAt}, see {@link Metrics#now()}.
+         */
+        public void record(final long startedAt, final boolean ok) {
+            final long nanos = Math.max(0L, now() - startedAt);
+            count.incrementAndGet();
+            if (!ok) errors.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos - 1))));
+        }
+
+        private void copyTo(final long[] values, final int offset) {
+            values[offset + FIELD_COUNT] = count.get();
+            values[offset + FIELD_ERRORS] = errors.get();
+            values[offset + FIELD_TOTAL_NANOS] = totalNanos.get();
+            values[offset + FIELD_MAX_NANOS] = maxNanos.get();
+            for (int i = 0; i < BUCKETS; i++) {
+                values[offset + FIELD_BUCKETS + i] = buckets.get(i);
+            }
+        }
+    }
+
+    /**
+     * Metrics at one point in time, {@link #STRIDE} values per name. The fields are read
+     * one by one, so a snapshot taken during a call may count it in some fields only.
+     */
+    public static final class Snapshot {
+        public final String[] names;
+        public final long[] values;
+
+        public Snapshot(String[] names, long[] values) {
+            this.names = names;
+            this.values = values;
+        }
+
+        /**
+         * Adds up the metrics of two processes, a null or malformed snapshot counts as empty.
+         */
+        public static Snapshot merge(final Snapshot first, final Snapshot second) {
+            if (second == null || second.names == null || second.values == null || second.values.length != second.names.length * STRIDE) return first;
+            if (first == null || first.names == null || first.values == null || first.values.length != first.names.length * STRIDE) return second;
+            final ArrayList<String> names = new ArrayList<>();
+            for (String name : first.names) names.add(name);
+            for (String name : second.names) {
+                if (!names.contains(name)) names.add(name);
+            }
+            final long[] values = new long[names.size() * STRIDE];
+            addTo(first, names, values);
+            addTo(second, names, values);
+            return new Snapshot(names.toArray(new String[0]), values);
+        }
+
+        private static void addTo(final Snapshot snapshot, final ArrayList<String> names, final long[] values) {
+            for (int i = 0; i < snapshot.names.length; i++) {
+                final int from = i * STRIDE;
+                final int to = names.indexOf(snapshot.names[i]) * STRIDE;
+                for (int field = 0; field < STRIDE; field++) {
+                    if (field == FIELD_MAX_NANOS) {
+                        values[to + field] = Math.max(values[to + field], snapshot.values[from + field]);
+                    } else {
+                        values[to + field] += snapshot.values[from + field];
+                    }
+                }
+            }
+        }
+
+        public long get(final int metric, final int field) {
+            return values[metric * STRIDE + field];
+        }
+
+        /**
+         * The duration in nanoseconds below which {@code quantile} of the calls took, as the
+         * upper bound of its histogram bucket and at most the maximum. 0 without calls.
+         */
+        public long percentile(final int metric, final double quantile) {
+            final long count = get(metric, FIELD_COUNT);
+            if (count == 0) return 0L;
+            final long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += get(metric, FIELD_BUCKETS + i);
+                if (seen >= rank) {
+                    return Math.min(get(metric, FIELD_MAX_NANOS), i >= 63 ? Long.MAX_VALUE : 1L << i);
+                }
+            }
+            return get(metric, FIELD_MAX_NANOS);
+        }
+    }
+}
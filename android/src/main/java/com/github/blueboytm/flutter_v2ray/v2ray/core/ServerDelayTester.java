@@ -0,0 +1,406 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the delay of many configurations on a bounded worker pool and reports
+ * every result as soon as it is known, instead of queueing them one by one behind
+ * the single delay lock of {@link V2rayCoreManager}.
+ */
+public final class ServerDelayTester {
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int MAX_CONCURRENCY = 32;
+    public static final long DEFAULT_TIMEOUT_MS = 5000L;
+    private static final long MIN_TIMEOUT_MS = 500L;
+    private static final long MAX_TIMEOUT_MS = 30000L;
+
+    public static final int DEFAULT_SAMPLES = 3;
+    public static final int MAX_SAMPLES = 10;
+    // A server whose best sample is this many times slower than the best median so far is dropped
+    private static final long LOSER_FACTOR = 3L;
+    private static final long LOSER_MARGIN_MS = 50L;
+    // Samples further than this many scaled MADs from the median are treated as outliers
+    private static final double OUTLIER_MADS = 3.0;
+    // The MAD is 0 when most samples are equal, samples within this share of the median or
+    // within OUTLIER_MIN_MS of it are never outliers
+    private static final double OUTLIER_MIN_SHARE = 0.5;
+    private static final long OUTLIER_MIN_MS = 20L;
+
+    public interface Listener {
+        void onResult(int index, long delay);
+
+        void onComplete(long[] delays);
+    }
+
+    public interface RankingListener {
+        void onComplete(List<ServerRank> servers, List<Integer> ranking);
+    }
+
+    public static final class ServerRank {
+        public final int index;
+        public final long median;
+        public final long p90;
+        public final long jitter;
+        public final double lossRate;
+        public final int samples;
+        public final boolean aborted;
+        public final boolean cancelled;
+        // Median plus the expected cost of lost samples, lower is better
+        final double score;
+
+        ServerRank(int index, long median, long p90, long jitter, double lossRate, int samples, boolean aborted, boolean cancelled, double score) {
+            this.index = index;
+            this.median = median;
+            this.p90 = p90;
+            this.jitter = jitter;
+            this.lossRate = lossRate;
+            this.samples = samples;
+            this.aborted = aborted;
+            this.cancelled = cancelled;
+            this.score = score;
+        }
+    }
+
+    private ServerDelayTester() {
+    }
+
+    /**
+     * Starts measuring {@code configs} and returns immediately. Each config is reported
+     * exactly once through {@link Listener#onResult}; a measurement that does not finish
+     * within {@code timeoutMs} is reported as -1 and its late result is dropped. Once
+     * {@code token} is cancelled, configs that have no result yet are not measured and are
+     * reported as {@link DelayTestRegistry#CANCELLED} in {@link Listener#onComplete} only.
+     */
+    public static void runBatch(final List<String> configs, final String url, int concurrency, long timeoutMs,
+                                final DelayTestRegistry.Token token, final Listener listener) {
+        final int count = configs == null ? 0 : configs.size();
+        final long[] delays = new long[count];
+        if (count == 0) {
+            token.release();
+            listener.onComplete(delays);
+            return;
+        }
+        final int workers = Math.min(count, clamp(concurrency <= 0 ? DEFAULT_CONCURRENCY : concurrency, 1, MAX_CONCURRENCY));
+        final long timeout = clamp(timeoutMs <= 0 ? DEFAULT_TIMEOUT_MS : timeoutMs, MIN_TIMEOUT_MS, MAX_TIMEOUT_MS);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "DELAY_BATCH_WORKER");
+            t.setDaemon(true);
+            return t;
+        });
+        final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DELAY_BATCH_DEADLINE");
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicInteger remaining = new AtomicInteger(count);
+        // Every worker runs once, even after a cancel, and may still schedule its deadline
+        // after all results were reported, so the deadlines go with the last worker
+        final AtomicInteger running = new AtomicInteger(count);
+        final AtomicBoolean[] reported = new AtomicBoolean[count];
+        for (int i = 0; i < count; i++) {
+            reported[i] = new AtomicBoolean(false);
+        }
+
+        final Reporter reporter = (index, delay) -> {
+            if (!reported[index].compareAndSet(false, true)) {
+                return;
+            }
+            delays[index] = delay;
+            if (delay != DelayTestRegistry.CANCELLED) {
+                try {
+                    listener.onResult(index, delay);
+                } catch (Exception e) {
+                    Log.w(ServerDelayTester.class.getSimpleName(), "onResult listener failed: " + e.getMessage());
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                pool.shutdown();
+                token.release();
+                listener.onComplete(delays);
+            }
+        };
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final String config = configs.get(i);
+            pool.execute(() -> {
+                try {
+                    if (token.isCancelled()) {
+                        reporter.report(index, DelayTestRegistry.CANCELLED);
+                        return;
+                    }
+                    ScheduledFuture<?> deadline = deadlines.schedule(() -> reporter.report(index, -1L), timeout, TimeUnit.MILLISECONDS);
+                    long delay;
+                    try {
+                        delay = V2rayCoreManager.getInstance().measureV2rayServerDelay(config, url);
+                    } catch (Throwable t) {
+                        delay = -1L;
+                    }
+                    deadline.cancel(false);
+                    reporter.report(index, delay);
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        deadlines.shutdownNow();
+                    }
+                }
+            });
+        }
+        // Queued workers still run but return at once, in-flight native calls cannot be
+        // interrupted, so their late results are dropped by the reporter
+        token.onCancel(() -> {
+            pool.shutdown();
+            for (int i = 0; i < count; i++) {
+                reporter.report(i, DelayTestRegistry.CANCELLED);
+            }
+        });
+    }
+
+    /**
+     * Takes up to {@code samples} measurements of every config and returns their median,
+     * p90, jitter and loss rate after outlier rejection, plus the indexes ordered from the
+     * best to the worst server. A server stops being sampled once it is clearly slower than
+     * the best one seen so far or has lost most of its samples. Delays are measured round
+     * trips; a sample that takes longer than {@code timeoutMs} counts as lost and the worker
+     * moves on without waiting for it. No more than {@code concurrency} native calls run at
+     * once, a hung one holds its slot until it returns. Servers that are not finished when {@code token} is
+     * cancelled are reported as cancelled and ranked last.
+     */
+    public static void rankServers(final List<String> configs, final String url, int samples, int concurrency, long timeoutMs,
+                                   final DelayTestRegistry.Token token, final RankingListener listener) {
+        final int count = configs == null ? 0 : configs.size();
+        if (count == 0) {
+            token.release();
+            listener.onComplete(Collections.<ServerRank>emptyList(), Collections.<Integer>emptyList());
+            return;
+        }
+        final int sampleCount = clamp(samples <= 0 ? DEFAULT_SAMPLES : samples, 1, MAX_SAMPLES);
+        final int workers = Math.min(count, clamp(concurrency <= 0 ? DEFAULT_CONCURRENCY : concurrency, 1, MAX_CONCURRENCY));
+        final long timeout = clamp(timeoutMs <= 0 ? DEFAULT_TIMEOUT_MS : timeoutMs, MIN_TIMEOUT_MS, MAX_TIMEOUT_MS);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "DELAY_RANK_WORKER");
+            t.setDaemon(true);
+            return t;
+        });
+        // Runs the native calls so a worker can give up on one that hangs. A hung call keeps
+        // its sampler until it returns, so at most workers native calls run at once and the
+        // next sample of a worker that gave up may wait for a free sampler within its timeout
+        final ExecutorService samplers = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "DELAY_RANK_SAMPLE");
+            t.setDaemon(true);
+            return t;
+        });
+        final AtomicLong bestMedian = new AtomicLong(Long.MAX_VALUE);
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final ServerRank[] ranks = new ServerRank[count];
+        final AtomicBoolean[] finished = new AtomicBoolean[count];
+        for (int i = 0; i < count; i++) {
+            finished[i] = new AtomicBoolean(false);
+        }
+
+        final RankReporter reporter = (index, rank) -> {
+            if (!finished[index].compareAndSet(false, true)) {
+                return;
+            }
+            ranks[index] = rank;
+            if (remaining.decrementAndGet() == 0) {
+                pool.shutdown();
+                samplers.shutdown();
+                token.release();
+                List<ServerRank> servers = Arrays.asList(ranks);
+                List<ServerRank> ordered = new ArrayList<>(servers);
+                Collections.sort(ordered, (a, b) -> Double.compare(a.score, b.score));
+                List<Integer> ranking = new ArrayList<>(count);
+                for (ServerRank it : ordered) ranking.add(it.index);
+                listener.onComplete(servers, ranking);
+            }
+        };
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final String config = configs.get(i);
+            pool.execute(() -> {
+                if (token.isCancelled()) {
+                    reporter.report(index, cancelled(index));
+                    return;
+                }
+                final long[] taken = new long[sampleCount];
+                int n = 0;
+                int lost = 0;
+                long fastest = Long.MAX_VALUE;
+                boolean aborted = false;
+                while (n < sampleCount) {
+                    if (token.isCancelled()) {
+                        reporter.report(index, cancelled(index));
+                        return;
+                    }
+                    final long delay = sample(samplers, config, url, timeout);
+                    taken[n++] = delay;
+                    if (delay < 0) {
+                        lost++;
+                    } else {
+                        fastest = Math.min(fastest, delay);
+                        if (n - lost >= 2) {
+                            long median = median(successful(taken, n));
+                            long best;
+                            do {
+                                best = bestMedian.get();
+                            } while (median < best && !bestMedian.compareAndSet(best, median));
+                        }
+                    }
+                    if (n < sampleCount && isClearLoser(n, lost, fastest, bestMedian.get())) {
+                        aborted = true;
+                        break;
+                    }
+                }
+                reporter.report(index, summarize(index, taken, n, lost, aborted, timeout));
+            });
+        }
+        token.onCancel(() -> {
+            pool.shutdown();
+            for (int i = 0; i < count; i++) {
+                reporter.report(i, cancelled(i));
+            }
+        });
+    }
+
+    /**
+     * One round trip of {@code config}, -1 if it failed or took longer than {@code timeout}.
+     */
+    private static long sample(final ExecutorService samplers, final String config, final String url, final long timeout) {
+        final Future<Long> future;
+        try {
+            future = samplers.submit(() -> V2rayCoreManager.getInstance().sampleV2rayServerDelay(config, url));
+        } catch (RejectedExecutionException e) {
+            // The ranking completed through a cancel
+            return -1L;
+        }
+        try {
+            final Long delay = future.get(timeout, TimeUnit.MILLISECONDS);
+            return delay == null || delay > timeout ? -1L : delay;
+        } catch (TimeoutException e) {
+            // The native call cannot be interrupted, its late result is dropped
+            future.cancel(true);
+            return -1L;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1L;
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    private static ServerRank cancelled(int index) {
+        return new ServerRank(index, -1L, -1L, -1L, 0.0, 0, false, true, Double.MAX_VALUE);
+    }
+
+    private static boolean isClearLoser(int taken, int lost, long fastest, long bestMedian) {
+        if (lost >= 2 && lost * 2 > taken) return true;
+        return taken >= 2 && fastest != Long.MAX_VALUE && bestMedian != Long.MAX_VALUE
+                && fastest > bestMedian * LOSER_FACTOR + LOSER_MARGIN_MS;
+    }
+
+    static ServerRank summarize(int index, long[] taken, int n, int lost, boolean aborted, long timeout) {
+        final double lossRate = (double) lost / n;
+        long[] ok = successful(taken, n);
+        if (ok.length == 0) {
+            return new ServerRank(index, -1L, -1L, -1L, lossRate, n, aborted, false, Double.MAX_VALUE);
+        }
+        ok = rejectOutliers(ok);
+        final long median = median(ok);
+        final long p90 = ok[Math.min(ok.length - 1, (int) Math.ceil(0.9 * ok.length) - 1)];
+        // Mean absolute difference between consecutive accepted samples, in measurement order
+        long jitter = 0L;
+        if (ok.length > 1) {
+            long prev = -1L;
+            long sum = 0L;
+            int pairs = 0;
+            for (int i = 0; i < n; i++) {
+                if (taken[i] < 0 || Arrays.binarySearch(ok, taken[i]) < 0) continue;
+                if (prev >= 0) {
+                    sum += Math.abs(taken[i] - prev);
+                    pairs++;
+                }
+                prev = taken[i];
+            }
+            jitter = pairs == 0 ? 0L : sum / pairs;
+        }
+        final double score = median + jitter + lossRate * timeout;
+        return new ServerRank(index, median, p90, jitter, lossRate, n, aborted, false, score);
+    }
+
+    /**
+     * Returns the sorted successful samples among the first {@code n}.
+     */
+    private static long[] successful(long[] taken, int n) {
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (taken[i] >= 0) count++;
+        }
+        long[] ok = new long[count];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (taken[i] >= 0) ok[j++] = taken[i];
+        }
+        Arrays.sort(ok);
+        return ok;
+    }
+
+    static long[] rejectOutliers(long[] sorted) {
+        if (sorted.length < 3) return sorted;
+        final long median = median(sorted);
+        final long[] deviations = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) deviations[i] = Math.abs(sorted[i] - median);
+        Arrays.sort(deviations);
+        final double limit = Math.max(OUTLIER_MADS * 1.4826 * median(deviations),
+                Math.max(median * OUTLIER_MIN_SHARE, OUTLIER_MIN_MS));
+        int count = 0;
+        for (long value : sorted) {
+            if (Math.abs(value - median) <= limit) count++;
+        }
+        long[] kept = new long[count];
+        int j = 0;
+        for (long value : sorted) {
+            if (Math.abs(value - median) <= limit) kept[j++] = value;
+        }
+        return kept;
+    }
+
+    private static long median(long[] sorted) {
+        final int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+
+    private interface Reporter {
+        void report(int index, long delay);
+    }
+
+    private interface RankReporter {
+        void report(int index, ServerRank rank);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Failure state and latency statistics per server endpoint ("address:port"), so a
+ * dead server only blocks delay tests against itself and not against every server.
+ */
+public final class ServerHealthTracker {
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long ERROR_COOLDOWN_MS = 3000L;
+    private static final long CIRCUIT_BREAKER_MS = 10000L;
+    private static final int MAX_SERVERS = 4096;
+    // Smoothing factors of the latency average and of the jitter estimate
+    private static final double EWMA_ALPHA = 0.3;
+    private static final double JITTER_ALPHA = 0.125;
+
+    private final ConcurrentHashMap<String, Entry> servers = new ConcurrentHashMap<>();
+
+    public static final class ServerStats {
+        public final String endpoint;
+        public final long samples;
+        public final long failures;
+        public final int consecutiveFailures;
+        public final long lastDelay;
+        public final double averageDelay;
+        public final double jitter;
+        public final long blockedForMs;
+
+        ServerStats(String endpoint, long samples, long failures, int consecutiveFailures,
+                    long lastDelay, double averageDelay, double jitter, long blockedForMs) {
+            this.endpoint = endpoint;
+            this.samples = samples;
+            this.failures = failures;
+            this.consecutiveFailures = consecutiveFailures;
+            this.lastDelay = lastDelay;
+            this.averageDelay = averageDelay;
+            this.jitter = jitter;
+            this.blockedForMs = blockedForMs;
+        }
+    }
+
+    /**
+     * Returns false while the breaker or the error cooldown of {@code endpoint} is open.
+     */
+    public boolean allowRequest(final String endpoint) {
+        if (endpoint == null) return true;
+        final Entry entry = servers.get(endpoint);
+        if (entry == null) return true;
+        synchronized (entry) {
+            return SystemClock.elapsedRealtime() >= entry.blockedUntil;
+        }
+    }
+
+    public void recordSuccess(final String endpoint, final long delay) {
+        if (endpoint == null) return;
+        final Entry entry = entry(endpoint);
+        synchronized (entry) {
+            if (entry.samples > entry.failures) {
+                entry.jitter += JITTER_ALPHA * (Math.abs(delay - entry.lastDelay) - entry.jitter);
+                entry.average += EWMA_ALPHA * (delay - entry.average);
+            } else {
+                entry.average = delay;
+            }
+            entry.samples++;
+            entry.lastDelay = delay;
+            entry.consecutiveFailures = 0;
+            entry.blockedUntil = 0L;
+            entry.updatedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Records a measurement that completed without a usable delay. The breaker of the
+     * endpoint opens after {@link #FAILURE_THRESHOLD} failures in a row.
+     */
+    public void recordFailure(final String endpoint) {
+        if (endpoint == null) return;
+        final Entry entry = entry(endpoint);
+        synchronized (entry) {
+            final long now = SystemClock.elapsedRealtime();
+            entry.samples++;
+            entry.failures++;
+            entry.consecutiveFailures++;
+            if (entry.consecutiveFailures >= FAILURE_THRESHOLD) {
+                entry.blockedUntil = now + CIRCUIT_BREAKER_MS;
+            }
+            entry.updatedAt = now;
+        }
+    }
+
+    /**
+     * Records a measurement that crashed inside the native layer and cools the
+     * endpoint down before it is tried again.
+     */
+    public void recordError(final String endpoint) {
+        if (endpoint == null) return;
+        recordFailure(endpoint);
+        final Entry entry = entry(endpoint);
+        synchronized (entry) {
+            entry.blockedUntil = Math.max(entry.blockedUntil, SystemClock.elapsedRealtime() + ERROR_COOLDOWN_MS);
+        }
+    }
+
+    public List<ServerStats> getStats() {
+        final long now = SystemClock.elapsedRealtime();
+        final List<ServerStats> stats = new ArrayList<>(servers.size());
+        for (Map.Entry<String, Entry> it : servers.entrySet()) {
+            final Entry entry = it.getValue();
+            synchronized (entry) {
+                stats.add(new ServerStats(it.getKey(), entry.samples, entry.failures, entry.consecutiveFailures,
+                        entry.lastDelay, entry.average, entry.jitter, Math.max(0L, entry.blockedUntil - now)));
+            }
+        }
+        return stats;
+    }
+
+    public void clear() {
+        servers.clear();
+    }
+
+    private Entry entry(final String endpoint) {
+        Entry entry = servers.get(endpoint);
+        if (entry == null) {
+            if (servers.size() >= MAX_SERVERS) evictOldest();
+            final Entry created = new Entry();
+            entry = servers.putIfAbsent(endpoint, created);
+            if (entry == null) entry = created;
+        }
+        return entry;
+    }
+
+    private void evictOldest() {
+        String oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, Entry>> it = servers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> next = it.next();
+            if (next.getValue().updatedAt < oldest) {
+                oldest = next.getValue().updatedAt;
+                oldestKey = next.getKey();
+            }
+        }
+        if (oldestKey != null) servers.remove(oldestKey);
+    }
+
+    private static final class Entry {
+        long samples;
+        long failures;
+        int consecutiveFailures;
+        long lastDelay = -1L;
+        double average;
+        double jitter;
+        long blockedUntil;
+        volatile long updatedAt;
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+
+/**
+ * Timestamps of the phases of a connection start, from {@code V2rayController.StartV2ray}
+ * in the app process to the fd handoff to tun2socks in the core process. Times are
+ * elapsed realtime in microseconds, which is the same clock in both processes; 0 means
+ * the phase was not reached, for example service creation and env init on a warm start.
+ * <p>
+ * The app process stamps its phases into a trace array that travels with the start
+ * intent. The core process adds its phases to the current trace, which goes to the
+ * history of the last {@link #MAX_TRACES} starts once the start succeeded or failed.
+ * Phases after that, like the fd handoff, are still added to it.
+ */
+public final class StartupTrace {
+    public static final int PHASE_REQUESTED = 0;
+    public static final int PHASE_CONFIG_PARSED = 1;
+    public static final int PHASE_SERVICE_REQUESTED = 2;
+    public static final int PHASE_SERVICE_CREATED = 3;
+    public static final int PHASE_ENV_INITIALIZED = 4;
+    public static final int PHASE_CONFIG_RECEIVED = 5;
+    public static final int PHASE_CORE_STARTING = 6;
+    public static final int PHASE_TUN_ESTABLISHED = 7;
+    public static final int PHASE_TUN2SOCKS_SPAWNED = 8;
+    public static final int PHASE_CORE_STARTED = 9;
+    public static final int PHASE_CONNECTED = 10;
+    public static final int PHASE_FD_SENT = 11;
+    public static final String[] PHASE_NAMES = {"requested", "configParsed", "serviceRequested", "serviceCreated",
+            "envInitialized", "configReceived", "coreStarting", "tunEstablished", "tun2socksSpawned", "coreStarted",
+            "connected", "fdSent"};
+    // The field after the phases holds one of the RESULT_* values
+    public static final int FIELD_RESULT = PHASE_NAMES.length;
+    public static final int STRIDE = FIELD_RESULT + 1;
+    public static final long RESULT_PENDING = 0L;
+    public static final long RESULT_CONNECTED = 1L;
+    public static final long RESULT_FAILED = 2L;
+    private static final int MAX_TRACES = 20;
+
+    // Guarded by the class
+    private static long[] current;
+    private static final ArrayDeque<long[]> traces = new ArrayDeque<>();
+
+    private StartupTrace() {
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos() / 1000L;
+    }
+
+    /**
+     * A new trace for the app process to stamp and put into the start intent.
+     */
+    public static long[] create() {
+        final long[] trace = new long[STRIDE];
+        trace[PHASE_REQUESTED] = now();
+        return trace;
+    }
+
+    public static void stamp(final long[] trace, final int phase) {
+        if (trace != null && trace[phase] == 0L) trace[phase] = now();
+    }
+
+    /**
+     * Starts a new current trace, when the service is created for a start.
+     */
+    public static synchronized void begin() {
+        current = new long[STRIDE];
+    }
+
+    /**
+     * Adds the phases the app process stamped to the current trace, or to a new one if
+     * the service was already running, and marks the config as received.
+     */
+    public static synchronized void attach(final long[] appTrace) {
+        if (current == null || current[FIELD_RESULT] != RESULT_PENDING) {
+            current = new long[STRIDE];
+        }
+        if (appTrace != null && appTrace.length == STRIDE) {
+            for (int phase = 0; phase < FIELD_RESULT; phase++) {
+                if (current[phase] == 0L) current[phase] = appTrace[phase];
+            }
+        }
+        stamp(current, PHASE_CONFIG_RECEIVED);
+    }
+
+    public static synchronized void mark(final int phase) {
+        stamp(current, phase);
+    }
+
+    /**
+     * Ends the current start and adds it to the history.
+     */
+    public static synchronized void finish(final boolean connected) {
+        if (current == null || current[FIELD_RESULT] != RESULT_PENDING) return;
+        current[FIELD_RESULT] = connected ? RESULT_CONNECTED : RESULT_FAILED;
+        if (traces.size() == MAX_TRACES) traces.removeFirst();
+        traces.addLast(current);
+    }
+
+    /**
+     * The finished traces, oldest first, {@link #STRIDE} values each.
+     */
+    public static synchronized long[] getTraces() {
+        final long[] packed = new long[traces.size() * STRIDE];
+        int offset = 0;
+        for (long[] trace : traces) {
+            System.arraycopy(trace, 0, packed, offset, STRIDE);
+            offset += STRIDE;
+        }
+        return packed;
+    }
+}
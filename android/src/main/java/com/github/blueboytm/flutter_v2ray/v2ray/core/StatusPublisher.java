@@ -0,0 +1,119 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayControlService;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sends every status sample of the core to the app processes subscribed through
+ * {@link V2rayControlService}. A status is a packed long[] with the layout given by the
+ * STATUS_* indices, so a sample is one parcelled array and no strings are built for it.
+ */
+public final class StatusPublisher {
+    private static final String TAG = StatusPublisher.class.getSimpleName();
+
+    public static final int STATUS_STATE = 0;
+    public static final int STATUS_DURATION = 1;
+    public static final int STATUS_UPLOAD_SPEED = 2;
+    public static final int STATUS_DOWNLOAD_SPEED = 3;
+    public static final int STATUS_UPLOAD_TRAFFIC = 4;
+    public static final int STATUS_DOWNLOAD_TRAFFIC = 5;
+    public static final int STATUS_SIZE = 6;
+
+    public interface SubscribersListener {
+        void onSubscribersChanged(boolean hasSubscribers);
+    }
+
+    private static final CopyOnWriteArrayList<Messenger> subscribers = new CopyOnWriteArrayList<>();
+    private static volatile SubscribersListener subscribersListener;
+    // Replayed to new subscribers, guarded by the class
+    private static final long[] lastStatus = disconnected();
+
+    private StatusPublisher() {
+    }
+
+    /**
+     * A status for no running core, STATE holds the ordinal of {@link AppConfigs.V2RAY_STATES}.
+     */
+    public static long[] disconnected() {
+        final long[] status = new long[STATUS_SIZE];
+        status[STATUS_STATE] = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED.ordinal();
+        return status;
+    }
+
+    public static void subscribe(final Messenger subscriber) {
+        if (subscriber == null || !subscribers.addIfAbsent(subscriber)) return;
+        final long[] status;
+        synchronized (StatusPublisher.class) {
+            status = lastStatus.clone();
+        }
+        send(subscriber, status);
+        notifySubscribersChanged();
+    }
+
+    public static void unsubscribe(final Messenger subscriber) {
+        if (subscribers.remove(subscriber)) notifySubscribersChanged();
+    }
+
+    /**
+     * Drops all subscribers when the control service goes away, they subscribe again once
+     * they are connected to the next one.
+     */
+    public static void clearSubscribers() {
+        if (subscribers.isEmpty()) return;
+        subscribers.clear();
+        notifySubscribersChanged();
+    }
+
+    public static boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Sets the listener told when the first subscriber arrives or the last one leaves, the
+     * sampler uses it to pause while nobody is listening.
+     */
+    public static void setSubscribersListener(final SubscribersListener listener) {
+        subscribersListener = listener;
+    }
+
+    private static void notifySubscribersChanged() {
+        final SubscribersListener listener = subscribersListener;
+        if (listener != null) {
+            listener.onSubscribersChanged(hasSubscribers());
+        }
+    }
+
+    /**
+     * Sends {@code status} to all subscribers. The array is parcelled before this returns,
+     * so the caller can reuse it for the next sample.
+     */
+    public static void publish(final long[] status) {
+        synchronized (StatusPublisher.class) {
+            System.arraycopy(status, 0, lastStatus, 0, STATUS_SIZE);
+        }
+        for (Messenger subscriber : subscribers) {
+            send(subscriber, status);
+        }
+    }
+
+    private static void send(final Messenger subscriber, final long[] status) {
+        final Message message = Message.obtain(null, V2rayControlService.MSG_STATUS);
+        final Bundle data = new Bundle();
+        data.putLongArray("STATUS", status);
+        message.setData(data);
+        try {
+            subscriber.send(message);
+        } catch (RemoteException e) {
+            Log.w(TAG, "status subscriber is gone");
+            unsubscribe(subscriber);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import java.util.Arrays;
+
+/**
+ * Traffic of the core over time, kept in two rings of primitive buckets: one per second
+ * for the last hour and one per minute for the last day. Both are written on every add,
+ * so the minute buckets are rollups that outlive the second buckets. Bucket numbers are
+ * elapsed realtime divided by the bucket length, so wall clock changes do not move them.
+ * <p>
+ * The memory is allocated once, about 80 KB, and nothing is allocated per sample.
+ */
+public final class TrafficHistory {
+    public static final long SECOND_MS = 1000L;
+    public static final long MINUTE_MS = 60000L;
+    private static final int SECONDS = 3600;
+    private static final int MINUTES = 24 * 60;
+
+    /**
+     * Traffic per point of a query, oldest point first. {@code endTime} is the wall clock
+     * time in milliseconds at which the newest point ends.
+     */
+    public static final class Series {
+        public final long endTime;
+        public final long resolution;
+        public final long[] uplink;
+        public final long[] downlink;
+
+        Series(long endTime, long resolution, long[] uplink, long[] downlink) {
+            this.endTime = endTime;
+            this.resolution = resolution;
+            this.uplink = uplink;
+            this.downlink = downlink;
+        }
+    }
+
+    private final Ring seconds = new Ring(SECONDS, SECOND_MS);
+    private final Ring minutes = new Ring(MINUTES, MINUTE_MS);
+
+    /**
+     * Adds bytes counted between two elapsed realtime timestamps, spread evenly over the
+     * buckets of that range so a sample taken after a pause does not become a spike.
+     */
+    public synchronized void add(final long fromMs, final long toMs, final long uplink, final long downlink) {
+        seconds.add(fromMs, toMs, uplink, downlink);
+        minutes.add(fromMs, toMs, uplink, downlink);
+    }
+
+    /**
+     * Returns the traffic of the last {@code windowMs} in points of {@code resolutionMs},
+     * up to {@code nowMs} (elapsed realtime). The resolution is rounded up to whole
+     * buckets; minute buckets are used when it is at least a minute or the window is
+     * longer than the second buckets go back. The window is capped at what is kept.
+     */
+    public synchronized Series query(final long windowMs, final long resolutionMs, final long nowMs, final long wallNowMs) {
+        final Ring ring = resolutionMs >= MINUTE_MS || windowMs > SECONDS * SECOND_MS ? minutes : seconds;
+        ring.advance(nowMs / ring.bucketMs);
+        final int perPoint = (int) Math.max(1L, Math.min(ring.capacity, (resolutionMs + ring.bucketMs - 1) / ring.bucketMs));
+        final int buckets = (int) Math.max(1L, Math.min(ring.capacity, (windowMs + ring.bucketMs - 1) / ring.bucketMs));
+        final int points = (buckets + perPoint - 1) / perPoint;
+        final long[] uplink = new long[points];
+        final long[] downlink = new long[points];
+        // The newest point ends with the current bucket, older points are complete
+        long bucket = ring.head - (long) points * perPoint + 1;
+        for (int point = 0; point < points; point++) {
+            for (int i = 0; i < perPoint; i++, bucket++) {
+                if (bucket <= ring.head - ring.capacity || bucket < 0) continue;
+                final int slot = (int) (bucket % ring.capacity);
+                uplink[point] += ring.uplink[slot];
+                downlink[point] += ring.downlink[slot];
+            }
+        }
+        final long endTime = wallNowMs + ((ring.head + 1) * ring.bucketMs - nowMs);
+        return new Series(endTime, perPoint * ring.bucketMs, uplink, downlink);
+    }
+
+    private static final class Ring {
+        final int capacity;
+        final long bucketMs;
+        final long[] uplink;
+        final long[] downlink;
+        // Bucket number of the newest bucket, older ones are at lower slots modulo capacity
+        long head = -1L;
+
+        Ring(int capacity, long bucketMs) {
+            this.capacity = capacity;
+            this.bucketMs = bucketMs;
+            this.uplink = new long[capacity];
+            this.downlink = new long[capacity];
+        }
+
+        void advance(final long bucket) {
+            if (bucket <= head) return;
+            if (head < 0 || bucket - head >= capacity) {
+                Arrays.fill(uplink, 0L);
+                Arrays.fill(downlink, 0L);
+            } else {
+                for (long b = head + 1; b <= bucket; b++) {
+                    final int slot = (int) (b % capacity);
+                    uplink[slot] = 0L;
+                    downlink[slot] = 0L;
+                }
+            }
+            head = bucket;
+        }
+
+        void add(final long fromMs, final long toMs, final long up, final long down) {
+            if (up <= 0 && down <= 0) {
+                advance(toMs / bucketMs);
+                return;
+            }
+            final long last = toMs / bucketMs;
+            // A range longer than the ring is spread over the buckets it keeps
+            advance(last);
+            final long first = Math.max(Math.min(fromMs, toMs) / bucketMs, head - capacity + 1);
+            long upLeft = up, downLeft = down;
+            for (long b = first; b <= last; b++) {
+                final long remaining = last - b + 1;
+                final long upShare = upLeft / remaining;
+                final long downShare = downLeft / remaining;
+                final int slot = (int) (b % capacity);
+                uplink[slot] += upShare;
+                downlink[slot] += downShare;
+                upLeft -= upShare;
+                downLeft -= downShare;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+/**
+ * Traffic of the core as counted by one pass of {@link TrafficStatsSampler}, which is the
+ * only reader of the read-and-reset counters of the core. A snapshot is never changed
+ * after it is published, so it can be read from any thread without locking; the arrays
+ * are shared by all readers and must not be modified.
+ * <p>
+ * The delta is the traffic between {@code fromMs} and {@code toMs} (elapsed realtime),
+ * the {@code fromMs} of a snapshot is the {@code toMs} of the previous one, so consumers
+ * that add up the deltas of every snapshot count every byte exactly once.
+ */
+public final class TrafficSnapshot {
+    /**
+     * Called on the sampler thread for every published snapshot, in order. Listeners must
+     * return quickly, the next pass waits for them.
+     */
+    public interface Listener {
+        void onSnapshot(TrafficSnapshot snapshot);
+    }
+
+    public static final TrafficSnapshot EMPTY = new TrafficSnapshot(0L, 0L, 0L, 0L,
+            new String[0], new long[0], new long[0], 0L, 0L, 0L, 0L);
+
+    // Increases by one per pass
+    public final long sequence;
+    public final long fromMs;
+    public final long toMs;
+    // Fingerprint of the server the traffic went through, see UsageLog.serverKey
+    public final long server;
+    // Bytes per outbound tag since the sampler started, sharing the tag indices
+    public final String[] tags;
+    public final long[] uplink;
+    public final long[] downlink;
+    // Bytes of all outbound tags since the sampler started
+    public final long totalUplink;
+    public final long totalDownlink;
+    public final long deltaUplink;
+    public final long deltaDownlink;
+
+    TrafficSnapshot(long sequence, long fromMs, long toMs, long server, String[] tags, long[] uplink, long[] downlink,
+                    long totalUplink, long totalDownlink, long deltaUplink, long deltaDownlink) {
+        this.sequence = sequence;
+        this.fromMs = fromMs;
+        this.toMs = toMs;
+        this.server = server;
+        this.tags = tags;
+        this.uplink = uplink;
+        this.downlink = downlink;
+        this.totalUplink = totalUplink;
+        this.totalDownlink = totalDownlink;
+        this.deltaUplink = deltaUplink;
+        this.deltaDownlink = deltaDownlink;
+    }
+}
@@ -0,0 +1,404 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.Utilities;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import libv2ray.V2RayPoint;
+
+/**
+ * Reads the traffic counters of the running core on a background thread and publishes
+ * the connection info through {@link StatusPublisher}. Duration and speeds come from
+ * monotonic timestamps, so a late sample neither drifts the duration nor inflates the
+ * speed. The V2RAY_CONNECTION_INFO broadcast is only sent when the state changes, or for
+ * every sample if {@code broadcastStatus} is set; state changes are published through
+ * {@link #publishState()} right away, also while sampling is paused.
+ * <p>
+ * Samples are taken every {@code intervalMs} only while an app process is subscribed and
+ * the screen is on. Otherwise sampling pauses, or slows down to {@link #IDLE_INTERVAL_MS}
+ * when every sample is broadcast, and it resumes with an immediate sample when a
+ * subscriber arrives or the screen turns on. Only publishing pauses: the counters are
+ * still read every {@link #ACCOUNTING_INTERVAL_MS} for the usage log, which would lose
+ * whatever the core counted if its process died during a pause. The first speed after a
+ * pause is the average over the pause.
+ * <p>
+ * Every outbound tag of the config is queried in one pass, and the sampler is the only
+ * caller of {@code queryStats}, which resets the counters it reads. Each pass publishes an
+ * immutable {@link TrafficSnapshot} with the totals and the delta since the previous pass;
+ * it is handed to the listener of the sampler and kept for {@link #refresh(long)}, so
+ * queries read the traffic without calling into the core again.
+ */
+public final class TrafficStatsSampler implements StatusPublisher.SubscribersListener {
+    private static final String TAG = TrafficStatsSampler.class.getSimpleName();
+    public static final long DEFAULT_INTERVAL_MS = 1000L;
+    private static final long MIN_INTERVAL_MS = 250L;
+    private static final long IDLE_INTERVAL_MS = 30000L;
+    private static final long QUERY_TIMEOUT_MS = 2000L;
+    private static final long ACCOUNTING_INTERVAL_MS = UsageLog.FLUSH_INTERVAL_MS;
+    // Queried when the config has no tagged outbounds, these are the tags of generated configs
+    private static final String[] DEFAULT_TAGS = {"proxy", "block"};
+
+    private final Context context;
+    private final V2RayPoint v2RayPoint;
+    private final boolean enableTrafficStatics;
+    private final boolean broadcastStatus;
+    private final long intervalMs;
+    private final TrafficSnapshot.Listener listener;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> nextSample;
+    private BroadcastReceiver screenReceiver;
+    private volatile boolean screenOn = true;
+    // Touched by the sampler thread only, after start()
+    private final long[] status = new long[StatusPublisher.STATUS_SIZE];
+    private AppConfigs.V2RAY_STATES broadcastState;
+    private long startedAtNanos;
+    private long lastSampleAtNanos;
+    private long sampledUplink, sampledDownlink;
+    private long totalUplink, totalDownlink;
+    private long sequence;
+    private long lastCollectAtMs;
+    // Replaced on setConfig, never modified, so snapshots share it
+    private String[] tags;
+    private long[] tagUplink, tagDownlink;
+    private long usageKey;
+    private volatile TrafficSnapshot snapshot = TrafficSnapshot.EMPTY;
+
+    public TrafficStatsSampler(Context context, V2RayPoint v2RayPoint, V2rayConfig v2rayConfig, TrafficSnapshot.Listener listener) {
+        this.context = context.getApplicationContext();
+        this.v2RayPoint = v2RayPoint;
+        this.listener = listener;
+        this.enableTrafficStatics = v2rayConfig.ENABLE_TRAFFIC_STATICS;
+        this.broadcastStatus = v2rayConfig.BROADCAST_STATUS;
+        this.intervalMs = v2rayConfig.STATS_INTERVAL <= 0 ? DEFAULT_INTERVAL_MS : Math.max(MIN_INTERVAL_MS, v2rayConfig.STATS_INTERVAL);
+        this.tags = tagsOf(v2rayConfig);
+        this.tagUplink = new long[tags.length];
+        this.tagDownlink = new long[tags.length];
+        this.usageKey = LatencyHistoryStore.fingerprint(UsageLog.serverKey(v2rayConfig));
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) return;
+        startedAtNanos = SystemClock.elapsedRealtimeNanos();
+        lastSampleAtNanos = startedAtNanos;
+        lastCollectAtMs = TimeUnit.NANOSECONDS.toMillis(startedAtNanos);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "V2RAY_STATS_SAMPLER");
+            t.setDaemon(true);
+            return t;
+        });
+        registerScreenReceiver();
+        StatusPublisher.setSubscribersListener(this);
+        scheduler.execute(this::sendState);
+        // The first sample reports the traffic even if nobody is subscribed yet
+        nextSample = scheduler.schedule(this::sample, intervalMs, TimeUnit.MILLISECONDS);
+        if (enableTrafficStatics) {
+            scheduler.scheduleWithFixedDelay(this::account, ACCOUNTING_INTERVAL_MS, ACCOUNTING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        StatusPublisher.setSubscribersListener(null);
+        unregisterScreenReceiver();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            nextSample = null;
+        }
+    }
+
+    /**
+     * Switches to the outbound tags and the server of a config the core was restarted
+     * with. Totals of tags in both configs are kept.
+     */
+    public synchronized void setConfig(final V2rayConfig v2rayConfig) {
+        if (scheduler == null) return;
+        final String[] next = tagsOf(v2rayConfig);
+        final long nextUsageKey = LatencyHistoryStore.fingerprint(UsageLog.serverKey(v2rayConfig));
+        scheduler.execute(() -> {
+            usageKey = nextUsageKey;
+            final long[] nextUplink = new long[next.length];
+            final long[] nextDownlink = new long[next.length];
+            for (int i = 0; i < next.length; i++) {
+                for (int j = 0; j < tags.length; j++) {
+                    if (tags[j].equals(next[i])) {
+                        nextUplink[i] = tagUplink[j];
+                        nextDownlink[i] = tagDownlink[j];
+                        break;
+                    }
+                }
+            }
+            tags = next;
+            tagUplink = nextUplink;
+            tagDownlink = nextDownlink;
+        });
+    }
+
+    /**
+     * Publishes the current state of the core if it changed since the last status, without
+     * waiting for the next sample, which may be paused.
+     */
+    public synchronized void publishState() {
+        if (scheduler == null) return;
+        try {
+            scheduler.execute(this::sendState);
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile, the disconnected state is published on its own
+        }
+    }
+
+    /**
+     * Reads the counters of the core now, before a restart of the core drops them. Blocks
+     * for at most {@link #QUERY_TIMEOUT_MS}.
+     */
+    public void flush() {
+        runOnSampler(this::collect);
+    }
+
+    /**
+     * Returns the latest snapshot if it is at most {@code maxAgeMs} old, and otherwise
+     * takes a new one, which blocks for at most {@link #QUERY_TIMEOUT_MS}. Sampling pauses
+     * without subscribers, so the latest snapshot can be much older than the interval.
+     */
+    public TrafficSnapshot refresh(final long maxAgeMs) {
+        final TrafficSnapshot current = snapshot;
+        if (current.sequence > 0 && SystemClock.elapsedRealtime() - current.toMs <= maxAgeMs) return current;
+        final TrafficSnapshot fresh = runOnSampler(this::collect);
+        return fresh == null ? snapshot : fresh;
+    }
+
+    private <T> T runOnSampler(final Callable<T> task) {
+        final Future<T> future;
+        synchronized (this) {
+            if (scheduler == null) return null;
+            try {
+                future = scheduler.submit(task);
+            } catch (RejectedExecutionException e) {
+                return null;
+            }
+        }
+        try {
+            return future.get(QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.w(TAG, "Sampler task failed: " + e.getMessage());
+            future.cancel(false);
+            return null;
+        }
+    }
+
+    private static String[] tagsOf(final V2rayConfig v2rayConfig) {
+        if (v2rayConfig.OUTBOUND_TAGS == null || v2rayConfig.OUTBOUND_TAGS.isEmpty()) return DEFAULT_TAGS.clone();
+        return v2rayConfig.OUTBOUND_TAGS.toArray(new String[0]);
+    }
+
+    @Override
+    public void onSubscribersChanged(boolean hasSubscribers) {
+        if (hasSubscribers) wake();
+    }
+
+    /**
+     * Takes a sample right away if sampling was paused or slowed down and should now run
+     * at the full rate.
+     */
+    private synchronized void wake() {
+        if (scheduler == null || currentInterval() != intervalMs) return;
+        // Already at the full rate, or a sample is running and schedules the next one itself
+        if (nextSample != null && nextSample.getDelay(TimeUnit.MILLISECONDS) <= intervalMs) return;
+        if (nextSample != null) nextSample.cancel(false);
+        nextSample = scheduler.schedule(this::sample, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The interval until the next sample, or 0 to pause until {@link #wake()}.
+     */
+    private long currentInterval() {
+        if (screenOn && StatusPublisher.hasSubscribers()) return intervalMs;
+        return broadcastStatus ? Math.max(intervalMs, IDLE_INTERVAL_MS) : 0L;
+    }
+
+    private synchronized void scheduleNext() {
+        if (scheduler == null) return;
+        final long delay = currentInterval();
+        nextSample = delay > 0 ? scheduler.schedule(this::sample, delay, TimeUnit.MILLISECONDS) : null;
+    }
+
+    private void registerScreenReceiver() {
+        try {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            screenOn = powerManager == null || powerManager.isInteractive();
+            // Doze only starts after the screen went off, so the screen state covers it
+            screenReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                    if (screenOn) wake();
+                }
+            };
+            IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            context.registerReceiver(screenReceiver, filter);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to watch the screen state: " + e.getMessage());
+            screenReceiver = null;
+            screenOn = true;
+        }
+    }
+
+    private void unregisterScreenReceiver() {
+        if (screenReceiver == null) return;
+        try {
+            context.unregisterReceiver(screenReceiver);
+        } catch (Exception e) {
+            // Ignore receiver unregistration errors
+        }
+        screenReceiver = null;
+    }
+
+    private void sample() {
+        try {
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final long elapsedNanos = Math.max(1L, now - lastSampleAtNanos);
+            lastSampleAtNanos = now;
+
+            final TrafficSnapshot current = collect();
+            final long downloadSpeed = (current.totalDownlink - sampledDownlink) * 1_000_000_000L / elapsedNanos;
+            final long uploadSpeed = (current.totalUplink - sampledUplink) * 1_000_000_000L / elapsedNanos;
+            sampledDownlink = current.totalDownlink;
+            sampledUplink = current.totalUplink;
+
+            final AppConfigs.V2RAY_STATES state = V2rayCoreManager.getInstance().V2RAY_STATE;
+            final long durationSeconds = TimeUnit.NANOSECONDS.toSeconds(now - startedAtNanos);
+            status[StatusPublisher.STATUS_STATE] = state.ordinal();
+            status[StatusPublisher.STATUS_DURATION] = durationSeconds;
+            status[StatusPublisher.STATUS_UPLOAD_SPEED] = uploadSpeed;
+            status[StatusPublisher.STATUS_DOWNLOAD_SPEED] = downloadSpeed;
+            status[StatusPublisher.STATUS_UPLOAD_TRAFFIC] = current.totalUplink;
+            status[StatusPublisher.STATUS_DOWNLOAD_TRAFFIC] = current.totalDownlink;
+            StatusPublisher.publish(status);
+            if (broadcastStatus || state != broadcastState) {
+                broadcast(state);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error in stats sample: " + e.getMessage(), e);
+        } finally {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Publishes a state change with the traffic of the last sample, runs on the sampler
+     * thread only.
+     */
+    private void sendState() {
+        try {
+            final AppConfigs.V2RAY_STATES state = V2rayCoreManager.getInstance().V2RAY_STATE;
+            if (state == broadcastState) return;
+            status[StatusPublisher.STATUS_STATE] = state.ordinal();
+            status[StatusPublisher.STATUS_DURATION] = TimeUnit.NANOSECONDS.toSeconds(SystemClock.elapsedRealtimeNanos() - startedAtNanos);
+            StatusPublisher.publish(status);
+            broadcast(state);
+        } catch (Exception e) {
+            Log.e(TAG, "Error publishing the state: " + e.getMessage(), e);
+        }
+    }
+
+    // The app process keeps its connection state from the broadcast
+    private void broadcast(final AppConfigs.V2RAY_STATES state) {
+        broadcastState = state;
+        Intent connection_info_intent = new Intent("V2RAY_CONNECTION_INFO");
+        connection_info_intent.putExtra("STATE", state);
+        connection_info_intent.putExtra("DURATION", formatDuration(status[StatusPublisher.STATUS_DURATION]));
+        connection_info_intent.putExtra("UPLOAD_SPEED", status[StatusPublisher.STATUS_UPLOAD_SPEED]);
+        connection_info_intent.putExtra("DOWNLOAD_SPEED", status[StatusPublisher.STATUS_DOWNLOAD_SPEED]);
+        connection_info_intent.putExtra("UPLOAD_TRAFFIC", status[StatusPublisher.STATUS_UPLOAD_TRAFFIC]);
+        connection_info_intent.putExtra("DOWNLOAD_TRAFFIC", status[StatusPublisher.STATUS_DOWNLOAD_TRAFFIC]);
+        final long broadcastAt = Metrics.now();
+        context.sendBroadcast(connection_info_intent);
+        Metrics.SEND_BROADCAST.record(broadcastAt, true);
+    }
+
+    /**
+     * Reads the counters unless a sample did so within the accounting interval, whatever
+     * the screen and subscriber state.
+     */
+    private void account() {
+        try {
+            if (SystemClock.elapsedRealtime() - lastCollectAtMs >= ACCOUNTING_INTERVAL_MS) collect();
+        } catch (Exception e) {
+            // An exception would cancel the schedule
+            Log.e(TAG, "Error in traffic accounting: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the bytes counted by the core since the previous call and publishes them as a
+     * new snapshot. Runs on the sampler thread only.
+     */
+    private TrafficSnapshot collect() {
+        if (!enableTrafficStatics) return snapshot;
+        long passUplink = 0L;
+        long passDownlink = 0L;
+        final long queriedAt = Metrics.now();
+        boolean queried = false;
+        try {
+            for (int i = 0; i < tags.length; i++) {
+                // queryStats returns the bytes since the previous call and resets the counter
+                final long uplink = v2RayPoint.queryStats(tags[i], "uplink");
+                final long downlink = v2RayPoint.queryStats(tags[i], "downlink");
+                if (uplink > 0) {
+                    tagUplink[i] += uplink;
+                    passUplink += uplink;
+                }
+                if (downlink > 0) {
+                    tagDownlink[i] += downlink;
+                    passDownlink += downlink;
+                }
+            }
+            queried = true;
+        } catch (UnsatisfiedLinkError nativeError) {
+            Log.w(TAG, "Native error in queryStats: " + nativeError.getMessage());
+        } catch (Exception statsError) {
+            Log.w(TAG, "Error collecting traffic stats: " + statsError.getMessage());
+        }
+        // One pass over all tags, a single call is too short to time on its own
+        Metrics.QUERY_STATS.record(queriedAt, queried);
+        final long nowMs = SystemClock.elapsedRealtime();
+        totalUplink += passUplink;
+        totalDownlink += passDownlink;
+        final TrafficSnapshot next = new TrafficSnapshot(++sequence, lastCollectAtMs, nowMs, usageKey, tags,
+                tagUplink.clone(), tagDownlink.clone(), totalUplink, totalDownlink, passUplink, passDownlink);
+        lastCollectAtMs = nowMs;
+        snapshot = next;
+        if (listener != null) {
+            try {
+                listener.onSnapshot(next);
+            } catch (Exception e) {
+                Log.w(TAG, "Traffic snapshot listener failed: " + e.getMessage());
+            }
+        }
+        return next;
+    }
+
+    private static String formatDuration(final long totalSeconds) {
+        // Wraps after a day like the duration always did
+        final int hours = (int) (totalSeconds / 3600 % 24);
+        final int minutes = (int) (totalSeconds / 60 % 60);
+        final int seconds = (int) (totalSeconds % 60);
+        return Utilities.convertIntToTwoDigit(hours) + ":" + Utilities.convertIntToTwoDigit(minutes) + ":" + Utilities.convertIntToTwoDigit(seconds);
+    }
+}
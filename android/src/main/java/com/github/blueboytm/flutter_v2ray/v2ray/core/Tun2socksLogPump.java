@@ -0,0 +1,130 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.util.Log;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Drains the output of tun2socks, which would block once the pipe is full if nobody read
+ * it. With capture enabled every line goes to a ring of the last {@link #MAX_LINES} lines
+ * and is counted by its level; without it the output is read in blocks and dropped, no
+ * line is split or stored.
+ * <p>
+ * The ring and the counters belong to the process, so they cover tun2socks restarts.
+ */
+public final class Tun2socksLogPump {
+    private static final String TAG = Tun2socksLogPump.class.getSimpleName();
+    private static final int MAX_LINES = 200;
+    private static final int MAX_LINE_LENGTH = 512;
+    private static final int DRAIN_BUFFER_SIZE = 8192;
+
+    public static final int COUNTER_LINES = 0;
+    public static final int COUNTER_ERRORS = 1;
+    public static final int COUNTER_WARNINGS = 2;
+    // Lines pushed out of the ring by newer ones
+    public static final int COUNTER_DROPPED = 3;
+    public static final int COUNTERS = 4;
+
+    // Guarded by the class
+    private static final String[] lines = new String[MAX_LINES];
+    private static int nextLine = 0;
+    private static int lineCount = 0;
+    private static final long[] counters = new long[COUNTERS];
+
+    private Tun2socksLogPump() {
+    }
+
+    /**
+     * Reads the output of {@code process} on its own thread until the process exits.
+     */
+    public static void start(final Process process, final boolean capture) {
+        final Thread thread = new Thread(() -> {
+            try (InputStream in = process.getInputStream()) {
+                if (capture) {
+                    pump(in);
+                } else {
+                    drain(in);
+                }
+            } catch (Exception e) {
+                // The stream is closed when tun2socks exits or is destroyed
+            }
+        }, "Tun2socks_Log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void drain(final InputStream in) throws Exception {
+        final byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        while (in.read(buffer) >= 0) {
+            // Only the pipe needs to be emptied
+        }
+    }
+
+    /**
+     * Splits the output into lines in a fixed buffer, the part of a line past
+     * {@link #MAX_LINE_LENGTH} is skipped up to the next newline, so output without
+     * newlines cannot grow a line without bound.
+     */
+    private static void pump(final InputStream in) throws Exception {
+        final Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        final char[] buffer = new char[DRAIN_BUFFER_SIZE];
+        final StringBuilder line = new StringBuilder(MAX_LINE_LENGTH);
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                final char c = buffer[i];
+                if (c == '\n') {
+                    addLine(line);
+                } else if (c != '\r' && line.length() < MAX_LINE_LENGTH) {
+                    line.append(c);
+                }
+            }
+        }
+        addLine(line);
+    }
+
+    private static void addLine(final StringBuilder line) {
+        if (line.length() > 0) add(line.toString());
+        line.setLength(0);
+    }
+
+    private static synchronized void add(final String line) {
+        counters[COUNTER_LINES]++;
+        // tun2socks prefixes lines with their level, like "ERROR(tun2socks): ..."
+        if (line.startsWith("ERROR")) {
+            counters[COUNTER_ERRORS]++;
+            Log.w(TAG, line);
+        } else if (line.startsWith("WARNING")) {
+            counters[COUNTER_WARNINGS]++;
+        }
+        if (lineCount == MAX_LINES) {
+            counters[COUNTER_DROPPED]++;
+        } else {
+            lineCount++;
+        }
+        lines[nextLine] = line;
+        nextLine = (nextLine + 1) % MAX_LINES;
+    }
+
+    /**
+     * The captured lines, oldest first.
+     */
+    public static synchronized String[] getLines() {
+        final String[] recent = new String[lineCount];
+        final int first = (nextLine - lineCount + MAX_LINES) % MAX_LINES;
+        for (int i = 0; i < lineCount; i++) {
+            recent[i] = lines[(first + i) % MAX_LINES];
+        }
+        return recent;
+    }
+
+    /**
+     * The counters packed as described by the COUNTER_* indices.
+     */
+    public static synchronized long[] getCounters() {
+        return counters.clone();
+    }
+}
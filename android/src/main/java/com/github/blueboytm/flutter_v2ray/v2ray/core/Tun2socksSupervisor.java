@@ -0,0 +1,194 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps tun2socks running for a VPN session. When the process exits it is started again
+ * after a backoff that doubles with every quick exit, and a run of at least
+ * {@link #STABLE_UPTIME_MS} resets it. More than {@link #RESTART_BUDGET} restarts within
+ * {@link #BUDGET_WINDOW_MS} mean the binary keeps crashing, the supervisor then gives up
+ * and tells its listener instead of spinning.
+ * <p>
+ * Exit codes, uptimes, restarts and the time without tun2socks are kept for the life of
+ * the process, across sessions, see {@link #getStats()}.
+ */
+public final class Tun2socksSupervisor {
+    private static final String TAG = Tun2socksSupervisor.class.getSimpleName();
+    static final long INITIAL_BACKOFF_MS = 250L;
+    static final long MAX_BACKOFF_MS = 30000L;
+    static final long STABLE_UPTIME_MS = 60000L;
+    static final int RESTART_BUDGET = 5;
+    static final long BUDGET_WINDOW_MS = 5 * 60000L;
+    private static final int MAX_EXITS = 16;
+
+    public static final int STATS_STARTS = 0;
+    public static final int STATS_RESTARTS = 1;
+    public static final int STATS_GIVE_UPS = 2;
+    public static final int STATS_DOWNTIME_MS = 3;
+    public static final int STATS_UPTIME_MS = 4;
+    // Followed by one [exit code, uptime ms, wall clock time of the exit] triple per recent exit
+    public static final int STATS_EXITS = 5;
+    public static final int EXIT_STRIDE = 3;
+
+    public interface Launcher {
+        /**
+         * Starts tun2socks and hands it the tunnel, called on the supervisor thread.
+         */
+        Process launch() throws Exception;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the supervisor thread when tun2socks cannot be kept running.
+         */
+        void onGaveUp();
+    }
+
+    // Guarded by the class, kept across sessions
+    private static long starts, restarts, giveUps, downtimeMs;
+    private static long runningSince = -1L;
+    private static final ArrayDeque<long[]> exits = new ArrayDeque<>();
+
+    private final Launcher launcher;
+    private final Listener listener;
+    private final Object lock = new Object();
+    private Thread thread;
+    private Process process;
+    private volatile boolean stopped = false;
+
+    public Tun2socksSupervisor(Launcher launcher, Listener listener) {
+        this.launcher = launcher;
+        this.listener = listener;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (thread != null || stopped) return;
+            thread = new Thread(this::supervise, "Tun2socks_Thread");
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops supervising and kills tun2socks, the supervisor cannot be started again.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (lock) {
+            if (process != null) process.destroy();
+            if (thread != null) thread.interrupt();
+        }
+    }
+
+    private void supervise() {
+        final RestartPolicy policy = new RestartPolicy();
+        long exitedAt = -1L;
+        try {
+            while (!stopped) {
+                Process started = null;
+                try {
+                    started = launcher.launch();
+                } catch (Exception e) {
+                    Log.e(TAG, "tun2socks failed to start => " + e.getMessage(), e);
+                }
+                final long startedAt = SystemClock.elapsedRealtime();
+                int exitCode = -1;
+                if (started != null) {
+                    synchronized (lock) {
+                        process = started;
+                        if (stopped) started.destroy();
+                    }
+                    onStarted(exitedAt, startedAt);
+                    exitCode = started.waitFor();
+                }
+                final long endedAt = SystemClock.elapsedRealtime();
+                final long uptimeMs = endedAt - startedAt;
+                // Downtime runs from the last exit of a process, a failed start does not end it
+                if (started != null) exitedAt = endedAt;
+                onExited(exitCode, uptimeMs, started != null);
+                if (stopped) break;
+                Log.w(TAG, "tun2socks exited with " + exitCode + " after " + uptimeMs + " ms");
+
+                final long backoffMs = policy.backoff(endedAt, uptimeMs);
+                if (backoffMs < 0) {
+                    Log.e(TAG, "tun2socks keeps exiting => giving up after " + RESTART_BUDGET + " restarts");
+                    synchronized (Tun2socksSupervisor.class) {
+                        giveUps++;
+                    }
+                    listener.onGaveUp();
+                    return;
+                }
+                Thread.sleep(backoffMs);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            synchronized (Tun2socksSupervisor.class) {
+                // Time after the last exit is not downtime once the session is over
+                runningSince = -1L;
+            }
+        }
+    }
+
+    /**
+     * Backoff and restart budget of one session, times are elapsed realtime.
+     */
+    static final class RestartPolicy {
+        private final ArrayDeque<Long> restartTimes = new ArrayDeque<>();
+        private long backoffMs = INITIAL_BACKOFF_MS;
+
+        /**
+         * Returns how long to wait before restarting tun2socks that exited at {@code endedAt}
+         * after running for {@code uptimeMs}, or -1 once the restart budget is used up.
+         */
+        long backoff(final long endedAt, final long uptimeMs) {
+            if (uptimeMs >= STABLE_UPTIME_MS) backoffMs = INITIAL_BACKOFF_MS;
+            while (!restartTimes.isEmpty() && endedAt - restartTimes.peekFirst() > BUDGET_WINDOW_MS) {
+                restartTimes.removeFirst();
+            }
+            if (restartTimes.size() >= RESTART_BUDGET) return -1L;
+            restartTimes.addLast(endedAt);
+            final long delay = backoffMs;
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+            return delay;
+        }
+    }
+
+    private static synchronized void onStarted(final long exitedAt, final long startedAt) {
+        if (exitedAt >= 0) {
+            restarts++;
+            downtimeMs += startedAt - exitedAt;
+        }
+        starts++;
+        runningSince = startedAt;
+    }
+
+    private static synchronized void onExited(final int exitCode, final long uptimeMs, final boolean ran) {
+        runningSince = -1L;
+        if (!ran) return;
+        if (exits.size() == MAX_EXITS) exits.removeFirst();
+        exits.addLast(new long[]{exitCode, uptimeMs, System.currentTimeMillis()});
+    }
+
+    /**
+     * Counters of this process packed as described by the STATS_* indices, the exits
+     * oldest first. The uptime is that of the running tun2socks, 0 if none runs.
+     */
+    public static synchronized long[] getStats() {
+        final long[] stats = new long[STATS_EXITS + exits.size() * EXIT_STRIDE];
+        stats[STATS_STARTS] = starts;
+        stats[STATS_RESTARTS] = restarts;
+        stats[STATS_GIVE_UPS] = giveUps;
+        stats[STATS_DOWNTIME_MS] = downtimeMs;
+        stats[STATS_UPTIME_MS] = runningSince < 0 ? 0L : SystemClock.elapsedRealtime() - runningSince;
+        int offset = STATS_EXITS;
+        for (long[] exit : exits) {
+            System.arraycopy(exit, 0, stats, offset, EXIT_STRIDE);
+            offset += EXIT_STRIDE;
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,444 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent traffic totals per local day and per server, for data caps and monthly usage.
+ * <p>
+ * Traffic is added in memory on the hot path and appended to {@code usage.log} every
+ * {@link #FLUSH_INTERVAL_MS}. Now and then the totals are written to
+ * {@code usage.checkpoint} and the log starts over. Both files carry a generation: the
+ * checkpoint of generation n contains every log before it, so after a crash a log older
+ * than the checkpoint is skipped instead of being counted twice, and a torn record at
+ * the end of the log is dropped. The sampler reads the counters of the core every
+ * {@link #FLUSH_INTERVAL_MS} even while its publishing is paused, so at most about two
+ * flush intervals of traffic are lost in a crash.
+ * <p>
+ * The totals are kept in memory, so queries never read the files. Only the core process
+ * writes them, the app process queries through {@link com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayControlService}.
+ */
+public final class UsageLog {
+    private static final String TAG = UsageLog.class.getSimpleName();
+    private static final String LOG_FILE_NAME = "usage.log";
+    private static final String CHECKPOINT_FILE_NAME = "usage.checkpoint";
+    private static final int LOG_MAGIC = 0x55534c47;
+    private static final int CHECKPOINT_MAGIC = 0x55534350;
+    private static final int VERSION = 1;
+    // magic (int) + version (int) + generation (long)
+    private static final int HEADER_SIZE = 16;
+    // epoch day (int) + server fingerprint (long) + uplink (long) + downlink (long)
+    private static final int RECORD_SIZE = 28;
+    private static final int DAY_ENTRY_SIZE = 20;
+    private static final int SERVER_ENTRY_SIZE = 28;
+    static final long FLUSH_INTERVAL_MS = 10000L;
+    private static final long CHECKPOINT_INTERVAL_MS = 15 * 60000L;
+    private static final int CHECKPOINT_RECORDS = 4096;
+    private static final int MAX_DAYS = 800;
+    private static final int MAX_SERVERS = 4096;
+    private static final long QUERY_TIMEOUT_MS = 3000L;
+    private static final long DAY_MS = 86400000L;
+
+    private volatile static UsageLog INSTANCE;
+
+    private final File logFile;
+    private final File checkpointFile;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "USAGE_LOG_WRITER");
+        t.setDaemon(true);
+        return t;
+    });
+    // Traffic not flushed yet per server fingerprint: uplink, downlink. Guarded by itself
+    private final HashMap<Long, long[]> pending = new HashMap<>();
+    // Touched by the writer thread only
+    private final TreeMap<Integer, long[]> days = new TreeMap<>();
+    // Per server fingerprint: uplink, downlink, last epoch day with traffic
+    private final HashMap<Long, long[]> servers = new HashMap<>();
+    private long generation = 0L;
+    // Generation in the header of the log on disk, behind generation while it could not be
+    // started over after a checkpoint
+    private long logGeneration = 0L;
+    private int recordsInLog = 0;
+    private long lastCheckpointAt = 0L;
+
+    private UsageLog(Context context) {
+        this(context.getApplicationContext().getFilesDir());
+    }
+
+    UsageLog(File dir) {
+        logFile = new File(dir, LOG_FILE_NAME);
+        checkpointFile = new File(dir, CHECKPOINT_FILE_NAME);
+        writer.execute(this::load);
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                flushPending();
+            } catch (Exception e) {
+                // An exception would cancel the schedule
+                Log.e(TAG, "failed to flush usage => ", e);
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the log and starts loading it in the background.
+     */
+    public static UsageLog init(Context context) {
+        if (INSTANCE == null) {
+            synchronized (UsageLog.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new UsageLog(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the log, or null if {@link #init(Context)} has not run in this process.
+     */
+    public static UsageLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Local day of a wall clock time as days since 1970-01-01.
+     */
+    public static int epochDay(final long timeMs) {
+        final long local = timeMs + TimeZone.getDefault().getOffset(timeMs);
+        return (int) (local >= 0 ? local / DAY_MS : (local - DAY_MS + 1) / DAY_MS);
+    }
+
+    /**
+     * The server a config connects to, usage is counted per server and not per config.
+     */
+    public static String serverKey(final V2rayConfig v2rayConfig) {
+        return v2rayConfig.CONNECTED_V2RAY_SERVER_ADDRESS + ":" + v2rayConfig.CONNECTED_V2RAY_SERVER_PORT;
+    }
+
+    /**
+     * Adds traffic of the server with {@code fingerprint}, see {@link LatencyHistoryStore#fingerprint}.
+     * Only touches memory.
+     */
+    public void add(final long fingerprint, final long uplink, final long downlink) {
+        if (uplink <= 0 && downlink <= 0) return;
+        synchronized (pending) {
+            long[] traffic = pending.get(fingerprint);
+            if (traffic == null) {
+                traffic = new long[2];
+                pending.put(fingerprint, traffic);
+            }
+            traffic[0] += Math.max(0L, uplink);
+            traffic[1] += Math.max(0L, downlink);
+        }
+    }
+
+    /**
+     * Writes the pending traffic now, for when the process may be gone soon.
+     */
+    public void flush() {
+        call(() -> {
+            flushPending();
+            return Boolean.TRUE;
+        });
+    }
+
+    /**
+     * Returns {@code [day, uplink, downlink]} triples for the days from {@code fromDay} to
+     * {@code toDay}, both inclusive, that have traffic, oldest first. Null on timeout.
+     */
+    public long[] getDailyUsage(final int fromDay, final int toDay) {
+        return call(() -> {
+            flushPending();
+            if (fromDay > toDay) return new long[0];
+            final SortedMap<Integer, long[]> range = days.subMap(fromDay, true, toDay, true);
+            final long[] result = new long[range.size() * 3];
+            int i = 0;
+            for (Map.Entry<Integer, long[]> it : range.entrySet()) {
+                result[i++] = it.getKey();
+                result[i++] = it.getValue()[0];
+                result[i++] = it.getValue()[1];
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Returns {@code [uplink, downlink]} pairs for the servers with the given fingerprints,
+     * in the same order, zeros for unknown ones. Null on timeout.
+     */
+    public long[] getServerUsage(final long[] fingerprints) {
+        return call(() -> {
+            flushPending();
+            final long[] result = new long[fingerprints.length * 2];
+            for (int i = 0; i < fingerprints.length; i++) {
+                final long[] traffic = servers.get(fingerprints[i]);
+                if (traffic != null) {
+                    result[i * 2] = traffic[0];
+                    result[i * 2 + 1] = traffic[1];
+                }
+            }
+            return result;
+        });
+    }
+
+    public void clear() {
+        writer.execute(() -> {
+            synchronized (pending) {
+                pending.clear();
+            }
+            days.clear();
+            servers.clear();
+            checkpoint();
+        });
+    }
+
+    private <T> T call(final Callable<T> task) {
+        try {
+            final Future<T> future = writer.submit(task);
+            return future.get(QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.w(TAG, "usage log task failed => " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void load() {
+        loadCheckpoint();
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw"); FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            int records = -1;
+            if (size >= HEADER_SIZE) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (map.getInt() == LOG_MAGIC && map.getInt() == VERSION) {
+                    final long logGeneration = map.getLong();
+                    // An older log was folded into the checkpoint before the crash
+                    if (logGeneration >= generation) {
+                        generation = logGeneration;
+                        records = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+                        for (int i = 0; i < records; i++) {
+                            apply(map.getInt(), map.getLong(), map.getLong(), map.getLong());
+                        }
+                    }
+                }
+            }
+            if (records < 0) {
+                rewriteHeader(channel, generation);
+                records = 0;
+            } else if (size != HEADER_SIZE + (long) records * RECORD_SIZE) {
+                // Drop a record that was torn by a crash in the middle of a write
+                channel.truncate(HEADER_SIZE + (long) records * RECORD_SIZE);
+            }
+            recordsInLog = records;
+            logGeneration = generation;
+        } catch (Exception e) {
+            Log.e(TAG, "failed to load usage log => ", e);
+        }
+        lastCheckpointAt = System.currentTimeMillis();
+    }
+
+    private void loadCheckpoint() {
+        if (!checkpointFile.exists()) return;
+        try (RandomAccessFile raf = new RandomAccessFile(checkpointFile, "r"); FileChannel channel = raf.getChannel()) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE + 12) return;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final CRC32 crc = new CRC32();
+            final byte[] body = new byte[(int) size - 4];
+            map.get(body);
+            crc.update(body);
+            if (map.getInt() != (int) crc.getValue()) {
+                Log.w(TAG, "usage checkpoint is corrupt, starting from the log");
+                return;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(body);
+            if (buffer.getInt() != CHECKPOINT_MAGIC || buffer.getInt() != VERSION) return;
+            final long checkpointGeneration = buffer.getLong();
+            final int dayCount = buffer.getInt();
+            final int serverCount = buffer.getInt();
+            for (int i = 0; i < dayCount; i++) {
+                days.put(buffer.getInt(), new long[]{buffer.getLong(), buffer.getLong()});
+            }
+            for (int i = 0; i < serverCount; i++) {
+                servers.put(buffer.getLong(), new long[]{buffer.getLong(), buffer.getLong(), buffer.getInt()});
+            }
+            generation = checkpointGeneration;
+        } catch (Exception e) {
+            Log.e(TAG, "failed to load usage checkpoint => ", e);
+            days.clear();
+            servers.clear();
+        }
+    }
+
+    private void flushPending() {
+        final HashMap<Long, long[]> traffic;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                maybeCheckpoint();
+                return;
+            }
+            traffic = new HashMap<>(pending);
+            pending.clear();
+        }
+        final int day = epochDay(System.currentTimeMillis());
+        final ByteBuffer buffer = ByteBuffer.allocate(traffic.size() * RECORD_SIZE);
+        for (Map.Entry<Long, long[]> it : traffic.entrySet()) {
+            final long[] bytes = it.getValue();
+            apply(day, it.getKey(), bytes[0], bytes[1]);
+            buffer.putInt(day).putLong(it.getKey()).putLong(bytes[0]).putLong(bytes[1]);
+        }
+        buffer.flip();
+        // Records in a log older than the checkpoint would be skipped by load()
+        if (logGeneration != generation && !startLog(generation)) {
+            maybeCheckpoint();
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(logFile, true); FileChannel channel = out.getChannel()) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+            recordsInLog += traffic.size();
+        } catch (IOException e) {
+            // The totals in memory have it, the next checkpoint persists it
+            Log.e(TAG, "failed to append usage log => ", e);
+        }
+        maybeCheckpoint();
+    }
+
+    private void maybeCheckpoint() {
+        if (recordsInLog >= CHECKPOINT_RECORDS || logGeneration != generation
+                || (recordsInLog > 0 && System.currentTimeMillis() - lastCheckpointAt >= CHECKPOINT_INTERVAL_MS)) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes the totals as the checkpoint of the next generation and then starts a log of
+     * that generation, each through a temporary file. A crash in between leaves a log that
+     * is older than the checkpoint, which load() skips. Nothing is appended to the log until
+     * it has been started over, the totals in memory keep the traffic meanwhile.
+     */
+    private void checkpoint() {
+        final long next = generation + 1;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8
+                + days.size() * DAY_ENTRY_SIZE + servers.size() * SERVER_ENTRY_SIZE + 4);
+        buffer.putInt(CHECKPOINT_MAGIC).putInt(VERSION).putLong(next);
+        buffer.putInt(days.size()).putInt(servers.size());
+        for (Map.Entry<Integer, long[]> it : days.entrySet()) {
+            buffer.putInt(it.getKey()).putLong(it.getValue()[0]).putLong(it.getValue()[1]);
+        }
+        for (Map.Entry<Long, long[]> it : servers.entrySet()) {
+            buffer.putLong(it.getKey()).putLong(it.getValue()[0]).putLong(it.getValue()[1]).putInt((int) it.getValue()[2]);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        if (!replace(checkpointFile, buffer)) return;
+        generation = next;
+        startLog(next);
+        lastCheckpointAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts an empty log of {@code next}, rewriting the header in place if the log cannot
+     * be replaced. A crash in the middle leaves a short log, which load() starts over too.
+     */
+    private boolean startLog(final long next) {
+        if (!replace(logFile, header(LOG_MAGIC, next))) {
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw"); FileChannel channel = raf.getChannel()) {
+                rewriteHeader(channel, next);
+                channel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "failed to start usage log => ", e);
+                return false;
+            }
+        }
+        logGeneration = next;
+        recordsInLog = 0;
+        return true;
+    }
+
+    private static void rewriteHeader(final FileChannel channel, final long generation) throws IOException {
+        channel.truncate(0);
+        channel.write(header(LOG_MAGIC, generation), 0);
+    }
+
+    private static boolean replace(final File file, final ByteBuffer content) {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp); FileChannel channel = out.getChannel()) {
+            while (content.hasRemaining()) channel.write(content);
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write " + file.getName() + " => ", e);
+            temp.delete();
+            return false;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "failed to replace " + file.getName());
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer header(final int magic, final long generation) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(magic).putInt(VERSION).putLong(generation).flip();
+        return header;
+    }
+
+    private void apply(final int day, final long fingerprint, final long uplink, final long downlink) {
+        long[] dayTotals = days.get(day);
+        if (dayTotals == null) {
+            dayTotals = new long[2];
+            days.put(day, dayTotals);
+            while (days.size() > MAX_DAYS) days.pollFirstEntry();
+        }
+        dayTotals[0] += uplink;
+        dayTotals[1] += downlink;
+        long[] serverTotals = servers.get(fingerprint);
+        if (serverTotals == null) {
+            if (servers.size() >= MAX_SERVERS) evictLeastRecent();
+            serverTotals = new long[3];
+            servers.put(fingerprint, serverTotals);
+        }
+        serverTotals[0] += uplink;
+        serverTotals[1] += downlink;
+        serverTotals[2] = Math.max(serverTotals[2], day);
+    }
+
+    private void evictLeastRecent() {
+        Long oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        Iterator<Map.Entry<Long, long[]>> it = servers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, long[]> next = it.next();
+            if (next.getValue()[2] < oldest) {
+                oldest = next.getValue()[2];
+                oldestKey = next.getKey();
+            }
+        }
+        if (oldestKey != null) servers.remove(oldestKey);
+    }
+}
@@ -8,29 +8,39 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Build;
-import android.os.CountDownTimer;
+import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 
 import com.github.blueboytm.flutter_v2ray.v2ray.interfaces.V2rayServicesListener;
+import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayControlService;
 import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayProxyOnlyService;
 import com.github.blueboytm.flutter_v2ray.v2ray.services.V2rayVPNService;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.AssetInstaller;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.Utilities;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
 
 import org.json.JSONObject;
 
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import libv2ray.Libv2ray;
 import libv2ray.V2RayPoint;
@@ -101,6 +111,10 @@ public final class V2rayCoreManager {
         @Override
         public long setup(String s) {
             try {
+                if (keepTunnel) {
+                    Log.d(V2rayCoreManager.class.getSimpleName(), "setup => core restarted, keeping the running tunnel");
+                    return 0;
+                }
                 if (v2rayServicesListener != null) {
                     try {
                         v2rayServicesListener.startService();
@@ -125,22 +139,54 @@ public final class V2rayCoreManager {
     }, Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1);
     public AppConfigs.V2RAY_STATES V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
     private boolean isLibV2rayCoreInitialized = false;
-    private CountDownTimer countDownTimer;
-    private int seconds, minutes, hours;
-    private long totalDownload, totalUpload, uploadSpeed, downloadSpeed;
-    private String SERVICE_DURATION = "00:00:00";
+    // initV2Env is needed once per process, not for every service created in it
+    private boolean isV2EnvInitialized = false;
+    private TrafficStatsSampler trafficStatsSampler;
+    // Kept across connections for the life of the core process
+    private final TrafficHistory trafficHistory = new TrafficHistory();
+    // The listener of every sampler, so the history and the usage log count each pass once
+    private final TrafficSnapshot.Listener trafficDispatcher = snapshot -> {
+        trafficHistory.add(snapshot.fromMs, snapshot.toMs, snapshot.deltaUplink, snapshot.deltaDownlink);
+        final UsageLog usageLog = UsageLog.getInstance();
+        if (usageLog != null) {
+            usageLog.add(snapshot.server, snapshot.deltaUplink, snapshot.deltaDownlink);
+        }
+    };
     // Serialize delay measurements to avoid concurrent native calls
     private final Object delayLock = new Object();
-    // Throttle and cooldown to avoid hitting native bugs under heavy failures
+    // Throttle native calls, cooldowns and breakers are tracked per server
     private long lastDelayCallAt = 0L;
-    private long delayCooldownUntil = 0L;
-    private int consecutiveDelayErrors = 0;
     private static final long MIN_DELAY_INTERVAL_MS = 120L;
-    private static final long ERROR_COOLDOWN_MS = 3000L;
-    private long circuitBreakerUntil = 0L;
-    private int errorWindowCount = 0;
-    private static final int ERROR_WINDOW_THRESHOLD = 5;
-    private static final long CIRCUIT_BREAKER_MS = 10000L;
+    private final ServerHealthTracker serverHealthTracker = new ServerHealthTracker();
+    private static final long CONNECTED_DELAY_TIMEOUT_MS = 2500L;
+    private final DelayConfigCache delayConfigCache = new DelayConfigCache();
+    // Recent delay results and measurements in flight, keyed by config hash and url
+    private static final long DEFAULT_DELAY_RESULT_TTL_MS = 3000L;
+    private static final int MAX_DELAY_RESULTS = 4096;
+    private final ConcurrentHashMap<String, CachedDelay> delayResults = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<Long>> inFlightDelays = new ConcurrentHashMap<>();
+    private volatile long delayResultTtlMs = DEFAULT_DELAY_RESULT_TTL_MS;
+    // Config the core is running with, AppConfigs.V2RAY_CONFIG belongs to the app process
+    private volatile V2rayConfig currentV2rayConfig;
+    private ConnectionHealthMonitor connectionHealthMonitor;
+    // Set while only the core is restarted, so setup() leaves the TUN interface and tun2socks alone
+    private volatile boolean keepTunnel = false;
+    private static final long DEFAULT_FAILOVER_CHECK_INTERVAL_MS = 5000L;
+    // Bounds how long a start without any installed assets waits for their install
+    private static final long ASSET_INSTALL_TIMEOUT_MS = 5000L;
+    private volatile Future<?> assetInstall;
+    // Keeps the control service up while a connection runs. The app process only attaches to
+    // a running one for the status, so it does not start the core process on its own
+    private final ServiceConnection controlServiceHold = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+    private Context controlServiceContext;
 
     public static V2rayCoreManager getInstance() {
         if (INSTANCE == null) {
@@ -153,125 +199,46 @@ public final class V2rayCoreManager {
         return INSTANCE;
     }
 
-    private void makeDurationTimer(final Context context, final boolean enable_traffic_statics) {
+    private synchronized void holdControlService(final Context context) {
+        if (controlServiceContext != null) return;
         try {
-            // Validate input parameters
-            if (context == null) {
-                Log.e(V2rayCoreManager.class.getSimpleName(), "makeDurationTimer failed => context is null");
-                return;
-            }
-            
-            // Cancel existing timer to prevent multiple timers
-            if (countDownTimer != null) {
-                try {
-                    countDownTimer.cancel();
-                } catch (Exception e) {
-                    Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to cancel existing timer: " + e.getMessage());
-                }
+            if (context.bindService(new Intent(context, V2rayControlService.class), controlServiceHold, Context.BIND_AUTO_CREATE)) {
+                controlServiceContext = context;
             }
-            
-            countDownTimer = new CountDownTimer(7200000, 1000) { // 2 hours in milliseconds
-                @RequiresApi(api = Build.VERSION_CODES.M)
-                public void onTick(long millisUntilFinished) {
-                    try {
-                        seconds++;
-                        if (seconds >= 60) {
-                            minutes++;
-                            seconds = 0;
-                        }
-                        if (minutes >= 60) {
-                            minutes = 0;
-                            hours++;
-                        }
-                        if (hours >= 24) {
-                            hours = 0;
-                        }
-                        
-                        // Safe traffic statistics collection
-                        if (enable_traffic_statics && v2RayPoint != null) {
-                            try {
-                                long newDownloadSpeed = v2RayPoint.queryStats("block", "downlink") + v2RayPoint.queryStats("proxy", "downlink");
-                                long newUploadSpeed = v2RayPoint.queryStats("block", "uplink") + v2RayPoint.queryStats("proxy", "uplink");
-                                
-                                // Validate stats values
-                                if (newDownloadSpeed >= 0 && newUploadSpeed >= 0) {
-                                    downloadSpeed = newDownloadSpeed;
-                                    uploadSpeed = newUploadSpeed;
-                                    totalDownload = totalDownload + downloadSpeed;
-                                    totalUpload = totalUpload + uploadSpeed;
-                                }
-                            } catch (UnsatisfiedLinkError nativeError) {
-                                Log.w(V2rayCoreManager.class.getSimpleName(), "Native error in queryStats: " + nativeError.getMessage());
-                                // Continue without stats - not critical
-                            } catch (Exception statsError) {
-                                Log.w(V2rayCoreManager.class.getSimpleName(), "Error collecting traffic stats: " + statsError.getMessage());
-                                // Continue without stats - not critical
-                            }
-                        }
-                        
-                        // Safe duration formatting
-                        try {
-                            SERVICE_DURATION = Utilities.convertIntToTwoDigit(hours) + ":" + 
-                                             Utilities.convertIntToTwoDigit(minutes) + ":" + 
-                                             Utilities.convertIntToTwoDigit(seconds);
-                        } catch (Exception formatError) {
-                            Log.w(V2rayCoreManager.class.getSimpleName(), "Error formatting duration: " + formatError.getMessage());
-                            SERVICE_DURATION = "00:00:00"; // Fallback
-                        }
-                        
-                        // Safe broadcast sending
-                        try {
-                            Intent connection_info_intent = new Intent("V2RAY_CONNECTION_INFO");
-                            connection_info_intent.putExtra("STATE", V2rayCoreManager.getInstance().V2RAY_STATE);
-                            connection_info_intent.putExtra("DURATION", SERVICE_DURATION);
-                            connection_info_intent.putExtra("UPLOAD_SPEED", uploadSpeed);
-                            connection_info_intent.putExtra("DOWNLOAD_SPEED", downloadSpeed);
-                            connection_info_intent.putExtra("UPLOAD_TRAFFIC", totalUpload);
-                            connection_info_intent.putExtra("DOWNLOAD_TRAFFIC", totalDownload);
-                            
-                            if (context != null) {
-                                context.sendBroadcast(connection_info_intent);
-                            }
-                        } catch (Exception broadcastError) {
-                            Log.w(V2rayCoreManager.class.getSimpleName(), "Error sending broadcast: " + broadcastError.getMessage());
-                            // Continue - broadcast failure is not critical
-                        }
-                        
-                    } catch (Exception tickError) {
-                        Log.e(V2rayCoreManager.class.getSimpleName(), "Error in timer tick: " + tickError.getMessage(), tickError);
-                        // Continue timer execution
-                    }
-                }
+        } catch (Exception e) {
+            Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to bind the control service: " + e.getMessage());
+        }
+    }
 
-                public void onFinish() {
-                    try {
-                        if (countDownTimer != null) {
-                            countDownTimer.cancel();
-                        }
-                        
-                        // Restart timer if V2Ray is still running
-                        if (V2rayCoreManager.getInstance() != null && 
-                            V2rayCoreManager.getInstance().isV2rayCoreRunning() && 
-                            context != null) {
-                            makeDurationTimer(context, enable_traffic_statics);
-                        }
-                    } catch (Exception finishError) {
-                        Log.e(V2rayCoreManager.class.getSimpleName(), "Error in timer finish: " + finishError.getMessage(), finishError);
-                    }
-                }
-            };
-            
-            // Start timer with error handling
-            try {
-                countDownTimer.start();
-            } catch (Exception startError) {
-                Log.e(V2rayCoreManager.class.getSimpleName(), "Failed to start timer: " + startError.getMessage(), startError);
-                countDownTimer = null;
-            }
-            
+    private synchronized void releaseControlService() {
+        if (controlServiceContext == null) return;
+        try {
+            controlServiceContext.unbindService(controlServiceHold);
         } catch (Exception e) {
-            Log.e(V2rayCoreManager.class.getSimpleName(), "Critical error in makeDurationTimer: " + e.getMessage(), e);
-            countDownTimer = null;
+            Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to unbind the control service: " + e.getMessage());
+        }
+        controlServiceContext = null;
+    }
+
+    private synchronized void startStatsSampler(final Context context, final V2rayConfig v2rayConfig) {
+        stopStatsSampler();
+        trafficStatsSampler = new TrafficStatsSampler(context, v2RayPoint, v2rayConfig, trafficDispatcher);
+        trafficStatsSampler.start();
+    }
+
+    /**
+     * Sends a state change to the app processes right away, the sampler may be paused.
+     */
+    private synchronized void publishState() {
+        if (trafficStatsSampler != null) {
+            trafficStatsSampler.publishState();
+        }
+    }
+
+    private synchronized void stopStatsSampler() {
+        if (trafficStatsSampler != null) {
+            trafficStatsSampler.stop();
+            trafficStatsSampler = null;
         }
     }
 
@@ -314,6 +281,7 @@ public final class V2rayCoreManager {
                 isLibV2rayCoreInitialized = false;
                 return;
             }
+            UsageLog.init(appContext);
             
             // Safe native library initialization
             try {
@@ -324,8 +292,14 @@ public final class V2rayCoreManager {
                     return;
                 }
                 
-                Libv2ray.initV2Env(assetsPath, "");
-                Log.d(V2rayCoreManager.class.getSimpleName(), "V2Ray environment initialized successfully");
+                if (!isV2EnvInitialized) {
+                    // Only sets the assets path, the files are read once the core starts
+                    Libv2ray.initV2Env(assetsPath, "");
+                    isV2EnvInitialized = true;
+                    assetInstall = installAssets(appContext);
+                    StartupTrace.mark(StartupTrace.PHASE_ENV_INITIALIZED);
+                    Log.d(V2rayCoreManager.class.getSimpleName(), "V2Ray environment initialized successfully");
+                }
                 
             } catch (UnsatisfiedLinkError nativeError) {
                 Log.e(V2rayCoreManager.class.getSimpleName(), "setUpListener failed => native library error: " + nativeError.getMessage(), nativeError);
@@ -339,14 +313,6 @@ public final class V2rayCoreManager {
             
             // Initialize state variables safely
             isLibV2rayCoreInitialized = true;
-            SERVICE_DURATION = "00:00:00";
-            seconds = 0;
-            minutes = 0;
-            hours = 0;
-            uploadSpeed = 0;
-            downloadSpeed = 0;
-            totalDownload = 0;
-            totalUpload = 0;
             
             // Safe logging
             try {
@@ -418,12 +384,13 @@ public final class V2rayCoreManager {
             }
             
             V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_CONNECTING;
+            holdControlService(service.getApplicationContext());
             
-            // Start duration timer with error handling
+            // Start stats sampler with error handling
             try {
-                makeDurationTimer(service.getApplicationContext(), v2rayConfig.ENABLE_TRAFFIC_STATICS);
+                startStatsSampler(service.getApplicationContext(), v2rayConfig);
             } catch (Exception timerError) {
-                Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to start duration timer: " + timerError.getMessage());
+                Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to start stats sampler: " + timerError.getMessage());
                 // Continue without timer - not critical
             }
             
@@ -431,11 +398,25 @@ public final class V2rayCoreManager {
             try {
                 v2RayPoint.setConfigureFileContent(v2rayConfig.V2RAY_FULL_JSON_CONFIG);
                 v2RayPoint.setDomainName(v2rayConfig.CONNECTED_V2RAY_SERVER_ADDRESS + ":" + v2rayConfig.CONNECTED_V2RAY_SERVER_PORT);
-                v2RayPoint.runLoop(false);
+                awaitAssets(service.getApplicationContext());
+                StartupTrace.mark(StartupTrace.PHASE_CORE_STARTING);
+                final long runLoopAt = Metrics.now();
+                try {
+                    v2RayPoint.runLoop(false);
+                } catch (Throwable t) {
+                    Metrics.RUN_LOOP.record(runLoopAt, false);
+                    throw t;
+                }
+                Metrics.RUN_LOOP.record(runLoopAt, isV2rayCoreRunning());
+                StartupTrace.mark(StartupTrace.PHASE_CORE_STARTED);
                 
                 // Verify core started successfully
                 if (isV2rayCoreRunning()) {
+                    currentV2rayConfig = v2rayConfig;
                     V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_CONNECTED;
+                    publishState();
+                    StartupTrace.mark(StartupTrace.PHASE_CONNECTED);
+                    startHealthMonitor(service.getApplicationContext(), v2rayConfig);
                     try {
                         showNotification(v2rayConfig);
                     } catch (Exception notificationError) {
@@ -447,16 +428,22 @@ public final class V2rayCoreManager {
                 } else {
                     Log.e(V2rayCoreManager.class.getSimpleName(), "V2Ray core failed to start - not running after runLoop");
                     V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
+                    publishState();
+                    releaseControlService();
                     return false;
                 }
                 
             } catch (UnsatisfiedLinkError nativeError) {
                 Log.e(V2rayCoreManager.class.getSimpleName(), "Native library error in startCore: " + nativeError.getMessage(), nativeError);
                 V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
+                publishState();
+                releaseControlService();
                 return false;
             } catch (Exception coreError) {
                 Log.e(V2rayCoreManager.class.getSimpleName(), "V2Ray core error in startCore: " + coreError.getMessage(), coreError);
                 V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
+                publishState();
+                releaseControlService();
                 return false;
             }
             
@@ -464,18 +451,54 @@ public final class V2rayCoreManager {
             Log.e(V2rayCoreManager.class.getSimpleName(), "startCore interrupted: " + e.getMessage(), e);
             Thread.currentThread().interrupt();
             V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
+            releaseControlService();
             return false;
         } catch (Exception e) {
             Log.e(V2rayCoreManager.class.getSimpleName(), "Unexpected error in startCore: " + e.getMessage(), e);
             V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
+            releaseControlService();
             return false;
         } catch (Throwable t) {
             Log.e(V2rayCoreManager.class.getSimpleName(), "Critical error in startCore: " + t.getMessage(), t);
             V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
+            releaseControlService();
             return false;
         }
     }
 
+    /**
+     * Installs the assets on a background thread, the services set up the core on the main
+     * thread and hashing the geo files there after an app update would block it.
+     */
+    private static Future<?> installAssets(final Context context) {
+        final ExecutorService installer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "V2RAY_ASSET_INSTALL");
+            t.setDaemon(true);
+            return t;
+        });
+        // Waits if the app process is installing the assets right now
+        final Future<?> install = installer.submit(() -> Utilities.copyAssets(context));
+        installer.shutdown();
+        return install;
+    }
+
+    /**
+     * Installed assets are replaced through a rename, so the core can start with those of
+     * the previous version while the new ones are copied. Only a start without any
+     * installed assets waits for the install, for at most {@link #ASSET_INSTALL_TIMEOUT_MS}.
+     */
+    private void awaitAssets(final Context context) {
+        final Future<?> install = assetInstall;
+        if (install == null || install.isDone() || AssetInstaller.isInstalled(context)) return;
+        try {
+            install.get(ASSET_INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.w(V2rayCoreManager.class.getSimpleName(), "Starting without the assets => " + e.getMessage());
+        }
+    }
+
     public void stopCore() {
         try {
             // Safe notification cancellation
@@ -499,12 +522,17 @@ public final class V2rayCoreManager {
             try {
                 wasRunning = isV2rayCoreRunning();
                 if (wasRunning && v2RayPoint != null) {
+                    flushTrafficStats();
+                    final long stopLoopAt = Metrics.now();
                     try {
                         v2RayPoint.stopLoop();
+                        Metrics.STOP_LOOP.record(stopLoopAt, true);
                         Log.d(V2rayCoreManager.class.getSimpleName(), "V2Ray core stopLoop called successfully");
                     } catch (UnsatisfiedLinkError nativeError) {
+                        Metrics.STOP_LOOP.record(stopLoopAt, false);
                         Log.e(V2rayCoreManager.class.getSimpleName(), "Native error stopping V2Ray core: " + nativeError.getMessage(), nativeError);
                     } catch (Exception coreError) {
+                        Metrics.STOP_LOOP.record(stopLoopAt, false);
                         Log.e(V2rayCoreManager.class.getSimpleName(), "Error stopping V2Ray core: " + coreError.getMessage(), coreError);
                     }
                     
@@ -547,42 +575,213 @@ public final class V2rayCoreManager {
             
             // Emergency state cleanup
             V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
-            if (countDownTimer != null) {
+            try {
+                stopStatsSampler();
+            } catch (Exception timerError) {
+                // Ignore sampler cancellation errors
+            }
+        }
+    }
+
+    /**
+     * Counts the traffic of the running core and writes the usage log, before the core
+     * and maybe the whole process go away.
+     */
+    private void flushTrafficStats() {
+        try {
+            final TrafficStatsSampler sampler;
+            synchronized (this) {
+                sampler = trafficStatsSampler;
+            }
+            if (sampler != null) {
+                sampler.flush();
+            }
+            final UsageLog usageLog = UsageLog.getInstance();
+            if (usageLog != null) {
+                usageLog.flush();
+            }
+        } catch (Exception e) {
+            Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to flush traffic stats: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the traffic per outbound tag of the running connection, or null if there is
+     * none.
+     */
+    public TrafficSnapshot getOutboundTraffic() {
+        final TrafficStatsSampler sampler;
+        synchronized (this) {
+            sampler = trafficStatsSampler;
+        }
+        return sampler == null ? null : sampler.refresh(TrafficHistory.SECOND_MS);
+    }
+
+    /**
+     * Returns the traffic of the last {@code windowMs} in points of {@code resolutionMs},
+     * see {@link TrafficHistory#query}.
+     */
+    public TrafficHistory.Series getTrafficHistory(final long windowMs, final long resolutionMs) {
+        final TrafficStatsSampler sampler;
+        synchronized (this) {
+            sampler = trafficStatsSampler;
+        }
+        if (sampler != null) {
+            sampler.refresh(TrafficHistory.SECOND_MS);
+        }
+        return trafficHistory.query(windowMs, resolutionMs, SystemClock.elapsedRealtime(), System.currentTimeMillis());
+    }
+
+    /**
+     * Restarts only the core with {@code v2rayConfig} while the service, the TUN interface and
+     * tun2socks keep running, which takes a core start instead of a new VPN session. The local
+     * SOCKS port must stay the same because tun2socks is connected to it. If the new config
+     * does not start, the previous one is started again.
+     */
+    public synchronized boolean restartCore(final V2rayConfig v2rayConfig) {
+        final V2rayConfig running = currentV2rayConfig;
+        if (v2rayConfig == null || running == null || !isV2rayCoreRunning()) {
+            Log.w(V2rayCoreManager.class.getSimpleName(), "restartCore => core is not running");
+            return false;
+        }
+        if (v2rayConfig.LOCAL_SOCKS5_PORT != running.LOCAL_SOCKS5_PORT) {
+            Log.w(V2rayCoreManager.class.getSimpleName(), "restartCore => local socks port differs, tun2socks would lose the core");
+            return false;
+        }
+        final long startedAt = SystemClock.elapsedRealtime();
+        keepTunnel = true;
+        try {
+            V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_CONNECTING;
+            publishState();
+            final TrafficStatsSampler sampler = trafficStatsSampler;
+            if (sampler != null) {
+                // The counters of the stopped core are gone with it
+                sampler.flush();
+            }
+            final long stopLoopAt = Metrics.now();
+            try {
+                v2RayPoint.stopLoop();
+            } catch (Throwable t) {
+                Metrics.STOP_LOOP.record(stopLoopAt, false);
+                throw t;
+            }
+            Metrics.STOP_LOOP.record(stopLoopAt, true);
+            if (runCoreLoop(v2rayConfig)) {
+                currentV2rayConfig = v2rayConfig;
+                if (sampler != null) {
+                    sampler.setConfig(v2rayConfig);
+                }
+                V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_CONNECTED;
+                publishState();
                 try {
-                    countDownTimer.cancel();
-                } catch (Exception timerError) {
-                    // Ignore timer cancellation errors
+                    showNotification(v2rayConfig);
+                } catch (Exception notificationError) {
+                    Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to update notification: " + notificationError.getMessage());
                 }
-                countDownTimer = null;
+                Log.d(V2rayCoreManager.class.getSimpleName(), "restartCore success => took " + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+                return true;
+            }
+            Log.e(V2rayCoreManager.class.getSimpleName(), "restartCore failed => restoring the previous config");
+            if (runCoreLoop(running)) {
+                V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_CONNECTED;
+                publishState();
+            }
+            return false;
+        } catch (Throwable t) {
+            Log.e(V2rayCoreManager.class.getSimpleName(), "restartCore failed => " + t.getMessage(), t);
+            if (!isV2rayCoreRunning() && runCoreLoop(running)) {
+                V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_CONNECTED;
+                publishState();
             }
+            return false;
+        } finally {
+            keepTunnel = false;
+        }
+    }
+
+    /**
+     * Switches the running connection to {@code v2rayConfig} with a core restart if its VPN
+     * session settings match the running ones. Returns false, leaving the running config
+     * in place, if they do not or the new config failed to start.
+     */
+    public boolean switchServer(final V2rayConfig v2rayConfig) {
+        final V2rayConfig running = currentV2rayConfig;
+        if (v2rayConfig == null || running == null) return false;
+        if (!v2rayConfig.isTunCompatibleWith(running)) {
+            Log.d(V2rayCoreManager.class.getSimpleName(), "switchServer => vpn session settings changed, a full restart is needed");
+            return false;
+        }
+        if (!restartCore(v2rayConfig)) return false;
+        final Service service = v2rayServicesListener == null ? null : v2rayServicesListener.getService();
+        if (service != null) {
+            startHealthMonitor(service.getApplicationContext(), v2rayConfig);
+        }
+        return true;
+    }
+
+    private boolean runCoreLoop(final V2rayConfig v2rayConfig) {
+        final long runLoopAt = Metrics.now();
+        try {
+            v2RayPoint.setConfigureFileContent(v2rayConfig.V2RAY_FULL_JSON_CONFIG);
+            v2RayPoint.setDomainName(v2rayConfig.CONNECTED_V2RAY_SERVER_ADDRESS + ":" + v2rayConfig.CONNECTED_V2RAY_SERVER_PORT);
+            v2RayPoint.runLoop(false);
+            final boolean running = isV2rayCoreRunning();
+            Metrics.RUN_LOOP.record(runLoopAt, running);
+            return running;
+        } catch (Throwable t) {
+            Metrics.RUN_LOOP.record(runLoopAt, false);
+            Log.e(V2rayCoreManager.class.getSimpleName(), "runLoop failed => " + t.getMessage(), t);
+            return false;
+        }
+    }
+
+    private synchronized void startHealthMonitor(final Context context, final V2rayConfig v2rayConfig) {
+        stopHealthMonitor();
+        final boolean failover = v2rayConfig.FAILOVER_CONFIGS != null && !v2rayConfig.FAILOVER_CONFIGS.isEmpty();
+        long interval = v2rayConfig.HEALTH_CHECK_INTERVAL;
+        if (interval <= 0 && failover) interval = DEFAULT_FAILOVER_CHECK_INTERVAL_MS;
+        if (interval <= 0) return;
+        final String url = v2rayConfig.HEALTH_CHECK_URL == null ? "http://clients3.google.com/generate_204" : v2rayConfig.HEALTH_CHECK_URL;
+        try {
+            connectionHealthMonitor = new ConnectionHealthMonitor(context, url, interval, v2rayConfig.HEALTH_DEGRADED_DELAY,
+                    failover ? new CoreFailover(v2rayConfig, url) : null);
+            connectionHealthMonitor.start();
+        } catch (Exception e) {
+            Log.w(V2rayCoreManager.class.getSimpleName(), "Failed to start health monitor: " + e.getMessage());
+            connectionHealthMonitor = null;
+        }
+    }
+
+    private synchronized void stopHealthMonitor() {
+        if (connectionHealthMonitor != null) {
+            connectionHealthMonitor.stop();
+            connectionHealthMonitor = null;
         }
     }
 
     private void sendDisconnectedBroadCast() {
         V2RAY_STATE = AppConfigs.V2RAY_STATES.V2RAY_DISCONNECTED;
-        SERVICE_DURATION = "00:00:00";
-        seconds = 0;
-        minutes = 0;
-        hours = 0;
-        uploadSpeed = 0;
-        downloadSpeed = 0;
+        currentV2rayConfig = null;
+        stopHealthMonitor();
+        stopStatsSampler();
+        StatusPublisher.publish(StatusPublisher.disconnected());
+        releaseControlService();
         if (v2rayServicesListener != null) {
             Intent connection_info_intent = new Intent("V2RAY_CONNECTION_INFO");
             connection_info_intent.putExtra("STATE", V2rayCoreManager.getInstance().V2RAY_STATE);
-            connection_info_intent.putExtra("DURATION", SERVICE_DURATION);
-            connection_info_intent.putExtra("UPLOAD_SPEED", uploadSpeed);
-            connection_info_intent.putExtra("DOWNLOAD_SPEED", uploadSpeed);
-            connection_info_intent.putExtra("UPLOAD_TRAFFIC", uploadSpeed);
-            connection_info_intent.putExtra("DOWNLOAD_TRAFFIC", uploadSpeed);
+            connection_info_intent.putExtra("DURATION", "00:00:00");
+            connection_info_intent.putExtra("UPLOAD_SPEED", 0L);
+            connection_info_intent.putExtra("DOWNLOAD_SPEED", 0L);
+            connection_info_intent.putExtra("UPLOAD_TRAFFIC", 0L);
+            connection_info_intent.putExtra("DOWNLOAD_TRAFFIC", 0L);
             try {
+                final long broadcastAt = Metrics.now();
                 v2rayServicesListener.getService().getApplicationContext().sendBroadcast(connection_info_intent);
+                Metrics.SEND_BROADCAST.record(broadcastAt, true);
             } catch (Exception e) {
                 //ignore
             }
         }
-        if (countDownTimer != null) {
-            countDownTimer.cancel();
-        }
     }
 
     private String createNotificationChannelID(String appName) {
@@ -672,104 +871,238 @@ public final class V2rayCoreManager {
     }
 
     public Long getConnectedV2rayServerDelay() {
+        return getConnectedV2rayServerDelay(AppConfigs.DELAY_URL);
+    }
+
+    /**
+     * Measures the running server by sending one request through the local inbound of the
+     * core that is already running, instead of building a second core for the measurement.
+     * The result is the measured round trip in milliseconds, unscaled.
+     */
+    public Long getConnectedV2rayServerDelay(final String url) {
         try {
-            synchronized (delayLock) {
-                final long now = SystemClock.elapsedRealtime();
-                if (now - lastDelayCallAt < MIN_DELAY_INTERVAL_MS) return -1L;
-                if (now < delayCooldownUntil) return -1L;
-                if (now < circuitBreakerUntil) return -1L;
-
-                if (V2RAY_STATE != AppConfigs.V2RAY_STATES.V2RAY_CONNECTED) return -1L;
-                if (AppConfigs.V2RAY_CONFIG == null ||
-                        AppConfigs.V2RAY_CONFIG.V2RAY_FULL_JSON_CONFIG == null ||
-                        AppConfigs.V2RAY_CONFIG.V2RAY_FULL_JSON_CONFIG.trim().isEmpty()) return -1L;
-
-                String url = AppConfigs.DELAY_URL;
-                if (url == null || url.trim().isEmpty()) return -1L;
-                if (!url.startsWith("http://") && !url.startsWith("https://")) return -1L;
-                final String effectiveUrl = toHttpUrl(url);
-
-                long result;
-                try {
-                    JSONObject cfg = new JSONObject(AppConfigs.V2RAY_CONFIG.V2RAY_FULL_JSON_CONFIG);
-                    if (cfg.has("routing")) {
-                        JSONObject r = cfg.optJSONObject("routing");
-                        if (r != null) {
-                            JSONObject nr = new JSONObject();
-                            Iterator<String> it = r.keys();
-                            while (it.hasNext()) {
-                                String k = it.next();
-                                if (!"rules".equals(k)) nr.put(k, r.get(k));
-                            }
-                            cfg.put("routing", nr);
-                        }
-                    }
-                    result = Libv2ray.measureOutboundDelay(cfg.toString(), effectiveUrl);
-                } catch (Exception ex) {
-                    result = Libv2ray.measureOutboundDelay(AppConfigs.V2RAY_CONFIG.V2RAY_FULL_JSON_CONFIG, effectiveUrl);
-                }
+            if (V2RAY_STATE != AppConfigs.V2RAY_STATES.V2RAY_CONNECTED) return -1L;
+            final V2rayConfig v2rayConfig = currentV2rayConfig;
+            if (v2rayConfig == null) return -1L;
 
-                consecutiveDelayErrors = 0;
-                errorWindowCount = 0;
-                lastDelayCallAt = now;
+            if (url == null || url.trim().isEmpty()) return -1L;
+            if (!url.startsWith("http://") && !url.startsWith("https://")) return -1L;
+            final String effectiveUrl = toHttpUrl(url);
 
-                if (result < 0 || result > 30000) return -1L;
-                return result / 4;
-            }
+            final long measuredAt = Metrics.now();
+            long result = LocalProxyDelayProbe.measure(v2rayConfig.LOCAL_SOCKS5_PORT, v2rayConfig.LOCAL_HTTP_PORT,
+                    effectiveUrl, CONNECTED_DELAY_TIMEOUT_MS);
+            Metrics.MEASURE_CONNECTED_DELAY.record(measuredAt, result >= 0);
+
+            if (result < 0 || result > 30000) return -1L;
+            return result;
         } catch (Throwable t) {
-            long now = SystemClock.elapsedRealtime();
-            lastDelayCallAt = now;
-            delayCooldownUntil = now + ERROR_COOLDOWN_MS;
-            consecutiveDelayErrors++;
             return -1L;
         }
     }
 
     public Long getV2rayServerDelay(final String config, final String url) {
+        if (config == null || config.trim().isEmpty()) return -1L;
+        if (url == null || url.trim().isEmpty()) return -1L;
+        if (!url.startsWith("http://") && !url.startsWith("https://")) return -1L;
+        final String configHash = Utilities.getConfigHash(config);
+        final String effectiveUrl = toHttpUrl(url);
+
+        return measureCoalesced(configHash + "|" + effectiveUrl,
+                () -> toReportedDelay(measureTrackedDelay(configHash, config, effectiveUrl, true)));
+    }
+
+    /**
+     * Unthrottled variant of {@link #getV2rayServerDelay(String, String)} used by
+     * {@link ServerDelayTester}. It does not take {@code delayLock}, so callers are
+     * responsible for bounding how many measurements run at the same time.
+     */
+    public Long measureV2rayServerDelay(final String config, final String url) {
+        if (config == null || config.trim().isEmpty()) return -1L;
+        if (url == null || url.trim().isEmpty()) return -1L;
+        if (!url.startsWith("http://") && !url.startsWith("https://")) return -1L;
+        final String configHash = Utilities.getConfigHash(config);
+        final String effectiveUrl = toHttpUrl(url);
+
+        return measureCoalesced(configHash + "|" + effectiveUrl,
+                () -> toReportedDelay(measureTrackedDelay(configHash, config, effectiveUrl, false)));
+    }
+
+    /**
+     * Takes one fresh sample for {@link ServerDelayTester#rankServers}, bypassing the result
+     * cache so consecutive samples of the same server are independent. The sample is the
+     * measured round trip, so it can be compared with a timeout.
+     */
+    public Long sampleV2rayServerDelay(final String config, final String url) {
+        if (config == null || config.trim().isEmpty()) return -1L;
+        if (url == null || url.trim().isEmpty()) return -1L;
+        if (!url.startsWith("http://") && !url.startsWith("https://")) return -1L;
+        return measureTrackedDelay(Utilities.getConfigHash(config), config, toHttpUrl(url), false);
+    }
+
+    /**
+     * Runs one native measurement unless the breaker of the server is open, and feeds the
+     * outcome into {@link ServerHealthTracker}. With {@code serialized} the call is spaced
+     * out from the previous one under {@code delayLock}. Returns the measured round trip.
+     */
+    private long measureTrackedDelay(final String configHash, final String config, final String effectiveUrl, final boolean serialized) {
+        final DelayConfigCache.ProbeConfig probe = delayConfigCache.getProbeConfig(configHash, config);
+        if (!serverHealthTracker.allowRequest(probe.endpoint)) return -1L;
+
+        long result;
         try {
-            synchronized (delayLock) {
-                final long now = SystemClock.elapsedRealtime();
-                if (now - lastDelayCallAt < MIN_DELAY_INTERVAL_MS) return -1L;
-                if (now < delayCooldownUntil) return -1L;
-                if (now < circuitBreakerUntil) return -1L;
-
-                if (config == null || config.trim().isEmpty()) return -1L;
-                if (url == null || url.trim().isEmpty()) return -1L;
-                if (!url.startsWith("http://") && !url.startsWith("https://")) return -1L;
-                final String effectiveUrl = toHttpUrl(url);
-
-                long result;
-                try {
-                    JSONObject cfg = new JSONObject(config);
-                    if (cfg.has("routing")) {
-                        JSONObject r = cfg.optJSONObject("routing");
-                        if (r != null) {
-                            JSONObject nr = new JSONObject();
-                            Iterator<String> it = r.keys();
-                            while (it.hasNext()) {
-                                String k = it.next();
-                                if (!"rules".equals(k)) nr.put(k, r.get(k));
-                            }
-                            cfg.put("routing", nr);
-                        }
+            if (serialized) {
+                synchronized (delayLock) {
+                    // Space native calls out instead of failing callers that arrive too early
+                    final long wait = lastDelayCallAt + MIN_DELAY_INTERVAL_MS - SystemClock.elapsedRealtime();
+                    if (wait > 0) SystemClock.sleep(wait);
+                    try {
+                        result = measureOutboundDelay(probe, config, effectiveUrl);
+                    } finally {
+                        lastDelayCallAt = SystemClock.elapsedRealtime();
                     }
-                    result = Libv2ray.measureOutboundDelay(cfg.toString(), effectiveUrl);
-                } catch (Exception ex) {
-                    result = Libv2ray.measureOutboundDelay(config, effectiveUrl);
                 }
+            } else {
+                result = measureOutboundDelay(probe, config, effectiveUrl);
+            }
+        } catch (Throwable t) {
+            serverHealthTracker.recordError(probe.endpoint);
+            recordHistory(configHash, probe, -1L);
+            return -1L;
+        }
+
+        if (result < 0 || result > 30000) {
+            serverHealthTracker.recordFailure(probe.endpoint);
+            recordHistory(configHash, probe, -1L);
+            return -1L;
+        }
+        serverHealthTracker.recordSuccess(probe.endpoint, result);
+        recordHistory(configHash, probe, result);
+        return result;
+    }
+
+    /**
+     * getServerDelay has always reported a quarter of the native round trip, callers of
+     * the API compare against that scale. Everything else keeps the measured round trip.
+     */
+    private static long toReportedDelay(final long roundTrip) {
+        return roundTrip < 0 ? -1L : roundTrip / 4;
+    }
+
+    private static void recordHistory(final String configHash, final DelayConfigCache.ProbeConfig probe, final long delay) {
+        final LatencyHistoryStore history = LatencyHistoryStore.getInstance();
+        if (history != null) {
+            history.record(getHistoryKey(configHash, probe), delay);
+        }
+    }
 
-                consecutiveDelayErrors = 0;
-                errorWindowCount = 0;
-                lastDelayCallAt = now;
+    /**
+     * Servers are identified in the latency history by their endpoint, so a server keeps its
+     * history when unrelated parts of its config change, and by the config hash otherwise.
+     */
+    public static String getHistoryKey(final String configHash, final DelayConfigCache.ProbeConfig probe) {
+        return probe.endpoint != null ? probe.endpoint : configHash;
+    }
 
-                if (result < 0 || result > 30000) return -1L;
-                return result / 4;
+    /**
+     * The same key for a history lookup, parsed without the delay config cache so lookups
+     * neither evict prepared delay configs nor count as cache hits or misses.
+     */
+    public static String getHistoryKey(final String config) {
+        String endpoint = null;
+        try {
+            endpoint = Utilities.getServerEndpoint(new JSONObject(config));
+        } catch (Exception ignored) {
+            // Not JSON, keyed by its hash like an unparsable delay config
+        }
+        return endpoint != null ? endpoint : Utilities.getConfigHash(config);
+    }
+
+    /**
+     * Returns a cached delay for {@code key} if it is younger than the result TTL, otherwise
+     * runs {@code measurement}. Callers asking for the same key while a measurement is in
+     * flight wait for it and share its result instead of starting their own.
+     */
+    private long measureCoalesced(final String key, final Callable<Long> measurement) {
+        final CachedDelay cached = delayResults.get(key);
+        if (cached != null && SystemClock.elapsedRealtime() < cached.expiresAt) {
+            return cached.delay;
+        }
+        FutureTask<Long> task = new FutureTask<>(measurement);
+        FutureTask<Long> inFlight = inFlightDelays.putIfAbsent(key, task);
+        if (inFlight == null) {
+            try {
+                task.run();
+                final long ttl = delayResultTtlMs;
+                final Long delay = task.get();
+                if (ttl > 0 && delay != null && delay >= 0) {
+                    if (delayResults.size() >= MAX_DELAY_RESULTS) pruneDelayResults();
+                    delayResults.put(key, new CachedDelay(delay, SystemClock.elapsedRealtime() + ttl));
+                }
+            } catch (Exception ignored) {
+                // reported through task.get() below
+            } finally {
+                inFlightDelays.remove(key, task);
             }
-        } catch (Throwable t) {
+            inFlight = task;
+        }
+        try {
+            final Long delay = inFlight.get();
+            return delay == null ? -1L : delay;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1L;
+        } catch (Exception e) {
             return -1L;
         }
     }
 
+    private void pruneDelayResults() {
+        final long now = SystemClock.elapsedRealtime();
+        Iterator<CachedDelay> it = delayResults.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt <= now) it.remove();
+        }
+        if (delayResults.size() >= MAX_DELAY_RESULTS) delayResults.clear();
+    }
+
+    /**
+     * Sets how long a successful delay result is reused, 0 disables the result cache.
+     */
+    public void setDelayResultTtl(final long ttlMs) {
+        delayResultTtlMs = Math.max(0L, ttlMs);
+        if (delayResultTtlMs == 0L) delayResults.clear();
+    }
+
+    private static long measureOutboundDelay(final DelayConfigCache.ProbeConfig probe, final String config, final String effectiveUrl) throws Exception {
+        try {
+            return timedMeasureOutboundDelay(probe.config, effectiveUrl);
+        } catch (Exception ex) {
+            if (probe.config.equals(config)) throw ex;
+            return timedMeasureOutboundDelay(config, effectiveUrl);
+        }
+    }
+
+    private static long timedMeasureOutboundDelay(final String config, final String effectiveUrl) throws Exception {
+        final long measuredAt = Metrics.now();
+        try {
+            final long delay = Libv2ray.measureOutboundDelay(config, effectiveUrl);
+            Metrics.MEASURE_OUTBOUND_DELAY.record(measuredAt, delay >= 0);
+            return delay;
+        } catch (Exception e) {
+            Metrics.MEASURE_OUTBOUND_DELAY.record(measuredAt, false);
+            throw e;
+        }
+    }
+
+    public ServerHealthTracker getServerHealthTracker() {
+        return serverHealthTracker;
+    }
+
+    public DelayConfigCache getDelayConfigCache() {
+        return delayConfigCache;
+    }
+
     private static String toHttpUrl(String url) {
         try {
             if (url == null) return "http://clients3.google.com/generate_204";
@@ -782,4 +1115,14 @@ public final class V2rayCoreManager {
             return "http://clients3.google.com/generate_204";
         }
     }
+
+    private static final class CachedDelay {
+        final long delay;
+        final long expiresAt;
+
+        CachedDelay(long delay, long expiresAt) {
+            this.delay = delay;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -0,0 +1,224 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.services;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Metrics;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StartupTrace;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StatusPublisher;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.TrafficHistory;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.TrafficSnapshot;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksLogPump;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksSupervisor;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.UsageLog;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.V2rayCoreManager;
+import com.github.blueboytm.flutter_v2ray.v2ray.utils.V2rayConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bound service living in the same process as the v2ray core. It answers requests from
+ * the app process over a {@link Messenger}, which avoids a broadcast and a receiver
+ * registration per request. It is separate from {@link V2rayVPNService} because that
+ * one can only be bound by the system.
+ */
+public class V2rayControlService extends Service {
+    public static final int MSG_MEASURE_CONNECTED_DELAY = 1;
+    public static final int MSG_CONNECTED_DELAY_RESULT = 2;
+    public static final int MSG_SWITCH_SERVER = 3;
+    public static final int MSG_SWITCH_SERVER_RESULT = 4;
+    public static final int MSG_SUBSCRIBE_STATUS = 5;
+    public static final int MSG_UNSUBSCRIBE_STATUS = 6;
+    public static final int MSG_STATUS = 7;
+    public static final int MSG_GET_OUTBOUND_TRAFFIC = 8;
+    public static final int MSG_OUTBOUND_TRAFFIC_RESULT = 9;
+    public static final int MSG_GET_TRAFFIC_HISTORY = 10;
+    public static final int MSG_TRAFFIC_HISTORY_RESULT = 11;
+    public static final int MSG_GET_DAILY_USAGE = 12;
+    public static final int MSG_GET_SERVER_USAGE = 13;
+    public static final int MSG_USAGE_RESULT = 14;
+    public static final int MSG_CLEAR_USAGE = 15;
+    public static final int MSG_GET_METRICS = 16;
+    public static final int MSG_METRICS_RESULT = 17;
+    public static final int MSG_GET_STARTUP_TRACES = 18;
+    public static final int MSG_STARTUP_TRACES_RESULT = 19;
+    public static final int MSG_GET_TUN2SOCKS_STATS = 20;
+    public static final int MSG_TUN2SOCKS_STATS_RESULT = 21;
+    public static final int MSG_GET_TUN2SOCKS_LOG = 22;
+    public static final int MSG_TUN2SOCKS_LOG_RESULT = 23;
+
+    // Connected delay probes and core restarts take seconds, they run here so status and
+    // query messages are not queued behind them on the handler thread
+    private static final int BLOCKING_THREADS = 2;
+
+    private interface BlockingRequest {
+        void run(Bundle data);
+    }
+
+    private HandlerThread handlerThread;
+    private Messenger messenger;
+    private ExecutorService blockingExecutor;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        handlerThread = new HandlerThread("V2RAY_CONTROL_SERVICE");
+        handlerThread.start();
+        blockingExecutor = Executors.newFixedThreadPool(BLOCKING_THREADS, r -> {
+            Thread t = new Thread(r, "V2RAY_CONTROL_WORKER");
+            t.setDaemon(true);
+            return t;
+        });
+        UsageLog.init(this);
+        messenger = new Messenger(new Handler(handlerThread.getLooper(), this::handleMessage));
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        StatusPublisher.clearSubscribers();
+        if (handlerThread != null) {
+            handlerThread.quitSafely();
+        }
+        if (blockingExecutor != null) {
+            blockingExecutor.shutdownNow();
+        }
+        super.onDestroy();
+    }
+
+    private boolean handleMessage(Message msg) {
+        // Subscriptions are not answered, the subscriber gets MSG_STATUS from now on
+        if (msg.what == MSG_SUBSCRIBE_STATUS) {
+            StatusPublisher.subscribe(msg.replyTo);
+            return true;
+        }
+        if (msg.what == MSG_UNSUBSCRIBE_STATUS) {
+            StatusPublisher.unsubscribe(msg.replyTo);
+            return true;
+        }
+        if (msg.what == MSG_CLEAR_USAGE) {
+            UsageLog.getInstance().clear();
+            return true;
+        }
+        final long startedAt = Metrics.now();
+        final Message reply;
+        final Bundle data = new Bundle();
+        switch (msg.what) {
+            case MSG_MEASURE_CONNECTED_DELAY:
+                final String delayUrl = msg.getData().getString("DELAY_URL");
+                runBlocking(msg, MSG_CONNECTED_DELAY_RESULT,
+                        result -> result.putLong("DELAY", V2rayCoreManager.getInstance().getConnectedV2rayServerDelay(delayUrl)));
+                return true;
+            case MSG_SWITCH_SERVER:
+                msg.getData().setClassLoader(V2rayConfig.class.getClassLoader());
+                final V2rayConfig v2rayConfig = (V2rayConfig) msg.getData().getSerializable("V2RAY_CONFIG");
+                runBlocking(msg, MSG_SWITCH_SERVER_RESULT,
+                        result -> result.putBoolean("SWITCHED", V2rayCoreManager.getInstance().switchServer(v2rayConfig)));
+                return true;
+            case MSG_GET_OUTBOUND_TRAFFIC:
+                final TrafficSnapshot traffic = V2rayCoreManager.getInstance().getOutboundTraffic();
+                reply = Message.obtain(null, MSG_OUTBOUND_TRAFFIC_RESULT, msg.arg1, 0);
+                if (traffic != null) {
+                    data.putStringArray("TAGS", traffic.tags);
+                    data.putLongArray("UPLINK", traffic.uplink);
+                    data.putLongArray("DOWNLINK", traffic.downlink);
+                }
+                break;
+            case MSG_GET_TRAFFIC_HISTORY:
+                final TrafficHistory.Series series = V2rayCoreManager.getInstance().getTrafficHistory(
+                        msg.getData().getLong("WINDOW"), msg.getData().getLong("RESOLUTION"));
+                reply = Message.obtain(null, MSG_TRAFFIC_HISTORY_RESULT, msg.arg1, 0);
+                data.putLong("END_TIME", series.endTime);
+                data.putLong("RESOLUTION", series.resolution);
+                data.putLongArray("UPLINK", series.uplink);
+                data.putLongArray("DOWNLINK", series.downlink);
+                break;
+            case MSG_GET_METRICS:
+                final Metrics.Snapshot metrics = Metrics.snapshot();
+                reply = Message.obtain(null, MSG_METRICS_RESULT, msg.arg1, 0);
+                data.putStringArray("NAMES", metrics.names);
+                data.putLongArray("VALUES", metrics.values);
+                break;
+            case MSG_GET_STARTUP_TRACES:
+                reply = Message.obtain(null, MSG_STARTUP_TRACES_RESULT, msg.arg1, 0);
+                data.putLongArray("TRACES", StartupTrace.getTraces());
+                break;
+            case MSG_GET_TUN2SOCKS_STATS:
+                reply = Message.obtain(null, MSG_TUN2SOCKS_STATS_RESULT, msg.arg1, 0);
+                data.putLongArray("STATS", Tun2socksSupervisor.getStats());
+                break;
+            case MSG_GET_TUN2SOCKS_LOG:
+                reply = Message.obtain(null, MSG_TUN2SOCKS_LOG_RESULT, msg.arg1, 0);
+                data.putStringArray("LINES", Tun2socksLogPump.getLines());
+                data.putLongArray("COUNTERS", Tun2socksLogPump.getCounters());
+                break;
+            case MSG_GET_DAILY_USAGE:
+                final long[] dailyUsage = UsageLog.getInstance().getDailyUsage(msg.getData().getInt("FROM_DAY"), msg.getData().getInt("TO_DAY"));
+                reply = Message.obtain(null, MSG_USAGE_RESULT, msg.arg1, 0);
+                data.putLongArray("USAGE", dailyUsage);
+                break;
+            case MSG_GET_SERVER_USAGE:
+                final long[] serverUsage = UsageLog.getInstance().getServerUsage(msg.getData().getLongArray("SERVERS"));
+                reply = Message.obtain(null, MSG_USAGE_RESULT, msg.arg1, 0);
+                data.putLongArray("USAGE", serverUsage);
+                break;
+            default:
+                return false;
+        }
+        data.putLong("HANDLING_NANOS", Metrics.now() - startedAt);
+        reply.setData(data);
+        sendReply(msg.replyTo, reply);
+        return true;
+    }
+
+    /**
+     * Answers {@code msg} with {@code what} from the blocking executor. The message is
+     * recycled once the handler returns, so its fields are read here.
+     */
+    private void runBlocking(final Message msg, final int what, final BlockingRequest request) {
+        final int requestId = msg.arg1;
+        final Messenger replyTo = msg.replyTo;
+        try {
+            blockingExecutor.execute(() -> {
+                final long startedAt = Metrics.now();
+                final Bundle data = new Bundle();
+                request.run(data);
+                data.putLong("HANDLING_NANOS", Metrics.now() - startedAt);
+                final Message reply = Message.obtain(null, what, requestId, 0);
+                reply.setData(data);
+                sendReply(replyTo, reply);
+            });
+        } catch (RejectedExecutionException e) {
+            // The service is being destroyed, the client times the request out
+            Log.w(V2rayControlService.class.getSimpleName(), "request dropped => service is stopping");
+        }
+    }
+
+    private static void sendReply(Messenger replyTo, Message reply) {
+        if (replyTo == null) {
+            return;
+        }
+        try {
+            replyTo.send(reply);
+        } catch (RemoteException e) {
+            Log.w(V2rayControlService.class.getSimpleName(), "reply failed => client is gone");
+        }
+    }
+}
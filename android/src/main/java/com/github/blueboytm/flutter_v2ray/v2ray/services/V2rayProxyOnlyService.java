@@ -7,6 +7,7 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StartupTrace;
 import com.github.blueboytm.flutter_v2ray.v2ray.core.V2rayCoreManager;
 import com.github.blueboytm.flutter_v2ray.v2ray.interfaces.V2rayServicesListener;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
@@ -19,6 +20,8 @@ public class V2rayProxyOnlyService extends Service implements V2rayServicesListe
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTrace.begin();
+        StartupTrace.mark(StartupTrace.PHASE_SERVICE_CREATED);
         V2rayCoreManager.getInstance().setUpListener(this);
     }
 
@@ -27,6 +30,7 @@ public class V2rayProxyOnlyService extends Service implements V2rayServicesListe
         AppConfigs.V2RAY_SERVICE_COMMANDS startCommand = (AppConfigs.V2RAY_SERVICE_COMMANDS) intent.getSerializableExtra("COMMAND");
         if (startCommand.equals(AppConfigs.V2RAY_SERVICE_COMMANDS.START_SERVICE)) {
             V2rayConfig v2rayConfig = (V2rayConfig) intent.getSerializableExtra("V2RAY_CONFIG");
+            StartupTrace.attach(intent.getLongArrayExtra("STARTUP_TRACE"));
             if (v2rayConfig == null) {
                 this.onDestroy();
             }
@@ -35,17 +39,20 @@ public class V2rayProxyOnlyService extends Service implements V2rayServicesListe
             }
             assert v2rayConfig != null;
             if (V2rayCoreManager.getInstance().startCore(v2rayConfig)) {
+                StartupTrace.finish(true);
                 Log.e(V2rayProxyOnlyService.class.getSimpleName(), "onStartCommand success => v2ray core started.");
             } else {
+                StartupTrace.finish(false);
                 this.onDestroy();
             }
         } else if (startCommand.equals(AppConfigs.V2RAY_SERVICE_COMMANDS.STOP_SERVICE)) {
             V2rayCoreManager.getInstance().stopCore();
             AppConfigs.V2RAY_CONFIG = null;
         } else if (startCommand.equals(AppConfigs.V2RAY_SERVICE_COMMANDS.MEASURE_DELAY)) {
+            final String delayUrl = intent.getStringExtra("DELAY_URL");
             new Thread(() -> {
                 Intent sendB = new Intent("CONNECTED_V2RAY_SERVER_DELAY");
-                sendB.putExtra("DELAY", String.valueOf(V2rayCoreManager.getInstance().getConnectedV2rayServerDelay()));
+                sendB.putExtra("DELAY", String.valueOf(V2rayCoreManager.getInstance().getConnectedV2rayServerDelay(delayUrl)));
                 sendBroadcast(sendB);
             }, "MEASURE_CONNECTED_V2RAY_SERVER_DELAY").start();
         } else {
@@ -6,9 +6,15 @@ import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.net.VpnService;
 import android.os.Build;
+import android.os.FileObserver;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Metrics;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.StartupTrace;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksLogPump;
+import com.github.blueboytm.flutter_v2ray.v2ray.core.Tun2socksSupervisor;
 import com.github.blueboytm.flutter_v2ray.v2ray.core.V2rayCoreManager;
 import com.github.blueboytm.flutter_v2ray.v2ray.interfaces.V2rayServicesListener;
 import com.github.blueboytm.flutter_v2ray.v2ray.utils.AppConfigs;
@@ -23,16 +29,25 @@ import java.io.FileDescriptor;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class V2rayVPNService extends VpnService implements V2rayServicesListener {
     private ParcelFileDescriptor mInterface;
-    private Process process;
+    private Tun2socksSupervisor tun2socksSupervisor;
     private V2rayConfig v2rayConfig;
-    private boolean isRunning = true;
+    private volatile boolean isRunning = true;
+    private static final String SOCK_FILE_NAME = "sock_path";
+    private static final long FD_HANDOFF_DEADLINE_MS = 5000L;
+    // Bounds a missed creation event, the event normally ends the wait
+    private static final long SOCK_FILE_POLL_MS = 250L;
+    private static final long MAX_FD_RETRY_MS = 20L;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTrace.begin();
+        StartupTrace.mark(StartupTrace.PHASE_SERVICE_CREATED);
         V2rayCoreManager.getInstance().setUpListener(this);
     }
 
@@ -41,6 +56,7 @@ public class V2rayVPNService extends VpnService implements V2rayServicesListener
         AppConfigs.V2RAY_SERVICE_COMMANDS startCommand = (AppConfigs.V2RAY_SERVICE_COMMANDS) intent.getSerializableExtra("COMMAND");
         if (startCommand.equals(AppConfigs.V2RAY_SERVICE_COMMANDS.START_SERVICE)) {
             v2rayConfig = (V2rayConfig) intent.getSerializableExtra("V2RAY_CONFIG");
+            StartupTrace.attach(intent.getLongArrayExtra("STARTUP_TRACE"));
             if (v2rayConfig == null) {
                 this.onDestroy();
             }
@@ -48,17 +64,20 @@ public class V2rayVPNService extends VpnService implements V2rayServicesListener
                 V2rayCoreManager.getInstance().stopCore();
             }
             if (V2rayCoreManager.getInstance().startCore(v2rayConfig)) {
+                StartupTrace.finish(true);
                 Log.e(V2rayProxyOnlyService.class.getSimpleName(), "onStartCommand success => v2ray core started.");
             } else {
+                StartupTrace.finish(false);
                 this.onDestroy();
             }
         } else if (startCommand.equals(AppConfigs.V2RAY_SERVICE_COMMANDS.STOP_SERVICE)) {
             V2rayCoreManager.getInstance().stopCore();
             AppConfigs.V2RAY_CONFIG = null;
         } else if (startCommand.equals(AppConfigs.V2RAY_SERVICE_COMMANDS.MEASURE_DELAY)) {
+            final String delayUrl = intent.getStringExtra("DELAY_URL");
             new Thread(() -> {
                 Intent sendB = new Intent("CONNECTED_V2RAY_SERVER_DELAY");
-                sendB.putExtra("DELAY", String.valueOf(V2rayCoreManager.getInstance().getConnectedV2rayServerDelay()));
+                sendB.putExtra("DELAY", String.valueOf(V2rayCoreManager.getInstance().getConnectedV2rayServerDelay(delayUrl)));
                 sendBroadcast(sendB);
             }, "MEASURE_CONNECTED_V2RAY_SERVER_DELAY").start();
         } else {
@@ -70,9 +89,7 @@ public class V2rayVPNService extends VpnService implements V2rayServicesListener
     private void stopAllProcess() {
         stopForeground(true);
         isRunning = false;
-        if (process != null) {
-            process.destroy();
-        }
+        stopTun2socks();
         V2rayCoreManager.getInstance().stopCore();
         try {
             stopSelf();
@@ -140,7 +157,10 @@ public class V2rayVPNService extends VpnService implements V2rayServicesListener
         }
 
         try {
+            final long establishedAt = Metrics.now();
             mInterface = builder.establish();
+            Metrics.ESTABLISH.record(establishedAt, mInterface != null);
+            StartupTrace.mark(StartupTrace.PHASE_TUN_ESTABLISHED);
             isRunning = true;
             runTun2socks();
         } catch (Exception e) {
@@ -150,66 +170,175 @@ public class V2rayVPNService extends VpnService implements V2rayServicesListener
     }
 
     private void runTun2socks() {
+        final Tun2socksSupervisor supervisor = new Tun2socksSupervisor(this::launchTun2socks, () -> {
+            // A tunnel without tun2socks drops all traffic
+            if (isRunning) stopAllProcess();
+        });
+        synchronized (this) {
+            if (tun2socksSupervisor != null) tun2socksSupervisor.stop();
+            tun2socksSupervisor = supervisor;
+        }
+        supervisor.start();
+    }
+
+    private synchronized void stopTun2socks() {
+        if (tun2socksSupervisor != null) {
+            tun2socksSupervisor.stop();
+            tun2socksSupervisor = null;
+        }
+    }
+
+    /**
+     * Starts tun2socks and its fd handoff, called by the supervisor for every (re)start.
+     */
+    private Process launchTun2socks() throws Exception {
         ArrayList<String> cmd = new ArrayList<>(Arrays.asList(new File(getApplicationInfo().nativeLibraryDir, "libtun2socks.so").getAbsolutePath(),
                 "--netif-ipaddr", "26.26.26.2",
                 "--netif-netmask", "255.255.255.252",
                 "--socks-server-addr", "127.0.0.1:" + v2rayConfig.LOCAL_SOCKS5_PORT,
                 "--tunmtu", "1500",
-                "--sock-path", "sock_path",
+                "--sock-path", SOCK_FILE_NAME,
                 "--enable-udprelay",
-                "--loglevel", "error"));
+                "--loglevel", v2rayConfig.CAPTURE_TUN2SOCKS_LOG ? "warning" : "error"));
+        final File sockFile = new File(getApplicationContext().getFilesDir(), SOCK_FILE_NAME);
+        // A socket file left by the previous tun2socks would look ready before the new one listens
+        if (sockFile.exists() && !sockFile.delete()) {
+            Log.w(V2rayVPNService.class.getSimpleName(), "Failed to delete the stale sock file");
+        }
+        final SockFileWatcher sockFileWatcher = new SockFileWatcher(sockFile);
+        sockFileWatcher.startWatching();
+        ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+        processBuilder.redirectErrorStream(true);
+        final long spawnedAt = Metrics.now();
+        final Process process;
         try {
-            ProcessBuilder processBuilder = new ProcessBuilder(cmd);
-            processBuilder.redirectErrorStream(true);
             process = processBuilder.directory(getApplicationContext().getFilesDir()).start();
-            new Thread(() -> {
-                try {
-                    process.waitFor();
-                    if (isRunning) {
-                        runTun2socks();
-                    }
-                } catch (InterruptedException e) {
-                    //ignore
-                }
-            }, "Tun2socks_Thread").start();
-            sendFileDescriptor();
         } catch (Exception e) {
-            Log.e("VPN_SERVICE", "FAILED=>", e);
-            this.onDestroy();
+            Metrics.TUN2SOCKS_SPAWN.record(spawnedAt, false);
+            sockFileWatcher.stopWatching();
+            throw e;
         }
+        Metrics.TUN2SOCKS_SPAWN.record(spawnedAt, true);
+        StartupTrace.mark(StartupTrace.PHASE_TUN2SOCKS_SPAWNED);
+        Tun2socksLogPump.start(process, v2rayConfig.CAPTURE_TUN2SOCKS_LOG);
+        sendFileDescriptor(process, sockFileWatcher);
+        return process;
     }
 
-    private void sendFileDescriptor() {
-        String localSocksFile = new File(getApplicationContext().getFilesDir(), "sock_path").getAbsolutePath();
-        FileDescriptor tunFd = mInterface.getFileDescriptor();
+    /**
+     * Hands the TUN fd to tun2socks as soon as its socket accepts connections. The socket
+     * file appears on bind and connecting succeeds once tun2socks listens, so the file is
+     * awaited through its creation event and the connect is retried with a short backoff
+     * after that. If tun2socks is not ready within {@link #FD_HANDOFF_DEADLINE_MS} the
+     * connection is stopped, a tunnel without tun2socks drops all traffic.
+     */
+    private void sendFileDescriptor(final Process tun2socks, final SockFileWatcher sockFileWatcher) {
+        final ParcelFileDescriptor tunInterface = mInterface;
+        if (tunInterface == null) {
+            sockFileWatcher.stopWatching();
+            return;
+        }
+        final FileDescriptor tunFd = tunInterface.getFileDescriptor();
         new Thread(() -> {
-            int tries = 0;
-            while (true) {
-                try {
-                    Thread.sleep(50L * tries);
-                    LocalSocket clientLocalSocket = new LocalSocket();
-                    clientLocalSocket.connect(new LocalSocketAddress(localSocksFile, LocalSocketAddress.Namespace.FILESYSTEM));
-                    if (!clientLocalSocket.isConnected()) {
-                        Log.e("SOCK_FILE", "Unable to connect to localSocksFile [" + localSocksFile + "]");
-                    } else {
-                        Log.e("SOCK_FILE", "connected to sock file [" + localSocksFile + "]");
+            final long startedAt = Metrics.now();
+            final long deadline = SystemClock.elapsedRealtime() + FD_HANDOFF_DEADLINE_MS;
+            long retryMs = 1L;
+            boolean sent = false;
+            boolean exited = false;
+            try {
+                while (isRunning) {
+                    if (hasExited(tun2socks)) {
+                        // The supervising thread starts a new tun2socks with its own handoff
+                        exited = true;
+                        break;
                     }
-                    OutputStream clientOutStream = clientLocalSocket.getOutputStream();
-                    clientLocalSocket.setFileDescriptorsForSend(new FileDescriptor[]{tunFd});
-                    clientOutStream.write(32);
-                    clientLocalSocket.setFileDescriptorsForSend(null);
-                    clientLocalSocket.shutdownOutput();
-                    clientLocalSocket.close();
-                    break;
-                } catch (Exception e) {
-                    Log.e(V2rayVPNService.class.getSimpleName(), "sendFd failed =>", e);
-                    if (tries > 5) break;
-                    tries += 1;
+                    final long left = deadline - SystemClock.elapsedRealtime();
+                    if (left <= 0) break;
+                    if (!sockFileWatcher.sockFile.exists()) {
+                        sockFileWatcher.awaitCreated(Math.min(left, SOCK_FILE_POLL_MS));
+                        continue;
+                    }
+                    if (trySendFileDescriptor(sockFileWatcher.sockFile.getAbsolutePath(), tunFd)) {
+                        sent = true;
+                        break;
+                    }
+                    Thread.sleep(Math.min(retryMs, left));
+                    retryMs = Math.min(retryMs * 2, MAX_FD_RETRY_MS);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                sockFileWatcher.stopWatching();
+            }
+            Metrics.FD_HANDOFF.record(startedAt, sent);
+            if (sent) {
+                StartupTrace.mark(StartupTrace.PHASE_FD_SENT);
+                Log.d(V2rayVPNService.class.getSimpleName(), "sendFd => tun2socks got the tunnel");
+            } else if (isRunning && !exited) {
+                Log.e(V2rayVPNService.class.getSimpleName(), "sendFd failed => tun2socks not ready within " + FD_HANDOFF_DEADLINE_MS + " ms");
+                stopAllProcess();
             }
         }, "sendFd_Thread").start();
     }
 
+    private static boolean trySendFileDescriptor(final String localSocksFile, final FileDescriptor tunFd) {
+        LocalSocket clientLocalSocket = new LocalSocket();
+        try {
+            clientLocalSocket.connect(new LocalSocketAddress(localSocksFile, LocalSocketAddress.Namespace.FILESYSTEM));
+            OutputStream clientOutStream = clientLocalSocket.getOutputStream();
+            clientLocalSocket.setFileDescriptorsForSend(new FileDescriptor[]{tunFd});
+            clientOutStream.write(32);
+            clientLocalSocket.setFileDescriptorsForSend(null);
+            clientLocalSocket.shutdownOutput();
+            return true;
+        } catch (Exception e) {
+            // Refused until tun2socks listens
+            return false;
+        } finally {
+            try {
+                clientLocalSocket.close();
+            } catch (Exception e) {
+                // ignored
+            }
+        }
+    }
+
+    private static boolean hasExited(final Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wakes the fd handoff when tun2socks creates its socket file. Started before
+     * tun2socks, so the creation cannot be missed.
+     */
+    private static final class SockFileWatcher extends FileObserver {
+        final File sockFile;
+        private final Semaphore created = new Semaphore(0);
+
+        // The File constructor needs API 29, the String one works on every supported version
+        @SuppressWarnings("deprecation")
+        SockFileWatcher(File sockFile) {
+            super(sockFile.getParent(), FileObserver.CREATE);
+            this.sockFile = sockFile;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (sockFile.getName().equals(path)) {
+                created.release();
+            }
+        }
+
+        void awaitCreated(final long timeoutMs) throws InterruptedException {
+            created.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
 
     @Override
     public void onDestroy() {
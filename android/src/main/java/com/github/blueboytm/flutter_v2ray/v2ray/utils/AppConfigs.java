@@ -1,5 +1,7 @@
 package com.github.blueboytm.flutter_v2ray.v2ray.utils;
 
+import java.util.ArrayList;
+
 public class AppConfigs {
 
     public static V2RAY_CONNECTION_MODES V2RAY_CONNECTION_MODE = V2RAY_CONNECTION_MODES.VPN_TUN;
@@ -10,6 +12,13 @@ public class AppConfigs {
     public static boolean ENABLE_TRAFFIC_AND_SPEED_STATICS = true;
     public static String DELAY_URL;
     public static String NOTIFICATION_DISCONNECT_BUTTON_NAME;
+    public static long HEALTH_CHECK_INTERVAL = 0;
+    public static String HEALTH_CHECK_URL;
+    public static long HEALTH_DEGRADED_DELAY = 0;
+    public static ArrayList<String> FAILOVER_CONFIGS;
+    public static boolean BROADCAST_STATUS = false;
+    public static long STATS_INTERVAL = 1000;
+    public static boolean CAPTURE_TUN2SOCKS_LOG = false;
 
     public enum V2RAY_SERVICE_COMMANDS {
         START_SERVICE,
@@ -0,0 +1,182 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Installs the geo assets into the user assets folder only when they changed. A manifest
+ * next to them records the app version they were installed from and the size and SHA-256
+ * of every file. While the app version is unchanged an install only checks the file
+ * sizes; after an app update an asset is hashed and only rewritten if its hash differs.
+ * <p>
+ * Both the app and the core process call {@link #install(Context)}, a file lock keeps
+ * them from copying at the same time and files are replaced through a rename, so the
+ * core never reads a partly written asset.
+ */
+public final class AssetInstaller {
+    private static final String TAG = AssetInstaller.class.getSimpleName();
+    private static final String[] ASSETS = {"geosite.dat", "geoip.dat"};
+    private static final String MANIFEST_FILE_NAME = "assets.manifest";
+    private static final String LOCK_FILE_NAME = "assets.lock";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AssetInstaller() {
+    }
+
+    /**
+     * Installs the changed assets, blocking while the other process installs them. Returns
+     * false if an asset could not be installed. The file lock is held per process, so
+     * threads of one process wait on the class instead.
+     */
+    public static synchronized boolean install(final Context context) {
+        final String assetsPath = Utilities.getUserAssetsPath(context);
+        if (assetsPath == null || assetsPath.isEmpty()) {
+            Log.e(TAG, "install failed => no assets path");
+            return false;
+        }
+        final File dir = new File(assetsPath);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "install failed => cannot create " + assetsPath);
+            return false;
+        }
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw");
+             FileLock ignored = lockFile.getChannel().lock()) {
+            return installLocked(context, dir);
+        } catch (Exception e) {
+            Log.e(TAG, "install failed => " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Whether every asset is in the assets folder, whatever its version. Only looks at the
+     * files, so it is cheap enough for the main thread.
+     */
+    public static boolean isInstalled(final Context context) {
+        final String assetsPath = Utilities.getUserAssetsPath(context);
+        if (assetsPath == null || assetsPath.isEmpty()) return false;
+        for (String name : ASSETS) {
+            final File asset = new File(assetsPath, name);
+            if (!asset.isFile() || asset.length() == 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean installLocked(final Context context, final File dir) throws IOException {
+        final File manifestFile = new File(dir, MANIFEST_FILE_NAME);
+        final Properties manifest = new Properties();
+        if (manifestFile.isFile()) {
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            } catch (Exception e) {
+                Log.w(TAG, "Ignoring unreadable manifest: " + e.getMessage());
+                manifest.clear();
+            }
+        }
+        final String version = appVersion(context);
+        final boolean sameVersion = version.equals(manifest.getProperty("version"));
+        List<String> bundled = null;
+        boolean ok = true;
+        boolean manifestChanged = !sameVersion;
+        for (String name : ASSETS) {
+            final File target = new File(dir, name);
+            final String size = manifest.getProperty(name + ".size");
+            final String hash = manifest.getProperty(name + ".sha256");
+            final boolean installed = hash != null && size != null && target.isFile() && String.valueOf(target.length()).equals(size);
+            if (installed && sameVersion) continue;
+            if (bundled == null) {
+                final String[] list = context.getAssets().list("");
+                bundled = list == null ? Arrays.<String>asList() : Arrays.asList(list);
+            }
+            if (!bundled.contains(name)) continue;
+            try {
+                if (installed && hash.equals(hashAsset(context, name))) continue;
+                final String installedHash = copyAsset(context, name, target);
+                manifest.setProperty(name + ".size", String.valueOf(target.length()));
+                manifest.setProperty(name + ".sha256", installedHash);
+                manifestChanged = true;
+                Log.d(TAG, "Installed " + name + " (" + target.length() + " bytes)");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to install " + name + " => " + e.getMessage(), e);
+                manifest.remove(name + ".size");
+                manifest.remove(name + ".sha256");
+                manifestChanged = true;
+                ok = false;
+            }
+        }
+        if (manifestChanged) {
+            // A failed asset is retried on the next start
+            manifest.setProperty("version", ok ? version : "");
+            final File tmp = new File(dir, MANIFEST_FILE_NAME + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                manifest.store(out, null);
+            }
+            if (!tmp.renameTo(manifestFile)) {
+                throw new IOException("cannot replace " + manifestFile);
+            }
+        }
+        return ok;
+    }
+
+    private static String appVersion(final Context context) {
+        try {
+            // Bundled assets can only change with an install or update of the app
+            return String.valueOf(context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static String hashAsset(final Context context, final String name) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = context.getAssets().open(name)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String copyAsset(final Context context, final String name, final File target) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final File tmp = new File(target.getParentFile(), name + ".tmp");
+        try (InputStream in = context.getAssets().open(name);
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("cannot replace " + target);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
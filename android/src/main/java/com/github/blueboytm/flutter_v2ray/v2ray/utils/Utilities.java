@@ -9,24 +9,12 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 
 public class Utilities {
 
-    public static void CopyFiles(InputStream src, File dst) throws IOException {
-        try (OutputStream out = new FileOutputStream(dst)) {
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = src.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        }
-    }
-
     public static String getUserAssetsPath(Context context) {
         File extDir = context.getExternalFilesDir("assets");
         if (extDir == null) {
@@ -39,20 +27,45 @@ public class Utilities {
         }
     }
 
+    /**
+     * Installs the geo assets if they changed, see {@link AssetInstaller}. Blocks, do not
+     * call it on the main thread.
+     */
     public static void copyAssets(final Context context) {
-        String extFolder = getUserAssetsPath(context);
+        if (!AssetInstaller.install(context)) {
+            Log.e("Utilities", "copyAssets failed=> some assets are missing");
+        }
+    }
+
+
+    public static String getConfigHash(final String config) {
         try {
-            String geo = "geosite.dat,geoip.dat";
-            for (String assets_obj : context.getAssets().list("")) {
-                if (geo.contains(assets_obj)) {
-                    CopyFiles(context.getAssets().open(assets_obj), new File(extFolder, assets_obj));
-                }
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(config.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
             }
+            return hex.toString();
         } catch (Exception e) {
-            Log.e("Utilities", "copyAssets failed=>", e);
+            // SHA-256 is always available on Android, keep a usable key anyway
+            return config.length() + ":" + config.hashCode();
         }
     }
 
+    /**
+     * Returns "address:port" of the first outbound, or null if it has neither
+     * {@code vnext} nor {@code servers} settings.
+     */
+    public static String getServerEndpoint(final JSONObject config_json) {
+        try {
+            JSONObject settings = config_json.getJSONArray("outbounds").getJSONObject(0).getJSONObject("settings");
+            JSONArray servers = settings.has("vnext") ? settings.getJSONArray("vnext") : settings.getJSONArray("servers");
+            JSONObject server = servers.getJSONObject(0);
+            return server.getString("address") + ":" + server.getString("port");
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
     public static String convertIntToTwoDigit(int value) {
         if (value < 10) return "0" + value;
@@ -68,6 +81,13 @@ public class Utilities {
         v2rayConfig.APPLICATION_ICON = AppConfigs.APPLICATION_ICON;
         v2rayConfig.APPLICATION_NAME = AppConfigs.APPLICATION_NAME;
         v2rayConfig.NOTIFICATION_DISCONNECT_BUTTON_NAME = AppConfigs.NOTIFICATION_DISCONNECT_BUTTON_NAME;
+        v2rayConfig.HEALTH_CHECK_INTERVAL = AppConfigs.HEALTH_CHECK_INTERVAL;
+        v2rayConfig.HEALTH_CHECK_URL = AppConfigs.HEALTH_CHECK_URL;
+        v2rayConfig.HEALTH_DEGRADED_DELAY = AppConfigs.HEALTH_DEGRADED_DELAY;
+        v2rayConfig.FAILOVER_CONFIGS = AppConfigs.FAILOVER_CONFIGS;
+        v2rayConfig.BROADCAST_STATUS = AppConfigs.BROADCAST_STATUS;
+        v2rayConfig.STATS_INTERVAL = AppConfigs.STATS_INTERVAL;
+        v2rayConfig.CAPTURE_TUN2SOCKS_LOG = AppConfigs.CAPTURE_TUN2SOCKS_LOG;
         try {
             JSONObject config_json = new JSONObject(config);
             try {
@@ -92,6 +112,17 @@ public class Utilities {
                 Log.w(V2rayCoreManager.class.getSimpleName(), "startCore warn => can`t find inbound port of socks5 or http.");
                 return null;
             }
+            try {
+                JSONArray outbounds = config_json.getJSONArray("outbounds");
+                for (int i = 0; i < outbounds.length(); i++) {
+                    String tag = outbounds.getJSONObject(i).optString("tag", "");
+                    if (!tag.isEmpty() && !v2rayConfig.OUTBOUND_TAGS.contains(tag)) {
+                        v2rayConfig.OUTBOUND_TAGS.add(tag);
+                    }
+                }
+            } catch (Exception e) {
+                //ignore
+            }
             try {
                 v2rayConfig.CONNECTED_V2RAY_SERVER_ADDRESS = config_json.getJSONArray("outbounds")
                         .getJSONObject(0).getJSONObject("settings")
@@ -1,7 +1,12 @@
 package com.github.blueboytm.flutter_v2ray.v2ray.utils;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class V2rayConfig implements Serializable {
 
@@ -17,4 +22,78 @@ public class V2rayConfig implements Serializable {
     public String APPLICATION_NAME;
     public String NOTIFICATION_DISCONNECT_BUTTON_NAME;
     public int APPLICATION_ICON;
+    // Background probing of the connected server, disabled when the interval is 0
+    public long HEALTH_CHECK_INTERVAL = 0;
+    public String HEALTH_CHECK_URL = null;
+    public long HEALTH_DEGRADED_DELAY = 0;
+    // Raw configs tried in order when the connected server goes down
+    public ArrayList<String> FAILOVER_CONFIGS = null;
+    // Every status sample is also broadcast as V2RAY_CONNECTION_INFO, not only state changes
+    public boolean BROADCAST_STATUS = false;
+    // Sampling interval of the traffic stats while somebody is listening
+    public long STATS_INTERVAL = 1000;
+    // Tags of all tagged outbounds in config order, their traffic is counted separately
+    public ArrayList<String> OUTBOUND_TAGS = new ArrayList<>();
+    // Keeps the recent tun2socks output and counts its errors, otherwise it is only drained
+    public boolean CAPTURE_TUN2SOCKS_LOG = false;
+
+    /**
+     * Returns true if a VPN session built for {@code other} also fits this config: the same
+     * routes, DNS servers and blocked apps, and tun2socks can keep using the socks port.
+     */
+    public boolean isTunCompatibleWith(final V2rayConfig other) {
+        if (other == null) return false;
+        return LOCAL_SOCKS5_PORT == other.LOCAL_SOCKS5_PORT
+                && sameItems(BYPASS_SUBNETS, other.BYPASS_SUBNETS)
+                && sameItems(BLOCKED_APPS, other.BLOCKED_APPS)
+                && getDnsServers().equals(other.getDnsServers());
+    }
+
+    /**
+     * Returns failover candidate {@code index}: this config for 0, otherwise failover config
+     * {@code index - 1} with the tunnel and notification settings of this one, or null if it
+     * is not a valid config. AppConfigs of the core process does not have those settings.
+     */
+    public V2rayConfig getFailoverCandidate(final int index) {
+        if (index == 0) return this;
+        if (FAILOVER_CONFIGS == null || index < 0 || index > FAILOVER_CONFIGS.size()) return null;
+        final V2rayConfig parsed = Utilities.parseV2rayJsonFile(REMARK, FAILOVER_CONFIGS.get(index - 1), BLOCKED_APPS, BYPASS_SUBNETS);
+        if (parsed == null) return null;
+        parsed.APPLICATION_ICON = APPLICATION_ICON;
+        parsed.APPLICATION_NAME = APPLICATION_NAME;
+        parsed.NOTIFICATION_DISCONNECT_BUTTON_NAME = NOTIFICATION_DISCONNECT_BUTTON_NAME;
+        parsed.ENABLE_TRAFFIC_STATICS = ENABLE_TRAFFIC_STATICS;
+        parsed.HEALTH_CHECK_INTERVAL = HEALTH_CHECK_INTERVAL;
+        parsed.HEALTH_CHECK_URL = HEALTH_CHECK_URL;
+        parsed.HEALTH_DEGRADED_DELAY = HEALTH_DEGRADED_DELAY;
+        parsed.FAILOVER_CONFIGS = FAILOVER_CONFIGS;
+        parsed.BROADCAST_STATUS = BROADCAST_STATUS;
+        parsed.STATS_INTERVAL = STATS_INTERVAL;
+        parsed.CAPTURE_TUN2SOCKS_LOG = CAPTURE_TUN2SOCKS_LOG;
+        return parsed;
+    }
+
+    /**
+     * Returns the dns servers the VPN session announces, as read by the VPN service.
+     */
+    public List<String> getDnsServers() {
+        final List<String> servers = new ArrayList<>();
+        try {
+            JSONArray serversArray = new JSONObject(V2RAY_FULL_JSON_CONFIG).getJSONObject("dns").getJSONArray("servers");
+            for (int i = 0; i < serversArray.length(); i++) {
+                servers.add(serversArray.getString(i));
+            }
+        } catch (Exception e) {
+            // no dns section, the session has no dns servers either
+        }
+        return servers;
+    }
+
+    private static boolean sameItems(final List<String> a, final List<String> b) {
+        final List<String> left = a == null ? new ArrayList<>() : new ArrayList<>(a);
+        final List<String> right = b == null ? new ArrayList<>() : new ArrayList<>(b);
+        Collections.sort(left);
+        Collections.sort(right);
+        return left.equals(right);
+    }
 }
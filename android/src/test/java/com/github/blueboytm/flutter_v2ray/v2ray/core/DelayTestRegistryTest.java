@@ -0,0 +1,76 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DelayTestRegistryTest {
+    @After
+    public void cancelAll() {
+        DelayTestRegistry.cancel(null);
+    }
+
+    @Test
+    public void cancelsOnlyTheRequestId() {
+        final DelayTestRegistry.Token first = DelayTestRegistry.register("first", 0L);
+        final DelayTestRegistry.Token again = DelayTestRegistry.register("first", 0L);
+        final DelayTestRegistry.Token second = DelayTestRegistry.register("second", 0L);
+        assertEquals(2, DelayTestRegistry.cancel("first"));
+        assertTrue(first.isCancelled());
+        assertTrue(again.isCancelled());
+        assertFalse(second.isCancelled());
+        // Cancelled tokens are unregistered
+        assertEquals(0, DelayTestRegistry.cancel("first"));
+    }
+
+    @Test
+    public void cancelsEverythingWithoutRequestId() {
+        final DelayTestRegistry.Token named = DelayTestRegistry.register("named", 0L);
+        final DelayTestRegistry.Token unnamed = DelayTestRegistry.register(null, 0L);
+        assertEquals(2, DelayTestRegistry.cancel(null));
+        assertTrue(named.isCancelled());
+        assertTrue(unnamed.isCancelled());
+        assertEquals(0, DelayTestRegistry.cancel(null));
+    }
+
+    @Test
+    public void skipsReleasedTokens() {
+        final DelayTestRegistry.Token named = DelayTestRegistry.register("released", 0L);
+        final DelayTestRegistry.Token unnamed = DelayTestRegistry.register(null, 0L);
+        named.release();
+        unnamed.release();
+        assertEquals(0, DelayTestRegistry.cancel("released"));
+        assertEquals(0, DelayTestRegistry.cancel(null));
+        assertFalse(named.isCancelled());
+        assertFalse(unnamed.isCancelled());
+    }
+
+    @Test
+    public void runsCancelListenersOnce() {
+        final DelayTestRegistry.Token token = DelayTestRegistry.register("listeners", 0L);
+        final AtomicInteger calls = new AtomicInteger();
+        token.onCancel(calls::incrementAndGet);
+        DelayTestRegistry.cancel("listeners");
+        DelayTestRegistry.cancel(null);
+        assertEquals(1, calls.get());
+        // A listener added after the cancel runs right away
+        token.onCancel(calls::incrementAndGet);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void cancelsAtDeadline() throws InterruptedException {
+        final DelayTestRegistry.Token token = DelayTestRegistry.register(null, 50L);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        token.onCancel(cancelled::countDown);
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(token.isCancelled());
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class MetricsTest {
+    @Test
+    public void percentileIsBucketUpperBound() {
+        // 90 calls of at most 1 us and 10 calls of at most 1 ms
+        final Metrics.Snapshot snapshot = snapshot(new String[]{"a"}, metric(90, 10, 700000L));
+        assertEquals(1L << 10, snapshot.percentile(0, 0.5));
+        assertEquals(1L << 10, snapshot.percentile(0, 0.9));
+        // Capped at the maximum instead of the bound of its bucket
+        assertEquals(700000L, snapshot.percentile(0, 0.95));
+        assertEquals(700000L, snapshot.percentile(0, 1.0));
+    }
+
+    @Test
+    public void percentileOfLowestRank() {
+        final Metrics.Snapshot snapshot = snapshot(new String[]{"a"}, metric(90, 10, 700000L));
+        assertEquals(1L << 10, snapshot.percentile(0, 0.0));
+    }
+
+    @Test
+    public void percentileWithoutCalls() {
+        final Metrics.Snapshot snapshot = snapshot(new String[]{"a"}, new long[Metrics.STRIDE]);
+        assertEquals(0L, snapshot.percentile(0, 0.5));
+    }
+
+    @Test
+    public void mergesByName() {
+        final Metrics.Snapshot first = snapshot(new String[]{"a", "b"}, metric(1, 0, 500L), metric(2, 0, 800L));
+        final Metrics.Snapshot second = snapshot(new String[]{"b", "c"}, metric(0, 3, 900000L), metric(4, 0, 100L));
+        second.values[Metrics.FIELD_ERRORS] = 1L;
+        final Metrics.Snapshot merged = Metrics.Snapshot.merge(first, second);
+        assertArrayEquals(new long[]{1L, 5L, 4L}, new long[]{
+                merged.get(0, Metrics.FIELD_COUNT), merged.get(1, Metrics.FIELD_COUNT), merged.get(2, Metrics.FIELD_COUNT)});
+        assertEquals("a", merged.names[0]);
+        assertEquals("b", merged.names[1]);
+        assertEquals("c", merged.names[2]);
+        assertEquals(1L, merged.get(1, Metrics.FIELD_ERRORS));
+        assertEquals(2 * 500L + 3 * 500000L, merged.get(1, Metrics.FIELD_TOTAL_NANOS));
+        // The maximum is the larger one, not the sum
+        assertEquals(900000L, merged.get(1, Metrics.FIELD_MAX_NANOS));
+        assertEquals(2L, merged.get(1, Metrics.FIELD_BUCKETS + 10));
+        assertEquals(3L, merged.get(1, Metrics.FIELD_BUCKETS + 20));
+    }
+
+    @Test
+    public void mergesWithMalformedSnapshot() {
+        final Metrics.Snapshot valid = snapshot(new String[]{"a"}, metric(1, 0, 500L));
+        assertSame(valid, Metrics.Snapshot.merge(valid, null));
+        assertSame(valid, Metrics.Snapshot.merge(null, valid));
+        assertSame(valid, Metrics.Snapshot.merge(valid, new Metrics.Snapshot(new String[]{"a"}, new long[1])));
+        assertSame(valid, Metrics.Snapshot.merge(new Metrics.Snapshot(null, null), valid));
+    }
+
+    /**
+     * Values of one metric with {@code fast} calls in the bucket of 1 us and {@code slow}
+     * calls in the bucket of 1 ms, each call taking 500 ns and 500 us on average.
+     */
+    private static long[] metric(final int fast, final int slow, final long maxNanos) {
+        final long[] values = new long[Metrics.STRIDE];
+        values[Metrics.FIELD_COUNT] = fast + slow;
+        values[Metrics.FIELD_TOTAL_NANOS] = fast * 500L + slow * 500000L;
+        values[Metrics.FIELD_MAX_NANOS] = maxNanos;
+        values[Metrics.FIELD_BUCKETS + 10] = fast;
+        values[Metrics.FIELD_BUCKETS + 20] = slow;
+        return values;
+    }
+
+    private static Metrics.Snapshot snapshot(final String[] names, final long[]... metrics) {
+        final long[] values = new long[names.length * Metrics.STRIDE];
+        for (int i = 0; i < metrics.length; i++) {
+            System.arraycopy(metrics[i], 0, values, i * Metrics.STRIDE, Metrics.STRIDE);
+        }
+        return new Metrics.Snapshot(names, values);
+    }
+}
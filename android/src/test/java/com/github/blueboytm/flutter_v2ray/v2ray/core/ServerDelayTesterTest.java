@@ -0,0 +1,79 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ServerDelayTesterTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    @Test
+    public void keepsFewerThanThreeSamples() {
+        final long[] samples = {100L, 900L};
+        assertSame(samples, ServerDelayTester.rejectOutliers(samples));
+    }
+
+    @Test
+    public void rejectsSlowOutlier() {
+        assertArrayEquals(new long[]{100L, 102L, 104L}, ServerDelayTester.rejectOutliers(new long[]{100L, 102L, 104L, 1000L}));
+    }
+
+    @Test
+    public void rejectsOutlierAmongEqualSamples() {
+        // The MAD is 0 here, the share of the median bounds the limit instead
+        assertArrayEquals(new long[]{50L, 50L, 50L}, ServerDelayTester.rejectOutliers(new long[]{50L, 50L, 50L, 400L}));
+    }
+
+    @Test
+    public void keepsSamplesCloseToMedian() {
+        assertArrayEquals(new long[]{10L, 12L, 25L}, ServerDelayTester.rejectOutliers(new long[]{10L, 12L, 25L}));
+        assertArrayEquals(new long[]{100L, 200L, 300L}, ServerDelayTester.rejectOutliers(new long[]{100L, 200L, 300L}));
+    }
+
+    @Test
+    public void summarizesSamples() {
+        final ServerDelayTester.ServerRank rank = ServerDelayTester.summarize(3, new long[]{100L, -1L, 120L, 110L}, 4, 1, false, TIMEOUT_MS);
+        assertEquals(3, rank.index);
+        assertEquals(110L, rank.median);
+        assertEquals(120L, rank.p90);
+        // Consecutive accepted samples in measurement order: 100, 120, 110
+        assertEquals(15L, rank.jitter);
+        assertEquals(0.25, rank.lossRate, 1e-9);
+        assertEquals(4, rank.samples);
+        assertEquals(110.0 + 15.0 + 0.25 * TIMEOUT_MS, rank.score, 1e-9);
+        assertFalse(rank.aborted);
+        assertFalse(rank.cancelled);
+    }
+
+    @Test
+    public void leavesOutliersOutOfJitter() {
+        final ServerDelayTester.ServerRank rank = ServerDelayTester.summarize(0, new long[]{100L, 1000L, 102L, 104L}, 4, 0, false, TIMEOUT_MS);
+        assertEquals(102L, rank.median);
+        assertEquals(104L, rank.p90);
+        assertEquals(2L, rank.jitter);
+        assertEquals(104.0, rank.score, 1e-9);
+    }
+
+    @Test
+    public void summarizesLostServer() {
+        final ServerDelayTester.ServerRank rank = ServerDelayTester.summarize(1, new long[]{-1L, -1L}, 2, 2, true, TIMEOUT_MS);
+        assertEquals(-1L, rank.median);
+        assertEquals(-1L, rank.p90);
+        assertEquals(-1L, rank.jitter);
+        assertEquals(1.0, rank.lossRate, 1e-9);
+        assertTrue(rank.aborted);
+        assertEquals(Double.MAX_VALUE, rank.score, 0.0);
+    }
+
+    @Test
+    public void scoresLossAboveLatency() {
+        // A lost sample costs the timeout, so a slower lossless server ranks first
+        final ServerDelayTester.ServerRank lossy = ServerDelayTester.summarize(0, new long[]{80L, -1L, 80L, 80L}, 4, 1, false, TIMEOUT_MS);
+        final ServerDelayTester.ServerRank steady = ServerDelayTester.summarize(1, new long[]{300L, 300L, 300L, 300L}, 4, 0, false, TIMEOUT_MS);
+        assertTrue(steady.score < lossy.score);
+    }
+}
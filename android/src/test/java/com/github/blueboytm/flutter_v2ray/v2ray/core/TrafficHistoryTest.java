@@ -0,0 +1,85 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TrafficHistoryTest {
+    private static final long HOUR_MS = 3600 * TrafficHistory.SECOND_MS;
+    private static final long WALL_MS = 1700000000000L;
+
+    @Test
+    public void spreadsRangeOverBuckets() {
+        final TrafficHistory history = new TrafficHistory();
+        history.add(0L, 3999L, 400L, 40L);
+        final TrafficHistory.Series series = history.query(5000L, TrafficHistory.SECOND_MS, 3999L, WALL_MS);
+        assertEquals(TrafficHistory.SECOND_MS, series.resolution);
+        assertArrayEquals(new long[]{0L, 100L, 100L, 100L, 100L}, series.uplink);
+        assertArrayEquals(new long[]{0L, 10L, 10L, 10L, 10L}, series.downlink);
+        // The newest point ends with the current second
+        assertEquals(WALL_MS + 1L, series.endTime);
+    }
+
+    @Test
+    public void groupsBucketsIntoPoints() {
+        final TrafficHistory history = new TrafficHistory();
+        for (long second = 0; second < 6; second++) {
+            history.add(second * 1000L, second * 1000L + 999L, second, 0L);
+        }
+        final TrafficHistory.Series series = history.query(6000L, 2000L, 5999L, WALL_MS);
+        assertEquals(2000L, series.resolution);
+        assertArrayEquals(new long[]{0L + 1L, 2L + 3L, 4L + 5L}, series.uplink);
+    }
+
+    @Test
+    public void dropsSecondsOnRollover() {
+        final TrafficHistory history = new TrafficHistory();
+        history.add(10000L, 10999L, 7L, 0L);
+        // Five seconds past the first lap the bucket of second 10 is still kept
+        history.add(HOUR_MS + 5000L, HOUR_MS + 5999L, 1L, 0L);
+        assertEquals(8L, sum(history.query(HOUR_MS, TrafficHistory.SECOND_MS, HOUR_MS + 5999L, WALL_MS).uplink));
+        // Its slot is reused for second 3610
+        history.add(HOUR_MS + 10000L, HOUR_MS + 10999L, 2L, 0L);
+        assertEquals(3L, sum(history.query(HOUR_MS, TrafficHistory.SECOND_MS, HOUR_MS + 10999L, WALL_MS).uplink));
+    }
+
+    @Test
+    public void clearsRingAfterLongPause() {
+        final TrafficHistory history = new TrafficHistory();
+        history.add(0L, 999L, 5L, 5L);
+        final TrafficHistory.Series series = history.query(HOUR_MS, TrafficHistory.SECOND_MS, 2 * HOUR_MS, WALL_MS);
+        assertEquals(0L, sum(series.uplink));
+        assertEquals(0L, sum(series.downlink));
+    }
+
+    @Test
+    public void keepsMinutesAfterSecondsRollOver() {
+        final TrafficHistory history = new TrafficHistory();
+        history.add(0L, 999L, 60L, 6L);
+        final long now = 2 * HOUR_MS;
+        final TrafficHistory.Series seconds = history.query(HOUR_MS, TrafficHistory.SECOND_MS, now, WALL_MS);
+        assertEquals(0L, sum(seconds.uplink));
+        // A window longer than the second buckets go back is served from the minute buckets
+        final TrafficHistory.Series minutes = history.query(now + TrafficHistory.MINUTE_MS, TrafficHistory.SECOND_MS, now, WALL_MS);
+        assertEquals(TrafficHistory.MINUTE_MS, minutes.resolution);
+        assertEquals(121, minutes.uplink.length);
+        assertEquals(60L, minutes.uplink[0]);
+        assertEquals(6L, minutes.downlink[0]);
+        assertEquals(60L, sum(minutes.uplink));
+    }
+
+    @Test
+    public void capsRangeLongerThanRing() {
+        final TrafficHistory history = new TrafficHistory();
+        // Two hours of traffic in one add, only the last hour of seconds is kept
+        history.add(0L, 2 * HOUR_MS - 1L, 7200L, 0L);
+        assertEquals(7200L, sum(history.query(HOUR_MS, TrafficHistory.SECOND_MS, 2 * HOUR_MS - 1L, WALL_MS).uplink));
+    }
+
+    private static long sum(final long[] values) {
+        long total = 0L;
+        for (long value : values) total += value;
+        return total;
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class Tun2socksSupervisorTest {
+    @Test
+    public void doublesBackoffOnQuickExits() {
+        final Tun2socksSupervisor.RestartPolicy policy = new Tun2socksSupervisor.RestartPolicy();
+        long expected = Tun2socksSupervisor.INITIAL_BACKOFF_MS;
+        for (int i = 0; i < Tun2socksSupervisor.RESTART_BUDGET; i++) {
+            assertEquals(expected, policy.backoff(i * 1000L, 100L));
+            expected *= 2;
+        }
+    }
+
+    @Test
+    public void capsBackoff() {
+        final Tun2socksSupervisor.RestartPolicy policy = new Tun2socksSupervisor.RestartPolicy();
+        long last = 0L;
+        // Exits further apart than the budget window never use up the budget
+        for (int i = 0; i < 12; i++) {
+            last = policy.backoff(i * (Tun2socksSupervisor.BUDGET_WINDOW_MS + 1L), 100L);
+        }
+        assertEquals(Tun2socksSupervisor.MAX_BACKOFF_MS, last);
+    }
+
+    @Test
+    public void resetsBackoffAfterStableRun() {
+        final Tun2socksSupervisor.RestartPolicy policy = new Tun2socksSupervisor.RestartPolicy();
+        policy.backoff(0L, 100L);
+        policy.backoff(1000L, 100L);
+        assertEquals(Tun2socksSupervisor.INITIAL_BACKOFF_MS * 4, policy.backoff(2000L, 100L));
+        assertEquals(Tun2socksSupervisor.INITIAL_BACKOFF_MS, policy.backoff(70000L, Tun2socksSupervisor.STABLE_UPTIME_MS));
+        assertEquals(Tun2socksSupervisor.INITIAL_BACKOFF_MS * 2, policy.backoff(71000L, 100L));
+    }
+
+    @Test
+    public void givesUpWhenBudgetIsUsed() {
+        final Tun2socksSupervisor.RestartPolicy policy = new Tun2socksSupervisor.RestartPolicy();
+        for (int i = 0; i < Tun2socksSupervisor.RESTART_BUDGET; i++) {
+            policy.backoff(i * 1000L, 100L);
+        }
+        assertEquals(-1L, policy.backoff(Tun2socksSupervisor.RESTART_BUDGET * 1000L, 100L));
+    }
+
+    @Test
+    public void restoresBudgetAfterWindow() {
+        final Tun2socksSupervisor.RestartPolicy policy = new Tun2socksSupervisor.RestartPolicy();
+        for (int i = 0; i < Tun2socksSupervisor.RESTART_BUDGET; i++) {
+            policy.backoff(i * 1000L, 100L);
+        }
+        // The first restart has left the window, the backoff keeps doubling
+        final long backoff = policy.backoff(Tun2socksSupervisor.BUDGET_WINDOW_MS + 1L, 100L);
+        assertEquals(Tun2socksSupervisor.INITIAL_BACKOFF_MS << Tun2socksSupervisor.RESTART_BUDGET, backoff);
+        assertEquals(-1L, policy.backoff(Tun2socksSupervisor.BUDGET_WINDOW_MS + 2L, 100L));
+    }
+}
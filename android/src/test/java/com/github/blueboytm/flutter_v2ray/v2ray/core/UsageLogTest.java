@@ -0,0 +1,120 @@
+package com.github.blueboytm.flutter_v2ray.v2ray.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+public class UsageLogTest {
+    // The file format of UsageLog, version 1
+    private static final int LOG_MAGIC = 0x55534c47;
+    private static final int CHECKPOINT_MAGIC = 0x55534350;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 28;
+    private static final int DAY = 19000;
+    private static final long SERVER = 42L;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("usage").toFile();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void keepsUsageAcrossRestarts() {
+        final UsageLog first = new UsageLog(dir);
+        first.add(SERVER, 10L, 20L);
+        first.add(SERVER, 1L, 2L);
+        first.flush();
+        final UsageLog second = new UsageLog(dir);
+        assertArrayEquals(new long[]{11L, 22L, 0L, 0L}, second.getServerUsage(new long[]{SERVER, SERVER + 1}));
+        final int today = UsageLog.epochDay(System.currentTimeMillis());
+        assertArrayEquals(new long[]{today, 11L, 22L}, second.getDailyUsage(today - 1, today));
+    }
+
+    @Test
+    public void dropsTornRecord() throws IOException {
+        final ByteBuffer log = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE + 10);
+        log.putInt(LOG_MAGIC).putInt(VERSION).putLong(0L);
+        log.putInt(DAY).putLong(SERVER).putLong(100L).putLong(200L);
+        log.putInt(DAY).putShort((short) 1).putInt(7);
+        write("usage.log", log);
+        final UsageLog usage = new UsageLog(dir);
+        assertArrayEquals(new long[]{100L, 200L}, usage.getServerUsage(new long[]{SERVER}));
+        assertArrayEquals(new long[]{DAY, 100L, 200L}, usage.getDailyUsage(DAY, DAY));
+        assertEquals(HEADER_SIZE + RECORD_SIZE, new File(dir, "usage.log").length());
+    }
+
+    @Test
+    public void skipsLogOlderThanCheckpoint() throws IOException {
+        write("usage.checkpoint", checkpoint(2L, 500L, 600L, true));
+        final ByteBuffer log = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+        log.putInt(LOG_MAGIC).putInt(VERSION).putLong(1L);
+        log.putInt(DAY).putLong(SERVER).putLong(100L).putLong(200L);
+        write("usage.log", log);
+        final UsageLog usage = new UsageLog(dir);
+        assertArrayEquals(new long[]{500L, 600L}, usage.getServerUsage(new long[]{SERVER}));
+        // The log starts over with the generation of the checkpoint
+        assertEquals(HEADER_SIZE, new File(dir, "usage.log").length());
+    }
+
+    @Test
+    public void addsLogOfCheckpointGeneration() throws IOException {
+        write("usage.checkpoint", checkpoint(2L, 500L, 600L, true));
+        final ByteBuffer log = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+        log.putInt(LOG_MAGIC).putInt(VERSION).putLong(2L);
+        log.putInt(DAY).putLong(SERVER).putLong(100L).putLong(200L);
+        write("usage.log", log);
+        final UsageLog usage = new UsageLog(dir);
+        assertArrayEquals(new long[]{600L, 800L}, usage.getServerUsage(new long[]{SERVER}));
+    }
+
+    @Test
+    public void ignoresCorruptCheckpoint() throws IOException {
+        write("usage.checkpoint", checkpoint(2L, 500L, 600L, false));
+        final ByteBuffer log = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+        log.putInt(LOG_MAGIC).putInt(VERSION).putLong(1L);
+        log.putInt(DAY).putLong(SERVER).putLong(100L).putLong(200L);
+        write("usage.log", log);
+        final UsageLog usage = new UsageLog(dir);
+        assertArrayEquals(new long[]{100L, 200L}, usage.getServerUsage(new long[]{SERVER}));
+    }
+
+    /**
+     * A checkpoint with one day and one server of the given traffic.
+     */
+    private static ByteBuffer checkpoint(final long generation, final long uplink, final long downlink, final boolean valid) {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 + 20 + 28 + 4);
+        buffer.putInt(CHECKPOINT_MAGIC).putInt(VERSION).putLong(generation);
+        buffer.putInt(1).putInt(1);
+        buffer.putInt(DAY).putLong(uplink).putLong(downlink);
+        buffer.putLong(SERVER).putLong(uplink).putLong(downlink).putInt(DAY);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt(valid ? (int) crc.getValue() : ~(int) crc.getValue());
+        return buffer;
+    }
+
+    private void write(final String name, final ByteBuffer content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(dir, name))) {
+            out.write(content.array(), 0, content.position());
+        }
+    }
+}
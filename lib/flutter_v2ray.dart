@@ -9,17 +9,40 @@ import 'package:flutter_v2ray/url/vless.dart';
 import 'package:flutter_v2ray/url/vmess.dart';
 
 import 'flutter_v2ray_platform_interface.dart';
+import 'model/delay_config_cache_stats.dart';
+import 'model/latency_history.dart';
+import 'model/outbound_traffic.dart';
+import 'model/server_ranking.dart';
+import 'model/server_stats.dart';
+import 'model/traffic_history.dart';
+import 'model/v2ray_health_event.dart';
 import 'model/v2ray_status.dart';
 
+export 'model/data_usage.dart';
+export 'model/delay_config_cache_stats.dart';
+export 'model/latency_history.dart';
+export 'model/outbound_traffic.dart';
+export 'model/plugin_metric.dart';
+export 'model/server_ranking.dart';
+export 'model/server_stats.dart';
+export 'model/startup_trace.dart';
+export 'model/traffic_history.dart';
+export 'model/tun2socks_log.dart';
+export 'model/tun2socks_stats.dart';
+export 'model/v2ray_health_event.dart';
 export 'model/v2ray_status.dart';
 export 'url/url.dart';
 
 class FlutterV2ray {
-  FlutterV2ray({required this.onStatusChanged});
+  FlutterV2ray({required this.onStatusChanged, this.onHealthChanged});
 
   /// This method is called when V2Ray status has changed.
   final void Function(V2RayStatus status) onStatusChanged;
 
+  /// This method is called when the connected server becomes degraded,
+  /// goes down or recovers, see healthCheckInterval of [startV2Ray].
+  final void Function(V2RayHealthEvent event)? onHealthChanged;
+
   /// Request VPN service permission specifically for Android.
   Future<bool> requestPermission() async {
     if (Platform.isAndroid) {
@@ -29,14 +52,33 @@ class FlutterV2ray {
   }
 
   /// You must initialize V2Ray before using it.
+  ///
+  /// delayResultTtl:
+  ///
+  ///   How long (in milliseconds) a successful server delay is reused
+  ///
+  ///   by later delay requests for the same config and url, 0 disables it.
+  ///
+  /// statsInterval:
+  ///
+  ///   How often (in milliseconds) [onStatusChanged] gets the traffic stats.
+  ///
+  ///   Sampling pauses while nothing listens or the screen is off,
+  ///
+  ///   and resumes with a fresh status when the screen turns on.
   Future<void> initializeV2Ray({
     String notificationIconResourceType = "mipmap",
     String notificationIconResourceName = "ic_launcher",
+    int delayResultTtl = 3000,
+    int statsInterval = 1000,
   }) async {
     await FlutterV2rayPlatform.instance.initializeV2Ray(
       onStatusChanged: onStatusChanged,
+      onHealthChanged: onHealthChanged,
       notificationIconResourceType: notificationIconResourceType,
       notificationIconResourceName: notificationIconResourceName,
+      delayResultTtl: delayResultTtl,
+      statsInterval: statsInterval,
     );
   }
 
@@ -69,6 +111,46 @@ class FlutterV2ray {
   ///   If it is true, only the v2ray proxy will be executed,
   ///
   ///   and the VPN tunnel will not be executed.
+  ///
+  /// healthCheckInterval:
+  ///
+  ///   Interval in milliseconds at which the connected server is probed in the background,
+  ///
+  ///   0 disables probing. Failed probes back off exponentially, results are
+  ///
+  ///   reported through [onHealthChanged] only when the health changes.
+  ///
+  /// degradedDelay:
+  ///
+  ///   Probes whose round trip is slower than this (in milliseconds) mark the connection
+  ///
+  ///   as degraded, 0 disables it.
+  ///
+  /// failoverConfigs:
+  ///
+  ///   Configs tried in order when the connected server goes down. Only the core is
+  ///
+  ///   restarted, the VPN tunnel stays up, so their socks inbound must use the same port.
+  ///
+  ///   Health checks run every 5 seconds if no healthCheckInterval is given.
+  ///
+  /// broadcastStatus:
+  ///
+  ///   If it is true, every status update is also sent as the V2RAY_CONNECTION_INFO
+  ///
+  ///   broadcast for other receivers, otherwise it is only sent when the state changes.
+  ///
+  ///   While nothing listens or the screen is off, it is sent every 30 seconds.
+  ///
+  /// statsInterval:
+  ///
+  ///   Overrides the statsInterval of [initializeV2Ray] for this connection.
+  ///
+  /// captureTun2socksLog:
+  ///
+  ///   If it is true, the recent output of tun2socks is kept for [getTun2socksLog],
+  ///
+  ///   otherwise it is discarded. Only used in VPN mode.
   Future<void> startV2Ray({
     required String remark,
     required String config,
@@ -76,6 +158,13 @@ class FlutterV2ray {
     List<String>? bypassSubnets,
     bool proxyOnly = false,
     String notificationDisconnectButtonName = "DISCONNECT",
+    int healthCheckInterval = 0,
+    String healthCheckUrl = 'https://connectivitycheck.gstatic.com/generate_204',
+    int degradedDelay = 0,
+    List<String>? failoverConfigs,
+    bool broadcastStatus = false,
+    int? statsInterval,
+    bool captureTun2socksLog = false,
   }) async {
     try {
       if (jsonDecode(config) == null) {
@@ -92,6 +181,45 @@ class FlutterV2ray {
       proxyOnly: proxyOnly,
       bypassSubnets: bypassSubnets,
       notificationDisconnectButtonName: notificationDisconnectButtonName,
+      healthCheckInterval: healthCheckInterval,
+      healthCheckUrl: healthCheckUrl,
+      degradedDelay: degradedDelay,
+      failoverConfigs: failoverConfigs,
+      broadcastStatus: broadcastStatus,
+      statsInterval: statsInterval,
+      captureTun2socksLog: captureTun2socksLog,
+    );
+  }
+
+  /// Switch the running connection to another server.
+  ///
+  /// blockedApps, bypassSubnets:
+  ///
+  ///   Same as in [startV2Ray], the running ones are kept when they are null.
+  ///
+  /// If routes, DNS servers, blocked apps and the socks port stay the same, only
+  /// the v2ray core is restarted and the VPN tunnel stays up. Otherwise the
+  /// connection is restarted like [startV2Ray].
+  ///
+  /// Returns true if only the core was restarted.
+  Future<bool> switchServer({
+    required String remark,
+    required String config,
+    List<String>? blockedApps,
+    List<String>? bypassSubnets,
+  }) async {
+    try {
+      if (jsonDecode(config) == null) {
+        throw ArgumentError('The provided string is not valid JSON');
+      }
+    } catch (_) {
+      throw ArgumentError('The provided string is not valid JSON');
+    }
+    return await FlutterV2rayPlatform.instance.switchServer(
+      remark: remark,
+      config: config,
+      blockedApps: blockedApps,
+      bypassSubnets: bypassSubnets,
     );
   }
 
@@ -100,10 +228,29 @@ class FlutterV2ray {
     await FlutterV2rayPlatform.instance.stopV2Ray();
   }
 
+  /// Reported instead of a delay for tests that were cancelled with
+  /// [cancelDelayTests] or ran past their deadline.
+  static const int delayCancelled = -2;
+
   /// This method returns the real server delay of the configuration.
+  ///
+  /// The delay is a quarter of the measured round trip in milliseconds, as it
+  /// has always been reported. [rankServers], [getLatencyHistory],
+  /// [getServerStats] and [getConnectedServerDelay] report the full round trip,
+  /// about four times this value.
+  ///
+  /// requestId:
+  ///
+  ///   Groups the test with others so they can be dropped together by [cancelDelayTests].
+  ///
+  /// deadline:
+  ///
+  ///   Time in milliseconds after which the test is dropped and reported as [delayCancelled].
   Future<int> getServerDelay(
       {required String config,
-      String url = 'https://connectivitycheck.gstatic.com/generate_204'}) async {
+      String url = 'https://connectivitycheck.gstatic.com/generate_204',
+      String? requestId,
+      int? deadline}) async {
     try {
       if (jsonDecode(config) == null) {
         throw ArgumentError('The provided string is not valid JSON');
@@ -112,15 +259,237 @@ class FlutterV2ray {
       throw ArgumentError('The provided string is not valid JSON');
     }
     return await FlutterV2rayPlatform.instance
-        .getServerDelay(config: config, url: url);
+        .getServerDelay(
+            config: config, url: url, requestId: requestId, deadline: deadline);
   }
 
-  /// This method returns the connected server delay.
+  /// This method measures the real delay of several configurations in parallel.
+  ///
+  /// The delays are on the scale of [getServerDelay], a quarter of the round trip.
+  ///
+  /// concurrency:
+  ///
+  ///   Maximum number of measurements running at the same time.
+  ///
+  /// timeout:
+  ///
+  ///   Per-configuration timeout in milliseconds, slower servers are reported as -1.
+  ///
+  /// onResult:
+  ///
+  ///   Called with the index of a configuration as soon as its delay is known,
+  ///
+  ///   so a server list can be ranked before the whole batch has finished.
+  ///
+  /// requestId:
+  ///
+  ///   Identifies the batch for [cancelDelayTests].
+  ///
+  /// deadline:
+  ///
+  ///   Time in milliseconds for the whole batch, configurations without a result by then are dropped.
+  ///
+  /// Returns the delays in the same order as [configs], configurations dropped by
+  /// [cancelDelayTests] or the deadline are [delayCancelled] and are not passed to [onResult].
+  Future<List<int>> getServerDelays({
+    required List<String> configs,
+    String url = 'https://connectivitycheck.gstatic.com/generate_204',
+    int concurrency = 8,
+    int timeout = 5000,
+    String? requestId,
+    int? deadline,
+    void Function(int index, int delay)? onResult,
+  }) async {
+    return await FlutterV2rayPlatform.instance.getServerDelays(
+      configs: configs,
+      url: url,
+      concurrency: concurrency,
+      timeout: timeout,
+      requestId: requestId,
+      deadline: deadline,
+      onResult: onResult,
+    );
+  }
+
+  /// This method takes several delay samples of every configuration and ranks them.
+  ///
+  /// samples:
+  ///
+  ///   Number of samples per configuration, servers that are clearly slower
+  ///
+  ///   than the best one are dropped before all samples are taken.
+  ///
+  /// timeout:
+  ///
+  ///   Samples slower than this (in milliseconds) count as lost and are not waited for.
+  ///
+  /// requestId:
+  ///
+  ///   Identifies the ranking for [cancelDelayTests].
+  ///
+  /// deadline:
+  ///
+  ///   Time in milliseconds for the whole ranking, unfinished servers are marked as cancelled.
+  ///
+  /// The result holds median, p90, jitter and loss rate of every configuration
+  /// and [ServerRanking.best] is the index of the server to connect to. The
+  /// delays are full round trips in milliseconds, not the quarter reported by
+  /// [getServerDelay].
+  Future<ServerRanking> rankServers({
+    required List<String> configs,
+    String url = 'https://connectivitycheck.gstatic.com/generate_204',
+    int samples = 3,
+    int concurrency = 8,
+    int timeout = 5000,
+    String? requestId,
+    int? deadline,
+  }) async {
+    return await FlutterV2rayPlatform.instance.rankServers(
+      configs: configs,
+      url: url,
+      samples: samples,
+      concurrency: concurrency,
+      timeout: timeout,
+      requestId: requestId,
+      deadline: deadline,
+    );
+  }
+
+  /// This method drops the queued and running delay tests started with [requestId],
+  /// or all of them if it is null, e.g. when the user leaves the server list.
+  ///
+  /// Their pending results complete right away with [delayCancelled]; a native
+  /// measurement that is already running finishes in the background and is ignored.
+  ///
+  /// Returns the number of cancelled requests.
+  Future<int> cancelDelayTests({String? requestId}) async {
+    return await FlutterV2rayPlatform.instance
+        .cancelDelayTests(requestId: requestId);
+  }
+
+  /// This method returns the hit/miss counters of the cache that keeps
+  /// delay test configs prepared between [getServerDelay] calls.
+  Future<DelayConfigCacheStats> getDelayConfigCacheStats() async {
+    return await FlutterV2rayPlatform.instance.getDelayConfigCacheStats();
+  }
+
+  /// This method returns the latency statistics and circuit breaker state
+  /// of every server that has been measured, keyed by its address and port.
+  /// The delays are full round trips in milliseconds.
+  Future<List<ServerStats>> getServerStats() async {
+    return await FlutterV2rayPlatform.instance.getServerStats();
+  }
+
+  /// This method returns the stored delay history of the configurations,
+  /// so a server list can be ordered right after startup while fresh
+  /// delay tests run. Every delay test result is added to the history,
+  /// which keeps the newest samples of each server across app restarts.
+  /// The stored delays are full round trips in milliseconds, not the quarter
+  /// reported by [getServerDelay].
+  Future<LatencyHistory> getLatencyHistory(
+      {required List<String> configs}) async {
+    return await FlutterV2rayPlatform.instance
+        .getLatencyHistory(configs: configs);
+  }
+
+  /// This method deletes the stored delay history of all servers.
+  Future<void> clearLatencyHistory() async {
+    await FlutterV2rayPlatform.instance.clearLatencyHistory();
+  }
+
+  /// This method returns the connected server delay, the full round trip in
+  /// milliseconds of one request through the running connection, not the
+  /// quarter reported by [getServerDelay].
   Future<int> getConnectedServerDelay(
       {String url = 'https://connectivitycheck.gstatic.com/generate_204'}) async {
     return await FlutterV2rayPlatform.instance.getConnectedServerDelay(url);
   }
 
+  /// This method returns the traffic of the running connection per outbound
+  /// tag of its config, like "proxy", "direct" and "block", so it shows how
+  /// much traffic is proxied, sent directly or blocked. Outbounds without a
+  /// tag are not counted. The map is empty if no connection is running.
+  Future<Map<String, OutboundTraffic>> getOutboundTraffic() async {
+    return await FlutterV2rayPlatform.instance.getOutboundTraffic();
+  }
+
+  /// This method returns the traffic of the last [window] milliseconds
+  /// in points of [resolution] milliseconds, for charts that should not
+  /// keep every status update.
+  ///
+  /// Per second traffic is kept for the last hour and per minute traffic
+  /// for the last day. A resolution of a minute or more, or a window longer
+  /// than an hour, uses the per minute traffic.
+  Future<TrafficHistory> getTrafficHistory({
+    int window = 60000,
+    int resolution = 1000,
+  }) async {
+    return await FlutterV2rayPlatform.instance
+        .getTrafficHistory(window: window, resolution: resolution);
+  }
+
+  /// This method returns timings of native calls and lifecycle steps, like
+  /// starting and stopping the core, delay tests, reading the traffic
+  /// counters, creating the VPN interface and starting tun2socks, keyed by
+  /// the name of the metric. app.connectedDelayBinder and
+  /// app.connectedDelayBroadcast time [getConnectedServerDelay] through the
+  /// control service and through its broadcast fallback.
+  ///
+  /// The metrics are counted since the processes of the app and of the
+  /// connection started, both are added up. Metrics that were not recorded
+  /// yet have a count of zero.
+  Future<Map<String, PluginMetric>> getMetrics() async {
+    return await FlutterV2rayPlatform.instance.getMetrics();
+  }
+
+  /// This method returns the phases of the last 20 connection starts,
+  /// oldest first, to see where the time to connect goes.
+  Future<List<StartupTrace>> getStartupTraces() async {
+    return await FlutterV2rayPlatform.instance.getStartupTraces();
+  }
+
+  /// This method returns how stable tun2socks runs in VPN mode. tun2socks is
+  /// restarted with a growing backoff when it exits, and the connection is
+  /// stopped if it keeps exiting. The counts are kept while the process of
+  /// the connection lives.
+  Future<Tun2socksStats> getTun2socksStats() async {
+    return await FlutterV2rayPlatform.instance.getTun2socksStats();
+  }
+
+  /// This method returns the recent output of tun2socks and how many errors
+  /// and warnings it wrote. Lines are only kept for connections started with
+  /// captureTun2socksLog.
+  Future<Tun2socksLog> getTun2socksLog() async {
+    return await FlutterV2rayPlatform.instance.getTun2socksLog();
+  }
+
+  /// This method returns the traffic of every local day from [from] to [to],
+  /// oldest day first. Days without traffic are left out.
+  ///
+  /// The traffic of all connections is counted and stored across app and
+  /// device restarts, at most the traffic of the last ten seconds is lost
+  /// if the process is killed. Usage older than about two years is dropped.
+  Future<List<DailyUsage>> getDailyUsage({
+    required DateTime from,
+    required DateTime to,
+  }) async {
+    return await FlutterV2rayPlatform.instance
+        .getDailyUsage(from: from, to: to);
+  }
+
+  /// This method returns the stored traffic of the server of every config,
+  /// in the same order as [configs]. Configs of the same server address and
+  /// port share their usage.
+  Future<List<ServerUsage>> getServerUsage(
+      {required List<String> configs}) async {
+    return await FlutterV2rayPlatform.instance.getServerUsage(configs: configs);
+  }
+
+  /// This method deletes the stored daily and per server usage.
+  Future<void> clearDataUsage() async {
+    await FlutterV2rayPlatform.instance.clearDataUsage();
+  }
+
   // This method returns the V2Ray Core version.
   Future<String> getCoreVersion() async {
     return await FlutterV2rayPlatform.instance.getCoreVersion();
@@ -1,5 +1,17 @@
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
+import 'model/data_usage.dart';
+import 'model/delay_config_cache_stats.dart';
+import 'model/latency_history.dart';
+import 'model/outbound_traffic.dart';
+import 'model/plugin_metric.dart';
+import 'model/server_ranking.dart';
+import 'model/server_stats.dart';
+import 'model/startup_trace.dart';
+import 'model/traffic_history.dart';
+import 'model/tun2socks_log.dart';
+import 'model/tun2socks_stats.dart';
+import 'model/v2ray_health_event.dart';
 import 'model/v2ray_status.dart' show V2RayStatus;
 
 import 'flutter_v2ray_platform_interface.dart';
@@ -10,22 +22,50 @@ class MethodChannelFlutterV2ray extends FlutterV2rayPlatform {
   @visibleForTesting
   final methodChannel = const MethodChannel('flutter_v2ray');
   final eventChannel = const EventChannel('flutter_v2ray/status');
+  final delayEventChannel = const EventChannel('flutter_v2ray/delays');
+  late final Stream<dynamic> _delayResults =
+      delayEventChannel.receiveBroadcastStream();
+  int _nextBatchId = 0;
+
+  /// Native connection states by ordinal.
+  static const _states = ['CONNECTED', 'DISCONNECTED', 'CONNECTING'];
+
+  static String _formatDuration(int seconds) {
+    String twoDigits(int value) => value.toString().padLeft(2, '0');
+    // Wraps after a day like the native duration
+    return '${twoDigits(seconds ~/ 3600 % 24)}:${twoDigits(seconds ~/ 60 % 60)}:${twoDigits(seconds % 60)}';
+  }
 
   @override
   Future<void> initializeV2Ray({
     required void Function(V2RayStatus status) onStatusChanged,
+    void Function(V2RayHealthEvent event)? onHealthChanged,
     required String notificationIconResourceType,
     required String notificationIconResourceName,
+    int delayResultTtl = 3000,
+    int statsInterval = 1000,
   }) async {
     eventChannel.receiveBroadcastStream().distinct().cast().listen((event) {
-      if (event != null) {
+      if (event is Map) {
+        if (event['type'] == 'health') {
+          onHealthChanged?.call(V2RayHealthEvent(
+            event: event['event'],
+            delay: event['delay'],
+            consecutiveFailures: event['consecutiveFailures'],
+            downFor: event['downFor'],
+            serverIndex: event['serverIndex'],
+            failoverTime: event['failoverTime'],
+          ));
+        }
+      } else if (event is List<int>) {
+        // [state, duration in seconds, upload speed, download speed, upload, download]
         onStatusChanged.call(V2RayStatus(
-          duration: event[0],
-          uploadSpeed: int.parse(event[1]),
-          downloadSpeed: int.parse(event[2]),
-          upload: int.parse(event[3]),
-          download: int.parse(event[4]),
-          state: event[5],
+          duration: _formatDuration(event[1]),
+          uploadSpeed: event[2],
+          downloadSpeed: event[3],
+          upload: event[4],
+          download: event[5],
+          state: _states[event[0]],
         ));
       }
     });
@@ -34,6 +74,8 @@ class MethodChannelFlutterV2ray extends FlutterV2rayPlatform {
       {
         "notificationIconResourceType": notificationIconResourceType,
         "notificationIconResourceName": notificationIconResourceName,
+        "delayResultTtl": delayResultTtl,
+        "statsInterval": statsInterval,
       },
     );
   }
@@ -46,6 +88,13 @@ class MethodChannelFlutterV2ray extends FlutterV2rayPlatform {
     List<String>? blockedApps,
     List<String>? bypassSubnets,
     bool proxyOnly = false,
+    int healthCheckInterval = 0,
+    String? healthCheckUrl,
+    int degradedDelay = 0,
+    List<String>? failoverConfigs,
+    bool broadcastStatus = false,
+    int? statsInterval,
+    bool captureTun2socksLog = false,
   }) async {
     await methodChannel.invokeMethod('startV2Ray', {
       "remark": remark,
@@ -53,22 +102,184 @@ class MethodChannelFlutterV2ray extends FlutterV2rayPlatform {
       "blocked_apps": blockedApps,
       "bypass_subnets": bypassSubnets,
       "proxy_only": proxyOnly,
+      "healthCheckInterval": healthCheckInterval,
+      "healthCheckUrl": healthCheckUrl,
+      "degradedDelay": degradedDelay,
+      "failoverConfigs": failoverConfigs,
+      "broadcastStatus": broadcastStatus,
+      "statsInterval": statsInterval,
+      "captureTun2socksLog": captureTun2socksLog,
       "notificationDisconnectButtonName": notificationDisconnectButtonName,
     });
   }
 
+  @override
+  Future<bool> switchServer({
+    required String remark,
+    required String config,
+    List<String>? blockedApps,
+    List<String>? bypassSubnets,
+  }) async {
+    return await methodChannel.invokeMethod('switchServer', {
+      "remark": remark,
+      "config": config,
+      "blocked_apps": blockedApps,
+      "bypass_subnets": bypassSubnets,
+    });
+  }
+
   @override
   Future<void> stopV2Ray() async {
     await methodChannel.invokeMethod('stopV2Ray');
   }
 
   @override
-  Future<int> getServerDelay(
-      {required String config, required String url}) async {
+  Future<int> getServerDelay({
+    required String config,
+    required String url,
+    String? requestId,
+    int? deadline,
+  }) async {
     return await methodChannel.invokeMethod('getServerDelay', {
       "config": config,
       "url": url,
+      "requestId": requestId,
+      "deadline": deadline,
+    });
+  }
+
+  @override
+  Future<List<int>> getServerDelays({
+    required List<String> configs,
+    required String url,
+    required int concurrency,
+    required int timeout,
+    String? requestId,
+    int? deadline,
+    void Function(int index, int delay)? onResult,
+  }) async {
+    // Results of concurrent batches share one event channel, tell them apart by id
+    final batchId = requestId ?? 'batch-${++_nextBatchId}';
+    final subscription = _delayResults.listen((event) {
+      if (event != null && onResult != null && event['requestId'] == batchId) {
+        onResult.call(event['index'], event['delay']);
+      }
+    });
+    try {
+      final List<dynamic> delays =
+          await methodChannel.invokeMethod('getServerDelays', {
+        "configs": configs,
+        "url": url,
+        "concurrency": concurrency,
+        "timeout": timeout,
+        "requestId": batchId,
+        "deadline": deadline,
+      });
+      return delays.cast<int>();
+    } finally {
+      await subscription.cancel();
+    }
+  }
+
+  @override
+  Future<ServerRanking> rankServers({
+    required List<String> configs,
+    required String url,
+    required int samples,
+    required int concurrency,
+    required int timeout,
+    String? requestId,
+    int? deadline,
+  }) async {
+    final Map<dynamic, dynamic> ranked =
+        await methodChannel.invokeMethod('rankServers', {
+      "configs": configs,
+      "url": url,
+      "samples": samples,
+      "concurrency": concurrency,
+      "timeout": timeout,
+      "requestId": requestId,
+      "deadline": deadline,
     });
+    final List<dynamic> servers = ranked['servers'];
+    return ServerRanking(
+      servers: servers
+          .map((item) => ServerRank(
+                index: item['index'],
+                median: item['median'],
+                p90: item['p90'],
+                jitter: item['jitter'],
+                lossRate: item['lossRate'],
+                samples: item['samples'],
+                aborted: item['aborted'],
+                cancelled: item['cancelled'],
+              ))
+          .toList(),
+      ranking: (ranked['ranking'] as List<dynamic>).cast<int>(),
+    );
+  }
+
+  @override
+  Future<int> cancelDelayTests({String? requestId}) async {
+    return await methodChannel
+        .invokeMethod('cancelDelayTests', {"requestId": requestId});
+  }
+
+  @override
+  Future<DelayConfigCacheStats> getDelayConfigCacheStats() async {
+    final Map<dynamic, dynamic> stats =
+        await methodChannel.invokeMethod('getDelayConfigCacheStats');
+    return DelayConfigCacheStats(
+      hits: stats['hits'],
+      misses: stats['misses'],
+      size: stats['size'],
+    );
+  }
+
+  @override
+  Future<List<ServerStats>> getServerStats() async {
+    final List<dynamic> stats =
+        await methodChannel.invokeMethod('getServerStats');
+    return stats
+        .map((item) => ServerStats(
+              endpoint: item['endpoint'],
+              samples: item['samples'],
+              failures: item['failures'],
+              consecutiveFailures: item['consecutiveFailures'],
+              lastDelay: item['lastDelay'],
+              averageDelay: item['averageDelay'],
+              jitter: item['jitter'],
+              blockedFor: item['blockedFor'],
+            ))
+        .toList();
+  }
+
+  @override
+  Future<LatencyHistory> getLatencyHistory(
+      {required List<String> configs}) async {
+    final Map<dynamic, dynamic> history = await methodChannel
+        .invokeMethod('getLatencyHistory', {"configs": configs});
+    final List<dynamic> servers = history['servers'];
+    return LatencyHistory(
+      servers: servers
+          .map((item) => ServerHistory(
+                samples: item['samples'],
+                successRate: item['successRate'],
+                lastDelay: item['lastDelay'],
+                medianDelay: item['medianDelay'],
+                lastMeasuredAt: item['lastMeasuredAt'] > 0
+                    ? DateTime.fromMillisecondsSinceEpoch(
+                        item['lastMeasuredAt'])
+                    : null,
+              ))
+          .toList(),
+      ranking: (history['ranking'] as List<dynamic>).cast<int>(),
+    );
+  }
+
+  @override
+  Future<void> clearLatencyHistory() async {
+    await methodChannel.invokeMethod('clearLatencyHistory');
   }
 
   @override
@@ -82,6 +293,148 @@ class MethodChannelFlutterV2ray extends FlutterV2rayPlatform {
     return (await methodChannel.invokeMethod('requestPermission')) ?? false;
   }
 
+  @override
+  Future<Map<String, OutboundTraffic>> getOutboundTraffic() async {
+    final Map<dynamic, dynamic> traffic =
+        await methodChannel.invokeMethod('getOutboundTraffic');
+    return traffic.map((tag, item) => MapEntry(
+          tag as String,
+          OutboundTraffic(
+            uplink: item['uplink'],
+            downlink: item['downlink'],
+          ),
+        ));
+  }
+
+  @override
+  Future<TrafficHistory> getTrafficHistory({
+    required int window,
+    required int resolution,
+  }) async {
+    final Map<dynamic, dynamic> history = await methodChannel.invokeMethod(
+      'getTrafficHistory',
+      {"window": window, "resolution": resolution},
+    );
+    return TrafficHistory(
+      end: DateTime.fromMillisecondsSinceEpoch(history['endTime']),
+      resolution: Duration(milliseconds: history['resolution']),
+      uplink: history['uplink'],
+      downlink: history['downlink'],
+    );
+  }
+
+  @override
+  Future<Map<String, PluginMetric>> getMetrics() async {
+    final Map<dynamic, dynamic> metrics =
+        await methodChannel.invokeMethod('getMetrics');
+    return metrics.map((name, item) => MapEntry(
+          name as String,
+          PluginMetric(
+            count: item['count'],
+            errors: item['errors'],
+            total: Duration(microseconds: item['totalMicros']),
+            max: Duration(microseconds: item['maxMicros']),
+            p50: Duration(microseconds: item['p50Micros']),
+            p90: Duration(microseconds: item['p90Micros']),
+            p99: Duration(microseconds: item['p99Micros']),
+          ),
+        ));
+  }
+
+  @override
+  Future<List<StartupTrace>> getStartupTraces() async {
+    final List<dynamic> traces =
+        await methodChannel.invokeMethod('getStartupTraces');
+    return traces
+        .map((trace) => StartupTrace(
+              connected: trace['connected'],
+              phases: (trace['phases'] as Map<dynamic, dynamic>).map(
+                  (phase, micros) => MapEntry(
+                      phase as String, Duration(microseconds: micros))),
+            ))
+        .toList();
+  }
+
+  @override
+  Future<Tun2socksStats> getTun2socksStats() async {
+    final Map<dynamic, dynamic> stats =
+        await methodChannel.invokeMethod('getTun2socksStats');
+    return Tun2socksStats(
+      starts: stats['starts'],
+      restarts: stats['restarts'],
+      giveUps: stats['giveUps'],
+      downtime: Duration(milliseconds: stats['downtime']),
+      uptime: Duration(milliseconds: stats['uptime']),
+      exits: (stats['exits'] as List<dynamic>)
+          .map((exit) => Tun2socksExit(
+                exitCode: exit['exitCode'],
+                uptime: Duration(milliseconds: exit['uptime']),
+                time: DateTime.fromMillisecondsSinceEpoch(exit['time']),
+              ))
+          .toList(),
+    );
+  }
+
+  @override
+  Future<Tun2socksLog> getTun2socksLog() async {
+    final Map<dynamic, dynamic> log =
+        await methodChannel.invokeMethod('getTun2socksLog');
+    return Tun2socksLog(
+      lines: (log['lines'] as List<dynamic>).cast<String>(),
+      lineCount: log['lineCount'],
+      errors: log['errors'],
+      warnings: log['warnings'],
+      dropped: log['dropped'],
+    );
+  }
+
+  @override
+  Future<List<DailyUsage>> getDailyUsage({
+    required DateTime from,
+    required DateTime to,
+  }) async {
+    final List<int> usage = await methodChannel.invokeMethod(
+      'getDailyUsage',
+      {"fromDay": _epochDay(from), "toDay": _epochDay(to)},
+    );
+    return [
+      for (int i = 0; i + 2 < usage.length; i += 3)
+        DailyUsage(
+          day: _dayOf(usage[i]),
+          uplink: usage[i + 1],
+          downlink: usage[i + 2],
+        ),
+    ];
+  }
+
+  @override
+  Future<List<ServerUsage>> getServerUsage(
+      {required List<String> configs}) async {
+    final List<int> usage = await methodChannel
+        .invokeMethod('getServerUsage', {"configs": configs});
+    return [
+      for (int i = 0; i + 1 < usage.length; i += 2)
+        ServerUsage(uplink: usage[i], downlink: usage[i + 1]),
+    ];
+  }
+
+  @override
+  Future<void> clearDataUsage() async {
+    await methodChannel.invokeMethod('clearDataUsage');
+  }
+
+  // Days are counted from 1970-01-01 in local time, like the core does
+  static int _epochDay(DateTime time) =>
+      DateTime.utc(time.year, time.month, time.day).millisecondsSinceEpoch ~/
+      Duration.millisecondsPerDay;
+
+  static DateTime _dayOf(int epochDay) {
+    final utc = DateTime.fromMillisecondsSinceEpoch(
+        epochDay * Duration.millisecondsPerDay,
+        isUtc: true);
+    return DateTime(utc.year, utc.month, utc.day);
+  }
+
   @override
   Future<String> getCoreVersion() async {
     return await methodChannel.invokeMethod('getCoreVersion');
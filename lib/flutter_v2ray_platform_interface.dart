@@ -1,3 +1,15 @@
+import 'package:flutter_v2ray/model/data_usage.dart';
+import 'package:flutter_v2ray/model/delay_config_cache_stats.dart';
+import 'package:flutter_v2ray/model/latency_history.dart';
+import 'package:flutter_v2ray/model/outbound_traffic.dart';
+import 'package:flutter_v2ray/model/plugin_metric.dart';
+import 'package:flutter_v2ray/model/server_ranking.dart';
+import 'package:flutter_v2ray/model/server_stats.dart';
+import 'package:flutter_v2ray/model/startup_trace.dart';
+import 'package:flutter_v2ray/model/traffic_history.dart';
+import 'package:flutter_v2ray/model/tun2socks_log.dart';
+import 'package:flutter_v2ray/model/tun2socks_stats.dart';
+import 'package:flutter_v2ray/model/v2ray_health_event.dart';
 import 'package:flutter_v2ray/model/v2ray_status.dart';
 import 'package:plugin_platform_interface/plugin_platform_interface.dart';
 
@@ -30,8 +42,11 @@ abstract class FlutterV2rayPlatform extends PlatformInterface {
 
   Future<void> initializeV2Ray({
     required void Function(V2RayStatus status) onStatusChanged,
+    void Function(V2RayHealthEvent event)? onHealthChanged,
     required String notificationIconResourceType,
     required String notificationIconResourceName,
+    int delayResultTtl = 3000,
+    int statsInterval = 1000,
   }) {
     throw UnimplementedError('initializeV2Ray() has not been implemented.');
   }
@@ -43,24 +58,133 @@ abstract class FlutterV2rayPlatform extends PlatformInterface {
     List<String>? blockedApps,
     List<String>? bypassSubnets,
     bool proxyOnly = false,
+    int healthCheckInterval = 0,
+    String? healthCheckUrl,
+    int degradedDelay = 0,
+    List<String>? failoverConfigs,
+    bool broadcastStatus = false,
+    int? statsInterval,
+    bool captureTun2socksLog = false,
   }) {
     throw UnimplementedError('startV2Ray() has not been implemented.');
   }
 
+  Future<bool> switchServer({
+    required String remark,
+    required String config,
+    List<String>? blockedApps,
+    List<String>? bypassSubnets,
+  }) {
+    throw UnimplementedError('switchServer() has not been implemented.');
+  }
+
   Future<void> stopV2Ray() {
     throw UnimplementedError('stopV2Ray() has not been implemented.');
   }
 
-  Future<int> getServerDelay({required String config, required String url}) {
+  Future<int> getServerDelay({
+    required String config,
+    required String url,
+    String? requestId,
+    int? deadline,
+  }) {
     throw UnimplementedError('getServerDelay() has not been implemented.');
   }
 
+  Future<List<int>> getServerDelays({
+    required List<String> configs,
+    required String url,
+    required int concurrency,
+    required int timeout,
+    String? requestId,
+    int? deadline,
+    void Function(int index, int delay)? onResult,
+  }) {
+    throw UnimplementedError('getServerDelays() has not been implemented.');
+  }
+
+  Future<ServerRanking> rankServers({
+    required List<String> configs,
+    required String url,
+    required int samples,
+    required int concurrency,
+    required int timeout,
+    String? requestId,
+    int? deadline,
+  }) {
+    throw UnimplementedError('rankServers() has not been implemented.');
+  }
+
+  Future<int> cancelDelayTests({String? requestId}) {
+    throw UnimplementedError('cancelDelayTests() has not been implemented.');
+  }
+
+  Future<DelayConfigCacheStats> getDelayConfigCacheStats() {
+    throw UnimplementedError(
+      'getDelayConfigCacheStats() has not been implemented.',
+    );
+  }
+
+  Future<List<ServerStats>> getServerStats() {
+    throw UnimplementedError('getServerStats() has not been implemented.');
+  }
+
+  Future<LatencyHistory> getLatencyHistory({required List<String> configs}) {
+    throw UnimplementedError('getLatencyHistory() has not been implemented.');
+  }
+
+  Future<void> clearLatencyHistory() {
+    throw UnimplementedError('clearLatencyHistory() has not been implemented.');
+  }
+
   Future<int> getConnectedServerDelay(String url) async {
     throw UnimplementedError(
       'getConnectedServerDelay() has not been implemented.',
     );
   }
 
+  Future<Map<String, OutboundTraffic>> getOutboundTraffic() {
+    throw UnimplementedError('getOutboundTraffic() has not been implemented.');
+  }
+
+  Future<TrafficHistory> getTrafficHistory({
+    required int window,
+    required int resolution,
+  }) {
+    throw UnimplementedError('getTrafficHistory() has not been implemented.');
+  }
+
+  Future<Map<String, PluginMetric>> getMetrics() {
+    throw UnimplementedError('getMetrics() has not been implemented.');
+  }
+
+  Future<List<StartupTrace>> getStartupTraces() {
+    throw UnimplementedError('getStartupTraces() has not been implemented.');
+  }
+
+  Future<Tun2socksStats> getTun2socksStats() {
+    throw UnimplementedError('getTun2socksStats() has not been implemented.');
+  }
+
+  Future<Tun2socksLog> getTun2socksLog() {
+    throw UnimplementedError('getTun2socksLog() has not been implemented.');
+  }
+
+  Future<List<DailyUsage>> getDailyUsage({
+    required DateTime from,
+    required DateTime to,
+  }) {
+    throw UnimplementedError('getDailyUsage() has not been implemented.');
+  }
+
+  Future<List<ServerUsage>> getServerUsage({required List<String> configs}) {
+    throw UnimplementedError('getServerUsage() has not been implemented.');
+  }
+
+  Future<void> clearDataUsage() {
+    throw UnimplementedError('clearDataUsage() has not been implemented.');
+  }
+
   Future<String> getCoreVersion() async {
     throw UnimplementedError(
       'getCoreVersion() has not been implemented.',
@@ -0,0 +1,29 @@
+class DailyUsage {
+  /// Local day the traffic was counted on, at midnight.
+  final DateTime day;
+
+  /// Bytes sent on this day.
+  final int uplink;
+
+  /// Bytes received on this day.
+  final int downlink;
+
+  DailyUsage({
+    required this.day,
+    required this.uplink,
+    required this.downlink,
+  });
+}
+
+class ServerUsage {
+  /// Bytes sent through this server since the usage was last cleared.
+  final int uplink;
+
+  /// Bytes received through this server since the usage was last cleared.
+  final int downlink;
+
+  ServerUsage({
+    required this.uplink,
+    required this.downlink,
+  });
+}
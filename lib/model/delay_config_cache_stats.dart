@@ -0,0 +1,11 @@
+class DelayConfigCacheStats {
+  final int hits;
+  final int misses;
+  final int size;
+
+  DelayConfigCacheStats({
+    this.hits = 0,
+    this.misses = 0,
+    this.size = 0,
+  });
+}
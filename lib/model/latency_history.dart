@@ -0,0 +1,36 @@
+class ServerHistory {
+  /// Number of stored samples, the newest ones are kept.
+  final int samples;
+
+  /// Share of stored samples that got an answer, between 0 and 1.
+  final double successRate;
+
+  /// Round trip of the newest sample in milliseconds, -1 if it was lost.
+  final int lastDelay;
+
+  /// Median round trip of the successful stored samples in milliseconds,
+  /// -1 if there is none.
+  final int medianDelay;
+
+  /// Time of the newest sample, null if the server was never measured.
+  final DateTime? lastMeasuredAt;
+
+  ServerHistory({
+    this.samples = 0,
+    this.successRate = 0,
+    this.lastDelay = -1,
+    this.medianDelay = -1,
+    this.lastMeasuredAt,
+  });
+}
+
+class LatencyHistory {
+  /// History of every configuration, in the order they were passed.
+  final List<ServerHistory> servers;
+
+  /// Configuration indexes ordered from the best to the worst history,
+  /// configurations that were never measured come last.
+  final List<int> ranking;
+
+  LatencyHistory({required this.servers, required this.ranking});
+}
@@ -0,0 +1,12 @@
+class OutboundTraffic {
+  /// Bytes sent through the outbound since the connection started.
+  final int uplink;
+
+  /// Bytes received through the outbound since the connection started.
+  final int downlink;
+
+  OutboundTraffic({
+    this.uplink = 0,
+    this.downlink = 0,
+  });
+}
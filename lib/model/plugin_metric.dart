@@ -0,0 +1,35 @@
+class PluginMetric {
+  /// Number of recorded calls.
+  final int count;
+
+  /// Number of recorded calls that failed.
+  final int errors;
+
+  /// Time spent in all recorded calls.
+  final Duration total;
+
+  /// Longest recorded call.
+  final Duration max;
+
+  /// Duration of the median call, rounded up to a power of two nanoseconds.
+  final Duration p50;
+
+  /// Duration below which 90% of the calls took, rounded like [p50].
+  final Duration p90;
+
+  /// Duration below which 99% of the calls took, rounded like [p50].
+  final Duration p99;
+
+  PluginMetric({
+    required this.count,
+    required this.errors,
+    required this.total,
+    required this.max,
+    required this.p50,
+    required this.p90,
+    required this.p99,
+  });
+
+  /// Average duration of a call, zero without calls.
+  Duration get mean => count == 0 ? Duration.zero : total ~/ count;
+}
@@ -0,0 +1,50 @@
+class ServerRank {
+  /// Index of the configuration in the list passed to rankServers.
+  final int index;
+
+  /// Median round trip in milliseconds after outlier rejection, -1 if every sample was lost.
+  final int median;
+
+  /// 90th percentile round trip in milliseconds, -1 if every sample was lost.
+  final int p90;
+
+  /// Mean change between consecutive round trips in milliseconds.
+  final int jitter;
+
+  /// Share of lost samples, between 0 and 1.
+  final double lossRate;
+  final int samples;
+
+  /// True if sampling stopped early because the server was clearly worse than the best one.
+  final bool aborted;
+
+  /// True if the test was cancelled or ran past its deadline before this server was measured.
+  final bool cancelled;
+
+  ServerRank({
+    required this.index,
+    this.median = -1,
+    this.p90 = -1,
+    this.jitter = -1,
+    this.lossRate = 1,
+    this.samples = 0,
+    this.aborted = false,
+    this.cancelled = false,
+  });
+}
+
+class ServerRanking {
+  /// Statistics of every configuration, in the order they were passed.
+  final List<ServerRank> servers;
+
+  /// Configuration indexes ordered from the best to the worst server.
+  final List<int> ranking;
+
+  ServerRanking({required this.servers, required this.ranking});
+
+  /// Index of the best reachable configuration, or null if none answered.
+  int? get best {
+    if (ranking.isEmpty || servers[ranking.first].median < 0) return null;
+    return ranking.first;
+  }
+}
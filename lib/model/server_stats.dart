@@ -0,0 +1,32 @@
+class ServerStats {
+  /// Server address and port, like "1.2.3.4:443".
+  final String endpoint;
+  final int samples;
+  final int failures;
+  final int consecutiveFailures;
+
+  /// Last successful round trip in milliseconds, -1 if there is none.
+  final int lastDelay;
+
+  /// Exponentially weighted moving average of the successful round trips
+  /// in milliseconds.
+  final double averageDelay;
+
+  /// Smoothed change between consecutive successful round trips in milliseconds.
+  final double jitter;
+
+  /// Milliseconds until delay tests of this server are allowed again,
+  /// 0 if its circuit breaker is closed.
+  final int blockedFor;
+
+  ServerStats({
+    required this.endpoint,
+    this.samples = 0,
+    this.failures = 0,
+    this.consecutiveFailures = 0,
+    this.lastDelay = -1,
+    this.averageDelay = 0,
+    this.jitter = 0,
+    this.blockedFor = 0,
+  });
+}
@@ -0,0 +1,24 @@
+class StartupTrace {
+  /// Whether the connection started, false if the core failed to start.
+  final bool connected;
+
+  /// Time of every phase that was reached since the earliest one, in the
+  /// order of the phases: requested, configParsed, serviceRequested,
+  /// serviceCreated, envInitialized, configReceived, coreStarting,
+  /// tunEstablished, tun2socksSpawned, coreStarted, connected and fdSent.
+  /// Service creation and env init are missing when the service was already
+  /// running, the tunnel phases in proxy only mode.
+  final Map<String, Duration> phases;
+
+  StartupTrace({
+    required this.connected,
+    required this.phases,
+  });
+
+  /// Time from the request to the connected state, null if not reached.
+  Duration? get timeToConnect => phases['connected'];
+
+  /// Time from the request until tun2socks got the tunnel, null if not
+  /// reached.
+  Duration? get timeToTunnel => phases['fdSent'];
+}
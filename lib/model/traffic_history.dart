@@ -0,0 +1,26 @@
+import 'dart:typed_data';
+
+class TrafficHistory {
+  /// Wall clock time at which the newest point ends.
+  final DateTime end;
+
+  /// Length of one point, at least a second, or a minute for long windows.
+  final Duration resolution;
+
+  /// Bytes sent per point, oldest point first.
+  final Int64List uplink;
+
+  /// Bytes received per point, oldest point first.
+  final Int64List downlink;
+
+  TrafficHistory({
+    required this.end,
+    required this.resolution,
+    required this.uplink,
+    required this.downlink,
+  });
+
+  /// Wall clock time at which the point at [index] starts.
+  DateTime startOf(int index) =>
+      end.subtract(resolution * (uplink.length - index));
+}
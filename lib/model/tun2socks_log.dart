@@ -0,0 +1,25 @@
+class Tun2socksLog {
+  /// The last lines tun2socks wrote, oldest first. Empty unless the
+  /// connection was started with captureTun2socksLog.
+  final List<String> lines;
+
+  /// Number of lines captured, including those no longer kept.
+  final int lineCount;
+
+  /// Number of captured error lines.
+  final int errors;
+
+  /// Number of captured warning lines.
+  final int warnings;
+
+  /// Number of lines pushed out by newer ones.
+  final int dropped;
+
+  Tun2socksLog({
+    required this.lines,
+    required this.lineCount,
+    required this.errors,
+    required this.warnings,
+    required this.dropped,
+  });
+}
@@ -0,0 +1,46 @@
+class Tun2socksExit {
+  /// Exit code of the process, -1 if it could not be started.
+  final int exitCode;
+
+  /// How long the process ran.
+  final Duration uptime;
+
+  /// When the process exited.
+  final DateTime time;
+
+  Tun2socksExit({
+    required this.exitCode,
+    required this.uptime,
+    required this.time,
+  });
+}
+
+class Tun2socksStats {
+  /// Number of times tun2socks was started, the first start of every VPN
+  /// session included.
+  final int starts;
+
+  /// Number of times tun2socks was started again after it exited.
+  final int restarts;
+
+  /// Number of VPN sessions stopped because tun2socks kept exiting.
+  final int giveUps;
+
+  /// Time between an exit of tun2socks and its restart, added up.
+  final Duration downtime;
+
+  /// How long the running tun2socks has been up, zero if none runs.
+  final Duration uptime;
+
+  /// The last exits, oldest first.
+  final List<Tun2socksExit> exits;
+
+  Tun2socksStats({
+    required this.starts,
+    required this.restarts,
+    required this.giveUps,
+    required this.downtime,
+    required this.uptime,
+    required this.exits,
+  });
+}
@@ -0,0 +1,27 @@
+class V2RayHealthEvent {
+  /// One of "degraded", "down", "recovered", "failover" or "failover_failed".
+  final String event;
+
+  /// Round trip of the probe that caused the event in milliseconds, -1 if it was lost.
+  final int delay;
+  final int consecutiveFailures;
+
+  /// How long the connection was down in milliseconds, set when it leaves the down state.
+  final int? downFor;
+
+  /// Config the connection failed over to, 0 is the config passed to startV2Ray
+  /// and 1 the first failover config. -1 if no config answered.
+  final int? serverIndex;
+
+  /// Milliseconds spent restarting the core and checking the new server.
+  final int? failoverTime;
+
+  V2RayHealthEvent({
+    required this.event,
+    this.delay = -1,
+    this.consecutiveFailures = 0,
+    this.downFor,
+    this.serverIndex,
+    this.failoverTime,
+  });
+}